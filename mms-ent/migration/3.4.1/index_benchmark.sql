@@ -0,0 +1,57 @@
+-- Before/after plans of the 3.4.1 index pack on a synthetic project with 1M nodes.
+-- Run against an empty scratch database:  psql -d scratch -f index_benchmark.sql > index_benchmark.out
+
+\timing on
+set max_parallel_workers_per_gather = 0;
+
+-- tables and indexes as created by createProjectTables before 3.4.1
+create table nodetypes (id bigserial primary key, name text not null);
+create table edgetypes (id bigserial primary key, name text not null);
+create table nodes (id bigserial primary key, elasticid text not null unique, nodetype integer references nodetypes(id) not null, sysmlid text not null unique, lastcommit text, initialcommit text, deleted boolean default false, contenthash text);
+create index nodeindex on nodes(id);
+create index sysmlindex on nodes(sysmlid);
+create table edges (id bigserial primary key, parent integer references nodes(id), child integer references nodes(id), edgetype integer references edgetypes(id) not null, constraint unique_edges unique (parent, child, edgetype));
+create index edgeindex on edges(id);
+create index childindex on edges(child);
+create index parentindex on edges(parent);
+create table commits (id bigserial primary key, elasticid text not null unique, refid text not null, timestamp timestamp default current_timestamp, committype integer, creator text);
+create index commitindex on commits(id);
+create index commitelasticidindex on commits(elasticid);
+
+insert into nodetypes (id, name) select g, 'type' || g from generate_series(1, 16) g;
+insert into edgetypes (id, name) select g, 'edge' || g from generate_series(1, 4) g;
+
+-- 1M nodes: mostly elements, a few documents, views and mounts, 5% deleted
+insert into nodes (elasticid, nodetype, sysmlid, deleted)
+select md5(g::text), case when g % 1000 = 0 then 16 when g % 100 = 0 then 4 when g % 50 = 0 then 12 else 1 end,
+       'id_' || g, g % 20 = 0
+from generate_series(1, 1000000) g;
+
+-- containment tree with fan-out 10, plus 300k view and transclusion edges
+insert into edges (parent, child, edgetype) select g / 10, g, 1 from generate_series(10, 1000000) g;
+insert into edges (parent, child, edgetype)
+select distinct (g * 7919) % 999999 + 1, (g * 104729) % 999999 + 1, 2 + g % 2 from generate_series(1, 300000) g
+on conflict do nothing;
+
+-- 200k commits over 50 refs
+insert into commits (elasticid, refid, timestamp, committype, creator)
+select md5('c' || g), case when g % 2 = 0 then 'master' else 'ref' || (g % 50) end,
+       timestamp '2020-01-01' + g * interval '1 minute', 1, 'admin'
+from generate_series(1, 200000) g;
+
+analyze;
+
+\echo '==== before ===='
+\i index_benchmark_queries.sql
+
+-- the index pack of PostgresHelper.createIndexes
+create index concurrently nodes_live_type_idx on nodes (nodetype) where deleted = false;
+create index concurrently nodes_live_sysmlid_idx on nodes (sysmlid) where deleted = false;
+create index concurrently edges_parent_type_idx on edges (parent, edgetype) include (child);
+create index concurrently edges_child_type_idx on edges (child, edgetype) include (parent);
+create index concurrently commits_ref_time_idx on commits (refid, timestamp desc);
+create index concurrently commits_ref_id_idx on commits (refid, id);
+vacuum analyze;
+
+\echo '==== after ===='
+\i index_benchmark_queries.sql
@@ -0,0 +1,21 @@
+-- getNodesByType, sites and mounts
+explain (analyze, buffers) select * from nodes where nodetype = 4 and deleted = false;
+explain (analyze, buffers) select * from nodes where nodetype = 16 and deleted = false;
+
+-- live node lookups by sysmlid
+explain (analyze, buffers) select * from nodes where sysmlid = 'id_424242' and deleted = false;
+explain (analyze, buffers) select id from nodes where sysmlid = any(array['id_10', 'id_4242', 'id_424242']) and deleted = false;
+
+-- getAllNodes pages of live nodes
+explain (analyze, buffers) select * from nodes where deleted = false order by id limit 1000 offset 500000;
+
+-- get_children step and get_parents step
+explain (analyze, buffers) select child from edges where parent = 4242 and edgetype = 1;
+explain (analyze, buffers) select parent from edges where child = 424242 and edgetype = 1;
+
+-- getHeadCommit, getRefsCommits and getNearestCommitFromTimestamp
+explain (analyze, buffers) select id from commits where refid = 'ref7' order by timestamp desc limit 1;
+explain (analyze, buffers) select elasticid, creator, timestamp, refid from commits
+  where (refid = 'master' or refid = 'ref7') and timestamp <= timestamp '2020-03-01' order by timestamp desc limit 100;
+explain (analyze, buffers) select id, elasticid from commits where (refid = 'master' or refid = 'ref7') and id > 150000
+  order by id asc limit 100;
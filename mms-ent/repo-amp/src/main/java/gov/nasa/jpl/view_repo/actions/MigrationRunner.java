@@ -1,5 +1,6 @@
 package gov.nasa.jpl.view_repo.actions;
 
+import gov.nasa.jpl.view_repo.db.PostgresPool;
 import org.alfresco.repo.admin.patch.AbstractPatch;
 import org.alfresco.repo.admin.registry.RegistryKey;
 import org.alfresco.repo.admin.registry.RegistryService;
@@ -45,6 +46,7 @@ public class MigrationRunner extends AbstractPatch {
         migrationList.add(new ModuleVersionNumber("3.2.0"));
         migrationList.add(new ModuleVersionNumber("3.3.0"));
         migrationList.add(new ModuleVersionNumber("3.4.0"));
+        migrationList.add(new ModuleVersionNumber("3.4.1"));
     }
 
     public void setServices(ServiceRegistry services) {
@@ -89,6 +91,7 @@ public class MigrationRunner extends AbstractPatch {
             Class clazz = Class.forName("gov.nasa.jpl.view_repo.actions.migrations." + versionToClassname(migrationFor));
             Method method = clazz.getMethod("apply", ServiceRegistry.class);
             logger.info("Invoking migration for: " + migrationFor);
+            PostgresPool.setWorkload(PostgresPool.Workload.BULK);
             method.invoke(null, services);
         } catch (ClassNotFoundException cnfe) {
             logger.info("No migration found: ", cnfe);
@@ -98,6 +101,8 @@ public class MigrationRunner extends AbstractPatch {
             logger.info("Error invoking migration", e);
         } catch (Exception e) {
             logger.info("General Error: ", e);
+        } finally {
+            PostgresPool.setWorkload(null);
         }
     }
 
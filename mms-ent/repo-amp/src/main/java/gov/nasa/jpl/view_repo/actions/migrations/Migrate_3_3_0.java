@@ -50,6 +50,7 @@ import java.util.Set;
 import java.util.Scanner;
 import java.util.TimeZone;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 public class Migrate_3_3_0 {
 
@@ -354,8 +355,8 @@ public class Migrate_3_3_0 {
 
                                     try {
                                         boolean bulkEntry =
-                                            eh.bulkIndexElements(artifactJSONForElastic, "added", true, projectId,
-                                                Sjm.ARTIFACT.toLowerCase());
+                                            eh.bulkIndexElements(artifactJSONForElastic, "added",
+                                                ElasticHelper.REFRESH_FORCE, projectId, Sjm.ARTIFACT.toLowerCase());
 
                                         if (bulkEntry) {
 
@@ -472,30 +473,33 @@ public class Migrate_3_3_0 {
 
             List<String> artifactElasticIds = new ArrayList<>();
 
-            for (Map<String, Object> element : pgh.getAllArtifactsWithLastCommitTimestamp()) {
-                if (((Date) element.get(Sjm.TIMESTAMP)).getTime() <= ((Date) commit.get(Sjm.TIMESTAMP)).getTime()) {
-                    artifactElasticIds.add((String) element.get(Sjm.ELASTICID));
-                } else {
-                    String sysmlId = (String) element.get(Sjm.SYSMLID);
-
-                    try {
-                        Map<String, Object> commitObj = pgh.getCommit(commitId);
-                        if (commitObj != null) {
-                            Date date = (Date) commitObj.get(Sjm.TIMESTAMP);
-                            Calendar cal = Calendar.getInstance();
-                            cal.setTimeInMillis(date.getTime());
-                            cal.setTimeZone(TimeZone.getTimeZone("GMT"));
-                            String timestamp = df.format(cal.getTime());
-                            pastElement =
-                                eh.getElementsLessThanOrEqualTimestamp(sysmlId, timestamp, refsCommitsIds, projectId);
+            try (Stream<Map<String, Object>> elements = pgh.streamAllArtifactsWithLastCommitTimestamp()) {
+                for (Map<String, Object> element : (Iterable<Map<String, Object>>) elements::iterator) {
+                    if (((Date) element.get(Sjm.TIMESTAMP)).getTime() <= ((Date) commit.get(Sjm.TIMESTAMP))
+                        .getTime()) {
+                        artifactElasticIds.add((String) element.get(Sjm.ELASTICID));
+                    } else {
+                        String sysmlId = (String) element.get(Sjm.SYSMLID);
+
+                        try {
+                            Map<String, Object> commitObj = pgh.getCommit(commitId);
+                            if (commitObj != null) {
+                                Date date = (Date) commitObj.get(Sjm.TIMESTAMP);
+                                Calendar cal = Calendar.getInstance();
+                                cal.setTimeInMillis(date.getTime());
+                                cal.setTimeZone(TimeZone.getTimeZone("GMT"));
+                                String timestamp = df.format(cal.getTime());
+                                pastElement = eh.getElementsLessThanOrEqualTimestamp(sysmlId, timestamp,
+                                    refsCommitsIds, projectId);
+                            }
+                        } catch (Exception e) {
+                            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
                         }
-                    } catch (Exception e) {
-                        logger.error(String.format("%s", LogUtil.getStackTrace(e)));
                     }
-                }
 
-                if (pastElement != null && pastElement.has(Sjm.SYSMLID)) {
-                    artifacts.add(pastElement);
+                    if (pastElement != null && pastElement.has(Sjm.SYSMLID)) {
+                        artifacts.add(pastElement);
+                    }
                 }
             }
 
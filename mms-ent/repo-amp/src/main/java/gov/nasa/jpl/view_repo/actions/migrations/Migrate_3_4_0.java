@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.stream.Stream;
 import org.alfresco.service.ServiceRegistry;
 import org.apache.log4j.Logger;
 
@@ -111,30 +112,33 @@ public class Migrate_3_4_0 {
                         }
 
                         if (!refsToMove.isEmpty()) {
-                            eh.bulkIndexElements(insertPayload, "added", true, projectId, ElasticHelper.REF);
+                            eh.bulkIndexElements(insertPayload, "added", ElasticHelper.REFRESH_FORCE, projectId,
+                                ElasticHelper.REF);
                             eh.updateByQuery(projectId, updateMasterRef, ElasticHelper.REF);
                         }
                     }
                 }
 
-                List<Map<String, String>> commits = pgh.getAllCommits();
-                for (Map<String, String> commit : commits) {
-                    String commitId = commit.get("commitId");
-                    if (!commitId.isEmpty()) {
-                        JsonObject commitObject = eh.getByElasticId(commitId, projectId, ElasticHelper.COMMIT);
-                        if (commitObject != null && commitObject.has(Sjm.CREATED)) {
-                            try (PreparedStatement statement = pgh.prepareStatement(updateQuery)) {
-                                Date created = df.parse(commitObject.get(Sjm.CREATED).getAsString());
-                                Timestamp ts = new Timestamp(created.getTime());
-                                statement.setTimestamp(1, ts);
-                                statement.setString(2, commitId);
-                                statement.execute();
-                            } catch (ParseException pe) {
-                                logger.info("Unable to parse date: ", pe);
+                // commits are read through a cursor while the update statements use another connection
+                try (Stream<Map<String, String>> commits = pgh.streamAllCommits()) {
+                    for (Map<String, String> commit : (Iterable<Map<String, String>>) commits::iterator) {
+                        String commitId = commit.get("commitId");
+                        if (!commitId.isEmpty()) {
+                            JsonObject commitObject = eh.getByElasticId(commitId, projectId, ElasticHelper.COMMIT);
+                            if (commitObject != null && commitObject.has(Sjm.CREATED)) {
+                                try (PreparedStatement statement = pgh.prepareStatement(updateQuery)) {
+                                    Date created = df.parse(commitObject.get(Sjm.CREATED).getAsString());
+                                    Timestamp ts = new Timestamp(created.getTime());
+                                    statement.setTimestamp(1, ts);
+                                    statement.setString(2, commitId);
+                                    statement.execute();
+                                } catch (ParseException pe) {
+                                    logger.info("Unable to parse date: ", pe);
+                                }
+                            } else {
+                                logger.error("Commit object has no created date.");
+                                noErrors = false;
                             }
-                        } else {
-                            logger.error("Commit object has no created date.");
-                            noErrors = false;
                         }
                     }
                 }
@@ -0,0 +1,47 @@
+package gov.nasa.jpl.view_repo.actions.migrations;
+
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.util.Sjm;
+import java.util.List;
+import java.util.Map;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Logger;
+
+public class Migrate_3_4_1 {
+
+    static Logger logger = Logger.getLogger(Migrate_3_4_1.class);
+
+    public static boolean apply(ServiceRegistry services) throws Exception {
+        logger.info("Running Migrate_3_4_1");
+        PostgresHelper pgh = new PostgresHelper();
+
+        // branch jobs run by BranchScheduler
+        pgh.createBranchJobsTable();
+        // projects moved to schemas of the shared database
+        pgh.createSchemaNameColumn();
+
+        List<Map<String, String>> orgs = pgh.getOrganizations(null);
+
+        for (Map<String, String> org : orgs) {
+            String orgId = org.get("orgId");
+            List<Map<String, Object>> projects = pgh.getProjects(orgId);
+            for (Map<String, Object> project : projects) {
+                String projectId = project.get(Sjm.SYSMLID).toString();
+                pgh.setProject(projectId);
+
+                // elasticsearch outbox used by OutboxIndexer
+                pgh.createOutboxTable();
+                // progress of asynchronous commits
+                pgh.createCommitStatusTable();
+                // content hashes used to skip unchanged elements on post
+                pgh.createContentHashColumns();
+                // ref tables as partitions of allnodes, alledges and allartifacts, after the columns above
+                pgh.createRefPartitions();
+                // lookups by node type, live nodes, edges by type and commits by ref, built without blocking writes
+                pgh.createIndexes(true);
+            }
+        }
+
+        return true;
+    }
+}
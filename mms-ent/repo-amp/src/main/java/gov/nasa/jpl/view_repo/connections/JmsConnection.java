@@ -1,27 +1,22 @@
 package gov.nasa.jpl.view_repo.connections;
 
 import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
-import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
-import javax.jms.DeliveryMode;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.MessageProducer;
-import javax.jms.Session;
-import javax.jms.TextMessage;
 import javax.naming.Context;
 import javax.naming.InitialContext;
-import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 
 import org.apache.log4j.Logger;
 
 import gov.nasa.jpl.view_repo.util.CommitUtil;
 import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.ProjectLocks;
 
 import com.google.gson.JsonObject;
 import com.google.gson.JsonArray;
@@ -32,19 +27,22 @@ import com.google.gson.JsonArray;
  */
 public class JmsConnection implements ConnectionInterface {
     private static Logger logger = Logger.getLogger(JmsConnection.class);
-    private long sequenceId = 0;
+    private final AtomicLong sequenceId = new AtomicLong();
+    private static final ProjectLocks publishLocks = ProjectLocks.get("jms");
+    private static final JmsPublisher publisher = new JmsPublisher();
     private String refId = null;
     private String projectId = null;
 
-    private static Map<String, ConnectionInfo> connectionMap = null;
+    // read by the publisher threads while requests ingest new connection settings
+    private static final Map<String, ConnectionInfo> connectionMap = new ConcurrentHashMap<>();
+
+    static {
+        initConnectionInfo(CommitUtil.TYPE_BRANCH);
+        initConnectionInfo(CommitUtil.TYPE_DELTA);
+        initConnectionInfo(CommitUtil.TYPE_MERGE);
+    }
 
     protected static Map<String, ConnectionInfo> getConnectionMap() {
-        if (connectionMap == null || connectionMap.isEmpty()) {
-            connectionMap = new HashMap<String, ConnectionInfo>();
-            initConnectionInfo(CommitUtil.TYPE_BRANCH);
-            initConnectionInfo(CommitUtil.TYPE_DELTA);
-            initConnectionInfo(CommitUtil.TYPE_MERGE);
-        }
         return connectionMap;
     }
 
@@ -54,14 +52,12 @@ public class JmsConnection implements ConnectionInterface {
     }
 
     static class ConnectionInfo {
-        public InitialContext ctx = null;
         public String ctxFactory = "org.apache.activemq.jndi.ActiveMQInitialContextFactory";
         public String connFactory = "ConnectionFactory";
         public String username = null;
         public String password = null;
         public String destination = "master";
         public String uri = "tcp://localhost:61616";
-        public ConnectionFactory connectionFactory = null;
         public DestinationType destType = DestinationType.TOPIC;
 
         public ConnectionInfo() {
@@ -89,11 +85,7 @@ public class JmsConnection implements ConnectionInterface {
     }
 
 
-    protected boolean init(String eventType) {
-        ConnectionInfo ci = getConnectionMap().get(eventType);
-        if (ci == null)
-            return false;
-
+    static InitialContext createContext(ConnectionInfo ci) throws NamingException {
         System.setProperty("weblogic.security.SSL.ignoreHostnameVerification", "true");
         System.setProperty("jsse.enableSNIExtension", "false");
         Hashtable<String, String> properties = new Hashtable<String, String>();
@@ -103,118 +95,57 @@ public class JmsConnection implements ConnectionInterface {
             properties.put(Context.SECURITY_PRINCIPAL, ci.username);
             properties.put(Context.SECURITY_CREDENTIALS, ci.password);
         }
+        return new InitialContext(properties);
+    }
 
-        try {
-            ci.ctx = new InitialContext(properties);
-        } catch (NamingException ne) {
-            ne.printStackTrace(System.err);
-            return false;
-        }
-
-        try {
-            ci.connectionFactory = (ConnectionFactory) ci.ctx.lookup(ci.connFactory);
-        } catch (NamingException ne) {
-            ne.printStackTrace(System.err);
-            return false;
-        }
-
-        return true;
+    static ConnectionFactory lookupConnectionFactory(InitialContext ctx, ConnectionInfo ci) throws NamingException {
+        return (ConnectionFactory) ctx.lookup(ci.connFactory);
     }
 
     @Override
     /**
-     * Changed method to synchronized to JMS message can be sent out with appropriate refId and projectIds
-     * without race condition.
+     * Queues the message for the background publisher. Messages for the same project and ref are queued one
+     * at a time so their sequence ids follow commit order, other refs queue in parallel.
+     *
+     * @return false if the message could not be queued
      */
-    public synchronized boolean publish(JsonObject json, String eventType, String refId, String projectId) {
-        boolean result = false;
-        json.addProperty("sequence", sequenceId++);
-        // don't do null check since null is applicable and want to reset
-        this.refId = refId;
-        this.projectId = projectId;
-        result = publishMessage(json.toString(), eventType);
-
-        return result;
+    public boolean publish(JsonObject json, String eventType, String refId, String projectId) {
+        Lock lock = publishLocks.lock(ProjectLocks.key(projectId, refId));
+        try {
+            json.addProperty("sequence", sequenceId.getAndIncrement());
+            return publishMessage(json.toString(), eventType, refId, projectId);
+        } finally {
+            lock.unlock();
+        }
     }
 
     protected static ConnectionInfo initConnectionInfo(String eventType) {
         ConnectionInfo ci = new ConnectionInfo();
-        if (connectionMap == null) {
-            connectionMap = new HashMap<>();
-        }
         connectionMap.put(eventType, ci);
         return ci;
     }
 
 
     public boolean publishMessage(String msg, String eventType) {
-        ConnectionInfo ci = getConnectionMap().get(eventType);
+        return publishMessage(msg, eventType, refId, projectId);
+    }
 
-        if (ci.uri == null) {
-            return false;
-        }
+    private boolean publishMessage(String msg, String eventType, String refId, String projectId) {
+        ConnectionInfo ci = getConnectionMap().get(eventType);
 
-        if (!init(eventType)) {
+        if (ci == null || ci.uri == null) {
             return false;
         }
 
-        boolean status = true;
-
-        MessageProducer producer = null;
-        try (Connection connection = ci.connectionFactory.createConnection();
-            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);) {
-
-            connection.start();
-            // lookup the destination
-            Destination destination;
-            try {
-                destination = (Destination) ci.ctx.lookup(ci.destination);
-            } catch (NameNotFoundException nnfe) {
-                switch (ci.destType) {
-                    case QUEUE:
-                        destination = session.createQueue(ci.destination);
-                        break;
-                    case TOPIC:
-                    default:
-                        destination = session.createTopic(ci.destination);
-                }
-            }
-
-            // Create a MessageProducer from the Session to the Topic or Queue
-            producer = session.createProducer(destination);
-            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
-
-            // Create a message
-            TextMessage message = session.createTextMessage(msg);
-            if (refId != null) {
-                message.setStringProperty("refId", refId);
-            } else {
-                message.setStringProperty("refId", "master");
-            }
-            if (projectId != null) {
-                message.setStringProperty("projectId", projectId);
-            }
-            message.setLongProperty("MessageID", sequenceId++);
-            message.setStringProperty("MessageSource", EmsNodeUtil.getHostname());
-            message.setStringProperty("MessageRecipient", "TMS");
-            message.setStringProperty("MessageType", eventType.toUpperCase());
-
-            // Tell the producer to send the message
-            producer.send(message);
-        } catch (Exception e) {
-            logger.error("JMS exception caught, probably means JMS broker not up");
-            status = false;
-        } finally {
-            if (producer != null) {
-                try {
-                    producer.close();
-                } catch (JMSException e) {
-                    logger.error(e);
-                }
-            }
-        }
+        return publisher
+            .offer(new JmsPublisher.Message(msg, eventType, refId, projectId, sequenceId.getAndIncrement()));
+    }
 
-        return status;
+    /**
+     * Sends the messages still queued and stops the publisher, called when the application context closes
+     */
+    public void close() {
+        publisher.close();
     }
 
     @Override public void setRefId(String refId) {
@@ -326,6 +257,7 @@ public class JmsConnection implements ConnectionInterface {
         }
 
         getConnectionMap().put(eventType, ci);
+        publisher.reset(eventType);
     }
 
 }
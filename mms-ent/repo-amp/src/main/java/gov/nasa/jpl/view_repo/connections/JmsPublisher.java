@@ -0,0 +1,355 @@
+package gov.nasa.jpl.view_repo.connections;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.apache.log4j.Logger;
+
+import gov.nasa.jpl.view_repo.connections.JmsConnection.ConnectionInfo;
+import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
+import gov.nasa.jpl.view_repo.util.LogUtil;
+
+/**
+ * Sends JMS messages from a bounded queue on one background thread, so commits do not wait on the broker.
+ * The connection, session and producer of each event type are kept open and rebuilt when the broker goes away.
+ * Messages go out in the order they were queued, consecutive messages of one event type are sent in a single
+ * transacted session commit.
+ *
+ * While the broker of an event type is down its messages are parked and sent again after a backoff, instead of
+ * each batch waiting out its own retries. A message is dropped after it failed jms.retries times. close() sends
+ * what is still queued before the thread stops.
+ */
+class JmsPublisher {
+    private static Logger logger = Logger.getLogger(JmsPublisher.class);
+
+    private static final int QUEUE = EmsConfig.getInt("jms.queue", 10000);
+    private static final int BATCH = EmsConfig.getInt("jms.batch", 50);
+    private static final int RETRIES = EmsConfig.getInt("jms.retries", 3);
+    private static final long BACKOFF_MIN = EmsConfig.getInt("jms.reconnect.min", 500);
+    private static final long BACKOFF_MAX = EmsConfig.getInt("jms.reconnect.max", 30000);
+    private static final long CLOSE_TIMEOUT = EmsConfig.getInt("jms.close.timeout", 10000);
+
+    static class Message {
+        final String body;
+        final String eventType;
+        final String refId;
+        final String projectId;
+        final long messageId;
+        // only used by the sender thread
+        int failures = 0;
+
+        Message(String body, String eventType, String refId, String projectId, long messageId) {
+            this.body = body;
+            this.eventType = eventType;
+            this.refId = refId;
+            this.projectId = projectId;
+            this.messageId = messageId;
+        }
+    }
+
+    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE);
+    // only used by the sender thread
+    private final Map<String, Producer> producers = new HashMap<>();
+    private final Map<String, Deque<Message>> parked = new HashMap<>();
+    private final Map<String, Long> backoffs = new HashMap<>();
+    private final Map<String, Long> retryAt = new HashMap<>();
+
+    private final Set<String> resets = ConcurrentHashMap.newKeySet();
+    private final Thread sender;
+    private volatile boolean closed = false;
+
+    JmsPublisher() {
+        sender = new Thread(this::run, "jms-publisher");
+        sender.setDaemon(true);
+        sender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jms-publisher-shutdown"));
+    }
+
+    /**
+     * Queue a message without waiting
+     *
+     * @return false if the queue is full or the publisher is closed and the message was dropped
+     */
+    boolean offer(Message message) {
+        if (!closed && queue.offer(message)) {
+            return true;
+        }
+        logger.error(String.format("JMS queue is %s, dropped %s message %d for project %s",
+            closed ? "closed" : "full", message.eventType, message.messageId, message.projectId));
+        return false;
+    }
+
+    /**
+     * Close the producer of an event type after its connection settings changed, the next send reconnects
+     */
+    void reset(String eventType) {
+        resets.add(eventType);
+    }
+
+    /**
+     * Stop taking messages and wait for the sender to send what is queued and parked, each event type gets one
+     * more try. Safe to call more than once.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sender.join(CLOSE_TIMEOUT);
+            if (sender.isAlive()) {
+                logger.error(String.format("JMS publisher did not finish within %d ms", CLOSE_TIMEOUT));
+                sender.interrupt();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<Message> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Message first = queue.poll(waitMillis(), TimeUnit.MILLISECONDS);
+                if (first == null && closed) {
+                    break;
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH - 1);
+                    park(batch);
+                }
+                flushAll(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            } finally {
+                batch.clear();
+            }
+        }
+        queue.drainTo(batch);
+        park(batch);
+        flushAll(true);
+        for (Map.Entry<String, Deque<Message>> waiting : parked.entrySet()) {
+            if (!waiting.getValue().isEmpty()) {
+                logger.error(String.format("Dropped %d %s messages on close", waiting.getValue().size(),
+                    waiting.getKey()));
+            }
+        }
+        closeAll();
+    }
+
+    /**
+     * Time until the next parked event type is due, so the sender wakes up for it with an empty queue. Never
+     * longer than the shortest backoff, so a close is noticed soon.
+     */
+    private long waitMillis() {
+        long wait = BACKOFF_MIN;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> due : retryAt.entrySet()) {
+            Deque<Message> waiting = parked.get(due.getKey());
+            if (waiting != null && !waiting.isEmpty()) {
+                wait = Math.min(wait, Math.max(due.getValue() - now, 1));
+            }
+        }
+        return wait;
+    }
+
+    /**
+     * Queues the messages behind the ones of their event type still waiting for the broker
+     */
+    private void park(List<Message> batch) {
+        for (Message message : batch) {
+            parked.computeIfAbsent(message.eventType, k -> new ArrayDeque<>()).add(message);
+        }
+    }
+
+    private void flushAll(boolean closing) {
+        for (String eventType : parked.keySet()) {
+            flush(eventType, closing);
+        }
+    }
+
+    /**
+     * Sends the parked messages of an event type in batches. On a failure the rest stay parked until the backoff
+     * of the event type passes, messages that failed too often are dropped.
+     *
+     * @param closing try once regardless of the backoff
+     */
+    private void flush(String eventType, boolean closing) {
+        Deque<Message> waiting = parked.get(eventType);
+        while (!waiting.isEmpty()) {
+            if (!closing && System.currentTimeMillis() < retryAt.getOrDefault(eventType, 0L)) {
+                return;
+            }
+            List<Message> messages = new ArrayList<>();
+            Iterator<Message> it = waiting.iterator();
+            while (it.hasNext() && messages.size() < BATCH) {
+                messages.add(it.next());
+            }
+            if (trySend(eventType, messages)) {
+                for (int i = 0; i < messages.size(); i++) {
+                    waiting.removeFirst();
+                }
+                backoffs.remove(eventType);
+                retryAt.remove(eventType);
+                continue;
+            }
+            long backoff = backoffs.getOrDefault(eventType, BACKOFF_MIN);
+            retryAt.put(eventType, System.currentTimeMillis() + backoff);
+            backoffs.put(eventType, Math.min(backoff * 2, BACKOFF_MAX));
+            int dropped = 0;
+            for (Message message : messages) {
+                message.failures++;
+            }
+            while (!waiting.isEmpty() && waiting.peekFirst().failures > RETRIES) {
+                waiting.removeFirst();
+                dropped++;
+            }
+            if (dropped > 0) {
+                logger.error(
+                    String.format("Dropped %d %s messages after %d retries", dropped, eventType, RETRIES));
+            }
+            if (closing) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the messages were sent or there is nowhere to send them
+     */
+    private boolean trySend(String eventType, List<Message> messages) {
+        applyResets();
+        ConnectionInfo ci = JmsConnection.getConnectionMap().get(eventType);
+        if (ci == null || ci.uri == null) {
+            return true;
+        }
+        try {
+            Producer producer = producers.get(eventType);
+            if (producer == null) {
+                producer = new Producer(ci);
+                producers.put(eventType, producer);
+            }
+            producer.send(messages);
+            return true;
+        } catch (JMSException | NamingException e) {
+            logger.error(String.format("JMS send of %d %s messages failed, probably means JMS broker not up: %s",
+                messages.size(), eventType, e.getMessage()));
+            close(eventType);
+            return false;
+        }
+    }
+
+    private void applyResets() {
+        Iterator<String> it = resets.iterator();
+        while (it.hasNext()) {
+            close(it.next());
+            it.remove();
+        }
+    }
+
+    private void close(String eventType) {
+        Producer producer = producers.remove(eventType);
+        if (producer != null) {
+            producer.close();
+        }
+    }
+
+    private void closeAll() {
+        for (Producer producer : producers.values()) {
+            producer.close();
+        }
+        producers.clear();
+    }
+
+    private static class Producer {
+        private final Connection connection;
+        private final Session session;
+        private final MessageProducer producer;
+        private final String hostname = EmsNodeUtil.getHostname();
+
+        Producer(ConnectionInfo ci) throws JMSException, NamingException {
+            InitialContext ctx = JmsConnection.createContext(ci);
+            connection = JmsConnection.lookupConnectionFactory(ctx, ci).createConnection();
+            try {
+                session = connection.createSession(true, Session.SESSION_TRANSACTED);
+                Destination destination;
+                try {
+                    destination = (Destination) ctx.lookup(ci.destination);
+                } catch (NameNotFoundException nnfe) {
+                    switch (ci.destType) {
+                        case QUEUE:
+                            destination = session.createQueue(ci.destination);
+                            break;
+                        case TOPIC:
+                        default:
+                            destination = session.createTopic(ci.destination);
+                    }
+                }
+                producer = session.createProducer(destination);
+                producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+                connection.start();
+            } catch (JMSException e) {
+                connection.close();
+                throw e;
+            }
+        }
+
+        void send(List<Message> messages) throws JMSException {
+            try {
+                for (Message m : messages) {
+                    TextMessage message = session.createTextMessage(m.body);
+                    message.setStringProperty("refId", m.refId != null ? m.refId : "master");
+                    if (m.projectId != null) {
+                        message.setStringProperty("projectId", m.projectId);
+                    }
+                    message.setLongProperty("MessageID", m.messageId);
+                    message.setStringProperty("MessageSource", hostname);
+                    message.setStringProperty("MessageRecipient", "TMS");
+                    message.setStringProperty("MessageType", m.eventType.toUpperCase());
+                    producer.send(message);
+                }
+                session.commit();
+            } catch (JMSException e) {
+                try {
+                    session.rollback();
+                } catch (JMSException re) {
+                    logger.debug(String.format("%s", LogUtil.getStackTrace(re)));
+                }
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                logger.error(e);
+            }
+        }
+    }
+}
@@ -3,6 +3,8 @@ package gov.nasa.jpl.view_repo.db;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -23,6 +25,7 @@ import com.google.gson.JsonArray;
 import gov.nasa.jpl.view_repo.util.EmsConfig;
 import gov.nasa.jpl.view_repo.util.JsonUtil;
 import gov.nasa.jpl.view_repo.util.LogUtil;
+import gov.nasa.jpl.view_repo.util.OutboxIndexer;
 import gov.nasa.jpl.view_repo.util.Sjm;
 import io.searchbox.action.BulkableAction;
 import io.searchbox.client.JestClient;
@@ -54,6 +57,11 @@ public class ElasticHelper implements ElasticsearchInterface {
     public static final String ARTIFACT = "artifact";
     public static final String REF = "ref";
 
+    // values of the refresh parameter of write requests
+    public static final String REFRESH_WAIT_FOR = "wait_for";
+    public static final String REFRESH_FORCE = "true";
+    public static final String REFRESH_NONE = "false";
+
     private static final String COMMIT_QUERY = "{\"query\":{\"bool\":{\"filter\":[{\"term\":{\"%1$s\":\"%2$s\"}},{\"term\":{\"%3$s\":\"%4$s\"}}]}}}";
 
     public void init(String elasticHost) {
@@ -154,9 +162,43 @@ public class ElasticHelper implements ElasticsearchInterface {
             }
             return o;
         }
+        List<String> missing = new ArrayList<>();
+        missing.add(id);
+        for (JsonObject o : getPendingDocuments(missing, index, type)) {
+            if (type.equals(COMMIT)) {
+                o.addProperty(Sjm.SYSMLID, id);
+            }
+            return o;
+        }
         return null;
     }
 
+    /**
+     * Documents committed to postgres that the outbox indexer has not written to elasticsearch yet  (1)
+     *
+     * @param ids   elasticIds that elasticsearch did not return          (2)
+     * @param index project index
+     * @param type  elasticsearch type to match, or null for any
+     * @return pending documents
+     */
+    private List<JsonObject> getPendingDocuments(List<String> ids, String index, String type) {
+        List<JsonObject> pending = new ArrayList<>();
+        if (ids.isEmpty() || index.equalsIgnoreCase(elementIndex)) {
+            return pending;
+        }
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(index);
+        List<Map<String, String>> rows = pgh.getOutboxDocuments(ids);
+        List<Map<String, String>> matching = new ArrayList<>();
+        for (Map<String, String> row : rows) {
+            if (type == null || type.equals(row.get("esType"))) {
+                matching.add(row);
+            }
+        }
+        pending.addAll(OutboxIndexer.pendingDocuments(matching).values());
+        return pending;
+    }
+
     /**
      * Gets the JSON document of a bool : should commit query
      * result printed as Json looks like:
@@ -271,13 +313,14 @@ public class ElasticHelper implements ElasticsearchInterface {
     }
 
     /**
-     * A paginated search for a list of elasticsearch _id's, returns empty JSONArray if passed empty list  (1)
+     * A realtime multi-get for a list of elasticsearch _id's, returns empty JSONArray if passed empty list  (1)
+     * Uses _mget instead of a terms search so documents written without a refresh are still returned,
+     * and falls back to the postgres outbox for documents that are not indexed yet.
      *
      * @param ids list of elasticsearch _id(s) to find          (2)
-     * @return JSONArray elements or empty array
+     * @return JSONArray elements or empty array, ordered by _modified descending
      */
     public JsonArray getElementsFromElasticIds(List<String> ids, String index) throws IOException {
-        // :TODO can be cleaned up with the getAPI
         int count = 0;
         JsonArray elements = new JsonArray();
 
@@ -285,47 +328,63 @@ public class ElasticHelper implements ElasticsearchInterface {
             return elements;
         }
 
+        List<JsonObject> found = new ArrayList<>();
         while (count < ids.size()) {
             // sublist is fromIndex inclusive, toIndex exclusive
             List<String> sub = ids.subList(count, Math.min(ids.size(), count + termLimit));
 
-            JsonObject queryJson = new JsonObject();
-            queryJson.addProperty("size", resultLimit);
-            JsonObject query = new JsonObject();
-            queryJson.add("query", query);
-            JsonObject terms = new JsonObject();
-            query.add("terms", terms);
-            JsonUtil.addStringList(terms, "_id", sub);
-            JsonArray sorta = new JsonArray();
-            queryJson.add("sort", sorta);
-            JsonObject mod = new JsonObject();
-            JsonObject order = new JsonObject();
-            sorta.add(mod);
-            mod.add(Sjm.MODIFIED, order);
-            order.addProperty("order", "desc");
-
             if (logger.isDebugEnabled()) {
-                logger.debug(String.format("Search Query %s", queryJson.toString()));
+                logger.debug(String.format("MultiGet ids %s", sub));
             }
 
-            Search search = new Search.Builder(queryJson.toString())
-            		.addIndex(index.toLowerCase().replaceAll("\\s+",""))
-            		.build();
-            SearchResult result = client.execute(search);
-
-            if (result != null && result.isSucceeded() && result.getTotal() > 0) {
-                JsonArray hits = result.getJsonObject().getAsJsonObject("hits").getAsJsonArray("hits");
-                for (int i = 0; i < hits.size(); i++) {
-                    JsonObject o = hits.get(i).getAsJsonObject().getAsJsonObject("_source");
-                    o.addProperty(Sjm.ELASTICID, hits.get(i).getAsJsonObject().get("_id").getAsString());
-                    elements.add(o);
+            MultiGet get = new MultiGet.Builder.ById(index.toLowerCase().replaceAll("\\s+", ""), null)
+                .addId(sub).build();
+            JestResult result = client.execute(get);
+
+            if (result != null && result.isSucceeded()) {
+                JsonArray docs = result.getJsonObject().getAsJsonArray("docs");
+                for (int i = 0; i < docs.size(); i++) {
+                    JsonObject doc = docs.get(i).getAsJsonObject();
+                    if (!doc.has("found") || !doc.get("found").getAsBoolean() || !doc.has("_source")) {
+                        continue;
+                    }
+                    JsonObject o = doc.getAsJsonObject("_source");
+                    o.addProperty(Sjm.ELASTICID, doc.get("_id").getAsString());
+                    found.add(o);
                 }
             } else if (result != null && !result.isSucceeded()) {
-                throw new IOException(String.format("Search failed:%s", result.getErrorMessage()));
+                throw new IOException(String.format("MultiGet failed:%s", result.getErrorMessage()));
             }
             count += termLimit;
         }
 
+        if (found.size() < ids.size()) {
+            Set<String> foundIds = new HashSet<>();
+            for (JsonObject o : found) {
+                foundIds.add(o.get(Sjm.ELASTICID).getAsString());
+            }
+            List<String> missing = new ArrayList<>();
+            for (String id : ids) {
+                if (!foundIds.contains(id)) {
+                    missing.add(id);
+                }
+            }
+            found.addAll(getPendingDocuments(missing, index, null));
+        }
+
+        // keep the ordering the previous terms search gave callers
+        found.sort((a, b) -> {
+            String am = a.has(Sjm.MODIFIED) ? a.get(Sjm.MODIFIED).getAsString() : null;
+            String bm = b.has(Sjm.MODIFIED) ? b.get(Sjm.MODIFIED).getAsString() : null;
+            if (am == null || bm == null) {
+                return am == null ? (bm == null ? 0 : 1) : -1;
+            }
+            return bm.compareTo(am);
+        });
+        for (JsonObject o : found) {
+            elements.add(o);
+        }
+
         return elements;
 
     }
@@ -378,6 +437,13 @@ public class ElasticHelper implements ElasticsearchInterface {
         return result.isSucceeded();
     }
 
+    public boolean refreshIndex(String index) throws IOException {
+        Refresh refresh = new Refresh.Builder().addIndex(index.toLowerCase().replaceAll("\\s+", "")).build();
+        JestResult result = client.execute(refresh);
+
+        return result.isSucceeded();
+    }
+
     public JsonObject updateById(String id, JsonObject payload, String index, String type) throws IOException {
         JsonObject upsert = new JsonObject();
         upsert.add("doc", payload);
@@ -397,10 +463,21 @@ public class ElasticHelper implements ElasticsearchInterface {
      *
      * @param bulkElements documents to index          (2)
      * @param operation    checks for CRUD operation, does not delete documents
+     * @param refresh      if true, wait for the next index refresh before returning (refresh=wait_for)
      * @return ElasticResult e
      */
     public boolean bulkIndexElements(JsonArray bulkElements, String operation, boolean refresh, String index, String type)
         throws IOException {
+        return bulkIndexElements(bulkElements, operation, refresh ? REFRESH_WAIT_FOR : REFRESH_NONE, index, type);
+    }
+
+    /**
+     * Same as the boolean version with the refresh parameter given explicitly
+     *
+     * @param refresh REFRESH_NONE, REFRESH_WAIT_FOR, or REFRESH_FORCE to refresh the shards before returning
+     */
+    public boolean bulkIndexElements(JsonArray bulkElements, String operation, String refresh, String index,
+        String type) throws IOException {
         int limit = Integer.parseInt(EmsConfig.get("elastic.limit.insert"));
         // BulkableAction is generic
         ArrayList<BulkableAction> actions = new ArrayList<>();
@@ -432,18 +509,26 @@ public class ElasticHelper implements ElasticsearchInterface {
     }
 
     public boolean bulkUpdateElements(Set<String> elements, String payload, String index, String type)
+        throws IOException {
+        return bulkUpdateElements(elements.iterator(), payload, index, type);
+    }
+
+    /**
+     * Same as the Set version, for ids streamed from the database
+     */
+    public boolean bulkUpdateElements(Iterator<String> elements, String payload, String index, String type)
         throws IOException {
         int limit = Integer.parseInt(EmsConfig.get("elastic.limit.insert"));
         ArrayList<BulkableAction> actions = new ArrayList<>();
         JsonArray currentList = new JsonArray();
 
-        int i = 0;
-        for (String id : elements) {
+        while (elements.hasNext()) {
+            String id = elements.next();
             actions.add(new Update.Builder(payload).id(id).build());
             currentList.add(id);
 
-            if ((((i + 1) % limit) == 0 && i != 0) || i == (elements.size() - 1)) {
-                BulkResult result = insertBulk(actions, false, index.toLowerCase().replaceAll("\\s+", ""), type);
+            if (actions.size() == limit || !elements.hasNext()) {
+                BulkResult result = insertBulk(actions, REFRESH_NONE, index.toLowerCase().replaceAll("\\s+", ""), type);
                 if (!result.isSucceeded()) {
                     logger.error(String.format("Elastic Bulk Update Error: %s", result.getErrorMessage()));
                     logger.error(String.format("Failed items JSON: %s", currentList));
@@ -452,19 +537,66 @@ public class ElasticHelper implements ElasticsearchInterface {
                     }
                 }
                 actions.clear();
+                currentList = new JsonArray();
             }
-            i++;
         }
         return true;
     }
 
+    /**
+     * Index or update outbox rows in order using the BulkAPI and report the result of each row
+     *
+     * @param rows     outbox rows with op, elasticId and doc, in write order
+     * @param refresh  if true, wait for the next index refresh before returning (refresh=wait_for)
+     * @param rejected filled with the error of each row elasticsearch rejected, by position in rows
+     * @param retry    filled with the positions of rows to try again later (throttled or shard unavailable)
+     * @throws IOException if a bulk request failed as a whole
+     */
+    public void bulkOutbox(List<Map<String, String>> rows, boolean refresh, String index, String type,
+        Map<Integer, String> rejected, Set<Integer> retry) throws IOException {
+        int limit = Integer.parseInt(EmsConfig.get("elastic.limit.insert"));
+        for (int start = 0; start < rows.size(); start += limit) {
+            List<Map<String, String>> chunk = rows.subList(start, Math.min(rows.size(), start + limit));
+            ArrayList<BulkableAction> actions = new ArrayList<>();
+            for (Map<String, String> row : chunk) {
+                String elasticId = row.get(Sjm.ELASTICID);
+                if (OutboxIndexer.OP_INDEX.equals(row.get("op"))) {
+                    JsonObject doc = JsonUtil.buildFromString(row.get("doc"));
+                    doc.addProperty(Sjm.ELASTICID, elasticId);
+                    actions.add(new Index.Builder(doc.toString()).id(elasticId).build());
+                } else {
+                    actions.add(new Update.Builder(row.get("doc")).id(elasticId).build());
+                }
+            }
+            BulkResult result = insertBulk(actions, refresh ? REFRESH_WAIT_FOR : REFRESH_NONE,
+                index.toLowerCase().replaceAll("\\s+", ""), type);
+            List<BulkResult.BulkResultItem> items = result.getItems();
+            if (items.size() != actions.size()) {
+                throw new IOException(String.format("Elastic Bulk Error: %s", result.getErrorMessage()));
+            }
+            for (int i = 0; i < items.size(); i++) {
+                BulkResult.BulkResultItem item = items.get(i);
+                if (item.error == null) {
+                    continue;
+                }
+                if (item.status == 429 || item.status >= 500) {
+                    retry.add(start + i);
+                } else {
+                    rejected.put(start + i, item.error);
+                }
+            }
+        }
+    }
+
     /**
      * Helper method for making bulkAPI requests                       (1)
      *
      * @param actions (2)
+     * @param refresh value of the refresh parameter, wait_for blocks until the next scheduled refresh instead of
+     *                forcing one per request
      * @return returns result of bulk index
      */
-    private BulkResult insertBulk(List<BulkableAction> actions, boolean refresh, String index, String type)
+    private BulkResult insertBulk(List<BulkableAction> actions, String refresh, String index, String type)
         throws IOException {
         Bulk bulk = new Bulk.Builder().defaultIndex(index).defaultType(type).addAction(actions)
             .setParameter(Parameters.REFRESH, refresh).build();
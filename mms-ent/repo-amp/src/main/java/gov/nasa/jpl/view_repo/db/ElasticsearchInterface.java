@@ -28,6 +28,8 @@ public interface ElasticsearchInterface {
 
     boolean bulkIndexElements(JsonArray bulkElements, String operation, boolean refresh, String index, String type) throws IOException;
 
+    boolean bulkIndexElements(JsonArray bulkElements, String operation, String refresh, String index, String type) throws IOException;
+
     boolean bulkUpdateElements(Set<String> elements, String payload, String index, String type) throws IOException;
 
     JsonObject search(JsonObject queryJson) throws IOException;
@@ -12,6 +12,8 @@ import java.util.Set;
 
 import org.postgresql.util.PSQLException;
 
+import com.google.gson.JsonObject;
+
 public interface GraphInterface {
     String LASTCOMMIT = "lastCommit";
     String INITIALCOMMIT = "initialCommit";
@@ -115,7 +117,7 @@ public interface GraphInterface {
 
     void createProjectDatabase(String projectId, String orgId, String name, String location);
 
-    void createBranchFromWorkspace(String childWorkspaceName, String workspaceName, String elasticId, String commitId, boolean isTag);
+    JsonObject createBranchFromWorkspace(String childWorkspaceName, String workspaceName, String elasticId, String commitId, boolean isTag);
 
     boolean isTag(String refId);
 
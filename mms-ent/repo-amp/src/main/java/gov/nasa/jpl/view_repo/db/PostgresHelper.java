@@ -10,14 +10,30 @@ import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import gov.nasa.jpl.view_repo.util.Sjm;
 import org.apache.commons.lang.StringEscapeUtils;
@@ -38,8 +54,56 @@ public class PostgresHelper implements GraphInterface {
     private Map<String, String> projectProperties = new HashMap<>();
     private String workspaceId;
     private Savepoint savePoint;
+    private PostgresPool.Workload workload = null;
     private static final String pgHost = EmsConfig.get("pg.host");
     private static final String pgName = EmsConfig.get("pg.name");
+    // new projects get a schema in the shared database instead of a database of their own
+    private static final boolean schemaStorage = "schema".equalsIgnoreCase(EmsConfig.get("pg.storage"));
+    private static final String sharedName =
+        EmsConfig.get("pg.shared.name") == null || EmsConfig.get("pg.shared.name").isEmpty() ? "mms_projects" :
+            EmsConfig.get("pg.shared.name");
+
+    // rows fetched per round trip by the streaming reads
+    private static final int FETCH_SIZE = EmsConfig.getInt("pg.fetch.size", 10000);
+
+    // partitioned ref tables, ATTACH PARTITION and INCLUDE indexes of the project tables need PostgreSQL 11
+    private static final int MIN_SERVER_VERSION = 110000;
+
+    // bump when createProjectTables changes, new project databases are cloned from the template of this version
+    private static final int TEMPLATE_VERSION = 2;
+    private static final String templatePrefix = "mms_template_v";
+    // hosts with a template of TEMPLATE_VERSION
+    private static final Set<String> templateHosts = ConcurrentHashMap.newKeySet();
+
+    // tables with one table per ref, attached as partitions of all<name> by ref
+    private static final String[] REF_TABLES = {"nodes", "edges", "artifacts"};
+
+    // table, index suffix and definition of the indexes behind node type, live node, graph and commit lookups
+    private static final String[][] REF_INDEXES = {
+        {"nodes", "live_type", "(nodetype) WHERE deleted = false"},
+        {"nodes", "live_sysmlid", "(sysmlid) WHERE deleted = false"},
+        {"edges", "parent_type", "(parent, edgetype) INCLUDE (child)"},
+        {"edges", "child_type", "(child, edgetype) INCLUDE (parent)"}
+    };
+    // table and index suffix of REF_INDEXES entries that were replaced, dropped once the new ones are built
+    private static final String[][] SUPERSEDED_REF_INDEXES = {
+        {"nodes", "type"},
+        {"nodes", "live"}
+    };
+    private static final String[][] PROJECT_INDEXES = {
+        {"commits", "ref_time", "(refid, timestamp DESC)"},
+        {"commits", "ref_id", "(refid, id)"}
+    };
+
+    private static final ExecutorService branchCopyPool =
+        Executors.newFixedThreadPool(EmsConfig.getInt("branch.copy.threads", 3), r -> {
+            Thread t = new Thread(() -> {
+                PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+                r.run();
+            }, "branch-copy");
+            t.setDaemon(true);
+            return t;
+        });
 
     public PostgresHelper() {
         setWorkspace("master");
@@ -66,15 +130,35 @@ public class PostgresHelper implements GraphInterface {
                 }
             } else if (!this.connMap.containsKey(project) || this.connMap.get(project) == null || this.connMap
                 .get(project).isClosed()) {
-                this.connMap.put(project, PostgresPool
-                    .getInstance(this.projectProperties.get("location"), this.projectProperties.get("dbname"))
-                    .getConnection());
+                String dbname = this.projectProperties.get("dbname");
+                String schema = this.projectProperties.get("schema");
+                String host = ReplicaRouter.getHost(project, this.projectProperties.get("location"), dbname, schema);
+                Connection connection = PostgresPool
+                    .getInstance(host, dbname, workload != null ? workload : PostgresPool.getWorkload())
+                    .getConnection();
+                if (schema != null) {
+                    // connections of the shared database move between projects
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(String.format("SET search_path TO \"%s\", public", schema));
+                    } catch (SQLException e) {
+                        connection.close();
+                        throw e;
+                    }
+                }
+                this.connMap.put(project, connection);
             }
         } catch (SQLException e) {
             logger.error(String.format("%s", LogUtil.getStackTrace(e)));
         }
     }
 
+    /**
+     * Pool for the project connections of this helper, instead of the workload of the calling thread
+     */
+    public void setWorkload(PostgresPool.Workload workload) {
+        this.workload = workload;
+    }
+
     public Connection getConn() {
         return getConn(null);
     }
@@ -119,12 +203,20 @@ public class PostgresHelper implements GraphInterface {
     private void getProjectProperties() {
         projectProperties.put("location", pgHost);
         projectProperties.put("dbname", "_" + project);
-        try (PreparedStatement query = getConn("config")
-            .prepareStatement("SELECT location FROM projects WHERE projectId = ?");) {
+        projectProperties.remove("schema");
+        // schemaName is read through to_jsonb so config databases without the column still work
+        try (PreparedStatement query = getConn("config").prepareStatement(
+            "SELECT location, to_jsonb(projects) ->> 'schemaname' FROM projects WHERE projectId = ?");) {
             query.setString(1, project);
             try (ResultSet rs = query.executeQuery()) {
-                if (rs.next() && !rs.getString(1).isEmpty()) {
-                    projectProperties.put("location", rs.getString(1));
+                if (rs.next()) {
+                    if (rs.getString(1) != null && !rs.getString(1).isEmpty()) {
+                        projectProperties.put("location", rs.getString(1));
+                    }
+                    if (rs.getString(2) != null && !rs.getString(2).isEmpty()) {
+                        projectProperties.put("dbname", sharedName);
+                        projectProperties.put("schema", rs.getString(2));
+                    }
                 }
             } catch (SQLException e) {
                 logger.error(String.format("%s", LogUtil.getStackTrace(e)));
@@ -230,6 +322,24 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
+    /**
+     * Undo everything in the open transaction and return the connection to autocommit
+     */
+    public void rollbackTransaction() throws SQLException {
+        try {
+            getConn().rollback();
+        } finally {
+            getConn().setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Savepoint inside the open transaction, to undo part of it without touching the savepoint of the transaction
+     */
+    public Savepoint setSavepoint() throws SQLException {
+        return getConn().setSavepoint();
+    }
+
     public void rollBackToSavepoint(Savepoint savepoint) throws SQLException {
         getConn().rollback(savepoint);
     }
@@ -312,54 +422,47 @@ public class PostgresHelper implements GraphInterface {
         return -1;
     }
 
-    public void updateLastCommitsNodes(String value, List<String> sysmlIds) {
+    public void updateLastCommitsNodes(String value, List<String> sysmlIds) throws SQLException {
         if (sysmlIds == null || sysmlIds.isEmpty()) {
             return;
         }
         updateLastCommits(value, sysmlIds, "nodes");
     }
 
-    public void updateLastCommitsArtifacts(String value, List<String> sysmlIds) {
+    public void updateLastCommitsArtifacts(String value, List<String> sysmlIds) throws SQLException {
         if (sysmlIds == null || sysmlIds.isEmpty()) {
             return;
         }
         updateLastCommits(value, sysmlIds, "artifacts");
     }
 
-    public void updateLastCommits(String value, List<String> sysmlIds, String type) {
-        String starter = String.format("UPDATE \"%s%s\" SET lastcommit = ? WHERE sysmlId IN (", type, workspaceId);
-        int limit = Integer.parseInt(EmsConfig.get("pg.limit.insert"));
-        StringBuilder query = new StringBuilder(starter);
-        int count = 0;
-        int total = sysmlIds.size();
-        for (int i = 0; i < total; i++) {
-            query.append("?,");
-            count++;
-            if (((i + 1) % limit) == 0 || i == (total - 1)) {
-                query.setLength(query.length() - 1);
-                query.append(")");
-                List<Object> single = new LinkedList<>();
-                single.add(0, value);
-                for (int j = 0; j < count; j++) {
-                    single.add(j + 1, sysmlIds.remove(0));
-                }
-                List<List<Object>> values = new ArrayList<>();
-                values.add(single);
-                executeBulkStatements(query.toString(), values);
-                query = new StringBuilder(starter);
-                count = 0;
-            }
-        }
-    }
-
-    public void runBatchQueries(List<Map<String, Object>> rows, String type) {
+    /**
+     * Does not close the connection and throws, so a failed write rolls back the commit transaction it is part of
+     */
+    public void updateLastCommits(String value, List<String> sysmlIds, String type) throws SQLException {
+        // one statement text for any number of ids, so the plan is reused
+        try (PreparedStatement statement = getConn().prepareStatement(
+            String.format("UPDATE \"%s%s\" SET lastcommit = ? WHERE sysmlId = ANY(?::text[])", type, workspaceId))) {
+            statement.setString(1, value);
+            statement.setArray(2, getConn().createArrayOf("text", sysmlIds.toArray()));
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Writes rows of a table in bulk. Does not close the connection and throws, so a failed write rolls back the
+     * commit transaction it is part of.
+     *
+     * @param type nodes, artifacts, updates, artifactUpdates, edges or outbox
+     */
+    public void runBatchQueries(List<Map<String, Object>> rows, String type) throws SQLException {
         String query = null;
         List<List<Object>> values = new LinkedList<>();
 
         switch (type) {
             case "nodes":
                 query = String.format(
-                    "INSERT INTO \"nodes%s\" (elasticId, sysmlId, lastcommit, initialcommit, nodeType) VALUES (?, ?, ?, ?, ?)",
+                    "INSERT INTO \"nodes%s\" (elasticId, sysmlId, lastcommit, initialcommit, nodeType, contentHash) VALUES (?, ?, ?, ?, ?, ?)",
                     workspaceId);
                 for (Map<String, Object> node : rows) {
                     List<Object> single = new LinkedList<>();
@@ -369,6 +472,7 @@ public class PostgresHelper implements GraphInterface {
                     single.add(3,
                         node.containsKey("initialcommit") ? node.get("initialcommit") : node.get(Sjm.ELASTICID));
                     single.add(4, node.get("nodetype"));
+                    single.add(5, node.get("contenthash"));
                     values.add(single);
                 }
                 break;
@@ -387,35 +491,20 @@ public class PostgresHelper implements GraphInterface {
                 }
                 break;
             case "artifactUpdates":
-                query = String
-                    .format("UPDATE \"artifacts%s\" SET elasticId = ?, lastcommit = ?, deleted = ? WHERE sysmlId = ?",
-                        workspaceId);
-                for (Map<String, Object> node : rows) {
-                    List<Object> single = new LinkedList<>();
-                    single.add(0, node.get(Sjm.ELASTICID));
-                    single.add(1, node.get("lastcommit"));
-                    single.add(2, node.get("deleted"));
-                    single.add(3, node.get(Sjm.SYSMLID));
-                    values.add(single);
-                }
+                updateFromArrays(rows, String.format(
+                    "UPDATE \"artifacts%s\" a SET elasticId = u.elasticId, lastcommit = u.lastcommit, deleted = u.deleted FROM unnest(?::text[], ?::text[], ?::boolean[], ?::text[]) AS u(elasticId, lastcommit, deleted, sysmlId) WHERE a.sysmlId = u.sysmlId",
+                    workspaceId), new String[][] {{Sjm.ELASTICID, "text"}, {"lastcommit", "text"}, {"deleted", "bool"},
+                    {Sjm.SYSMLID, "text"}});
                 break;
             case "updates":
-                query = String.format(
-                    "UPDATE \"nodes%s\" SET elasticId = ?, lastcommit = ?, nodeType = ?, deleted = ? WHERE sysmlId = ?",
-                    workspaceId);
-                for (Map<String, Object> node : rows) {
-                    List<Object> single = new LinkedList<>();
-                    single.add(0, node.get(Sjm.ELASTICID));
-                    single.add(1, node.get("lastcommit"));
-                    single.add(2, node.get("nodetype"));
-                    single.add(3, node.get("deleted"));
-                    single.add(4, node.get(Sjm.SYSMLID));
-                    values.add(single);
-                }
+                updateFromArrays(rows, String.format(
+                    "UPDATE \"nodes%s\" n SET elasticId = u.elasticId, lastcommit = u.lastcommit, nodeType = u.nodeType, deleted = u.deleted, contentHash = u.contentHash FROM unnest(?::text[], ?::text[], ?::int[], ?::boolean[], ?::text[], ?::text[]) AS u(elasticId, lastcommit, nodeType, deleted, contentHash, sysmlId) WHERE n.sysmlId = u.sysmlId",
+                    workspaceId), new String[][] {{Sjm.ELASTICID, "text"}, {"lastcommit", "text"}, {"nodetype", "int4"},
+                    {"deleted", "bool"}, {"contenthash", "text"}, {Sjm.SYSMLID, "text"}});
                 break;
             case "edges":
                 query = String.format(
-                    "INSERT INTO \"edges%1$s\" (parent, child, edgeType) VALUES ((SELECT id FROM \"nodes%1$s\" WHERE sysmlid = ?), (SELECT id FROM \"nodes%1$s\" WHERE sysmlid = ?), ?)",
+                    "INSERT INTO \"edges%1$s\" (parent, child, edgeType) VALUES ((SELECT id FROM \"nodes%1$s\" WHERE sysmlid = ?), (SELECT id FROM \"nodes%1$s\" WHERE sysmlid = ?), ?) ON CONFLICT DO NOTHING",
                     workspaceId);
                 for (Map<String, Object> node : rows) {
                     List<Object> single = new LinkedList<>();
@@ -425,6 +514,18 @@ public class PostgresHelper implements GraphInterface {
                     values.add(single);
                 }
                 break;
+            case "outbox":
+                query = "INSERT INTO outbox (commitId, elasticId, esType, op, doc) VALUES (?, ?, ?, ?, ?)";
+                for (Map<String, Object> row : rows) {
+                    List<Object> single = new LinkedList<>();
+                    single.add(0, row.get("commitid"));
+                    single.add(1, row.get(Sjm.ELASTICID));
+                    single.add(2, row.get("estype"));
+                    single.add(3, row.get("op"));
+                    single.add(4, row.get("doc"));
+                    values.add(single);
+                }
+                break;
             default:
                 break;
         }
@@ -434,6 +535,46 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
+    /**
+     * Runs a multi-column update as one statement that joins unnest of an array per column, instead of a batch
+     * of single row updates. Does not close the connection and throws, like executeBulkStatements.
+     *
+     * @param columns key in the rows and array element type of each parameter, in order
+     */
+    private void updateFromArrays(List<Map<String, Object>> rows, String query, String[][] columns)
+        throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = getConn().prepareStatement(query)) {
+            for (int i = 0; i < columns.length; i++) {
+                Object[] values = new Object[rows.size()];
+                for (int j = 0; j < rows.size(); j++) {
+                    values[j] = arrayValue(rows.get(j).get(columns[i][0]), columns[i][1]);
+                }
+                statement.setArray(i + 1, getConn().createArrayOf(columns[i][1], values));
+            }
+            statement.executeUpdate();
+        }
+    }
+
+    private static Object arrayValue(Object value, String type) {
+        if (value instanceof JsonNull) {
+            return null;
+        } else if (!(value instanceof JsonPrimitive)) {
+            return value;
+        }
+        JsonPrimitive primitive = (JsonPrimitive) value;
+        switch (type) {
+            case "bool":
+                return primitive.getAsBoolean();
+            case "int4":
+                return primitive.getAsInt();
+            default:
+                return primitive.getAsString();
+        }
+    }
+
     private Node resultSetToNode(ResultSet rs) throws SQLException {
         return new Node(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getString(4), rs.getString(5), rs.getString(6),
             rs.getBoolean(7));
@@ -621,25 +762,18 @@ public class PostgresHelper implements GraphInterface {
     }
 
     public List<String> getAllNodes() {
-        List<Node> result = new ArrayList<>();
-        List<String> ids = new ArrayList<>();
-
-        StringBuilder query =
-            new StringBuilder("SELECT * FROM \"nodes" + workspaceId + "\" WHERE deleted = false ORDER BY id");
-        try (PreparedStatement statement = getConn().prepareStatement(query.toString())) {
-            try (ResultSet rs = statement.executeQuery()) {
-                while (rs.next()) {
-                    result.add(resultSetToNode(rs));
-                }
-            }
-            ids = result.stream().map(Node::getElasticId).collect(Collectors.toList());
-        } catch (Exception e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
-        } finally {
-            close();
+        try (Stream<String> ids = streamAllNodes()) {
+            return ids.collect(Collectors.toList());
         }
+    }
 
-        return ids;
+    /**
+     * Elastic ids of the live nodes of the ref, read through a cursor. See streamQuery.
+     */
+    public Stream<String> streamAllNodes() {
+        return streamQuery(
+            String.format("SELECT elasticId FROM \"nodes%s\" WHERE deleted = false ORDER BY id", workspaceId),
+            rs -> rs.getString(1));
     }
 
     /**
@@ -648,61 +782,118 @@ public class PostgresHelper implements GraphInterface {
      * @return List of Maps
      */
     public List<Map<String, Object>> getAllNodesWithLastCommitTimestamp() {
-        List<Map<String, Object>> result = new ArrayList<>();
-
-        try {
-            ResultSet rs = execQuery(String.format(
-                "SELECT nodes%1$s.id, nodes%1$s.elasticid, nodes%1$s.nodetype, nodes%1$s.sysmlid, "
-                    + "nodes%1$s.lastcommit, nodes%1$s.initialcommit, nodes%1$s.deleted, commits.timestamp "
-                    + "FROM nodes%1$s JOIN commits ON nodes%1$s.lastcommit = commits.elasticid "
-                    + "WHERE initialcommit IS NOT NULL ORDER BY commits.timestamp;", workspaceId));
-
-            while (rs.next()) {
-                Map<String, Object> node = new HashMap<>();
-                node.put(Sjm.ELASTICID, rs.getString(2));
-                node.put(Sjm.SYSMLID, rs.getString(4));
-                node.put(LASTCOMMIT, rs.getString(5));
-                node.put(INITIALCOMMIT, rs.getString(6));
-                node.put(DELETED, rs.getBoolean(7));
-                node.put(Sjm.TIMESTAMP, rs.getTimestamp(8));
-                result.add(node);
-            }
-        } catch (Exception e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
-        } finally {
-            close();
+        try (Stream<Map<String, Object>> nodes = streamAllNodesWithLastCommitTimestamp()) {
+            return nodes.collect(Collectors.toList());
         }
+    }
 
-        return result;
+    public Stream<Map<String, Object>> streamAllNodesWithLastCommitTimestamp() {
+        return streamQuery(String.format(
+            "SELECT nodes%1$s.id, nodes%1$s.elasticid, nodes%1$s.nodetype, nodes%1$s.sysmlid, "
+                + "nodes%1$s.lastcommit, nodes%1$s.initialcommit, nodes%1$s.deleted, commits.timestamp "
+                + "FROM nodes%1$s JOIN commits ON nodes%1$s.lastcommit = commits.elasticid "
+                + "WHERE initialcommit IS NOT NULL ORDER BY commits.timestamp;", workspaceId), rs -> {
+            Map<String, Object> node = new HashMap<>();
+            node.put(Sjm.ELASTICID, rs.getString(2));
+            node.put(Sjm.SYSMLID, rs.getString(4));
+            node.put(LASTCOMMIT, rs.getString(5));
+            node.put(INITIALCOMMIT, rs.getString(6));
+            node.put(DELETED, rs.getBoolean(7));
+            node.put(Sjm.TIMESTAMP, rs.getTimestamp(8));
+            return node;
+        });
     }
 
     public List<Map<String, Object>> getAllArtifactsWithLastCommitTimestamp() {
-        List<Map<String, Object>> result = new ArrayList<>();
+        try (Stream<Map<String, Object>> artifacts = streamAllArtifactsWithLastCommitTimestamp()) {
+            return artifacts.collect(Collectors.toList());
+        }
+    }
+
+    public Stream<Map<String, Object>> streamAllArtifactsWithLastCommitTimestamp() {
+        return streamQuery(String.format(
+            "SELECT artifacts%1$s.id, artifacts%1$s.elasticid, artifacts%1$s.sysmlid, "
+                + "artifacts%1$s.lastcommit, artifacts%1$s.initialcommit, artifacts%1$s.deleted, commits.timestamp "
+                + "FROM artifacts%1$s JOIN commits ON artifacts%1$s.lastcommit = commits.elasticid "
+                + "WHERE initialcommit IS NOT NULL ORDER BY commits.timestamp;", workspaceId), rs -> {
+            Map<String, Object> artifact = new HashMap<>();
+            artifact.put(Sjm.ELASTICID, rs.getString(2));
+            artifact.put(Sjm.SYSMLID, rs.getString(3));
+            artifact.put(LASTCOMMIT, rs.getString(4));
+            artifact.put(INITIALCOMMIT, rs.getString(5));
+            artifact.put(DELETED, rs.getBoolean(6));
+            artifact.put(Sjm.TIMESTAMP, rs.getTimestamp(7));
+            return artifact;
+        });
+    }
 
+    /**
+     * Streams the rows of a query through a server side cursor, FETCH_SIZE rows at a time, so whole tables can be
+     * read with flat memory. The stream holds its own connection and transaction until it is closed, other calls
+     * on this helper check out another connection meanwhile. Do not call inside a transaction of this helper.
+     *
+     * @return the mapped rows, empty if the query failed. Must be closed. A read that fails part way through
+     * throws a RuntimeException wrapping the SQLException.
+     */
+    private <T> Stream<T> streamQuery(String query, RowMapper<T> mapper) {
+        Connection connection = getConn();
+        this.connMap.remove(project);
+        if (connection == null) {
+            return Stream.empty();
+        }
+        PreparedStatement statement = null;
         try {
-            ResultSet rs = execQuery(String.format(
-                "SELECT artifacts%1$s.id, artifacts%1$s.elasticid, artifacts%1$s.sysmlid, "
-                    + "artifacts%1$s.lastcommit, artifacts%1$s.initialcommit, artifacts%1$s.deleted, commits.timestamp "
-                    + "FROM artifacts%1$s JOIN commits ON artifacts%1$s.lastcommit = commits.elasticid "
-                    + "WHERE initialcommit IS NOT NULL ORDER BY commits.timestamp;", workspaceId));
+            // pgjdbc only uses a cursor inside a transaction and with a fetch size
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(FETCH_SIZE);
+            ResultSet rs = statement.executeQuery();
+            Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+                @Override
+                public boolean tryAdvance(Consumer<? super T> action) {
+                    try {
+                        if (!rs.next()) {
+                            return false;
+                        }
+                        action.accept(mapper.map(rs));
+                        return true;
+                    } catch (SQLException e) {
+                        // ending the stream here would pass a partial table off as the whole one
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            PreparedStatement cursor = statement;
+            return StreamSupport.stream(rows, false).onClose(() -> rollbackAndClose(connection, cursor));
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            rollbackAndClose(connection, statement);
+            return Stream.empty();
+        }
+    }
 
-            while (rs.next()) {
-                Map<String, Object> artifact = new HashMap<>();
-                artifact.put(Sjm.ELASTICID, rs.getString(2));
-                artifact.put(Sjm.SYSMLID, rs.getString(3));
-                artifact.put(LASTCOMMIT, rs.getString(4));
-                artifact.put(INITIALCOMMIT, rs.getString(5));
-                artifact.put(DELETED, rs.getBoolean(6));
-                artifact.put(Sjm.TIMESTAMP, rs.getTimestamp(7));
-                result.add(artifact);
+    private static void rollbackAndClose(Connection connection, PreparedStatement statement) {
+        try {
+            if (statement != null) {
+                statement.close();
             }
-        } catch (Exception e) {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
         } finally {
-            close();
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            }
         }
+    }
 
-        return result;
+    @FunctionalInterface
+    private interface RowMapper<T> {
+        T map(ResultSet rs) throws SQLException;
     }
 
     public boolean isDeleted(String sysmlid) {
@@ -772,15 +963,18 @@ public class PostgresHelper implements GraphInterface {
             return elasticIds;
         }
 
-        String query = String.format("SELECT elasticid FROM \"%s%s\" WHERE sysmlid IN (%s)", type, workspaceId,
-            "'" + String.join("','", sysmlids) + "'");
+        String query =
+            String.format("SELECT elasticid FROM \"%s%s\" WHERE sysmlid = ANY(?::text[])", type, workspaceId);
         if (!withDeleted) {
-            query += "AND deleted = false";
+            query += " AND deleted = false";
         }
 
-        try (ResultSet rs = execQuery(query)) {
-            while (rs.next()) {
-                elasticIds.add(rs.getString(1));
+        try (PreparedStatement statement = getConn().prepareStatement(query)) {
+            statement.setArray(1, getConn().createArrayOf("text", sysmlids.toArray()));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    elasticIds.add(rs.getString(1));
+                }
             }
         } catch (SQLException e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
@@ -848,25 +1042,22 @@ public class PostgresHelper implements GraphInterface {
     }
 
     public Set<String> getElasticIds(String table, boolean withDeleted) {
-        Set<String> elasticIds = new HashSet<>();
-        try {
-            StringBuilder query =
-                new StringBuilder(String.format("SELECT elasticid FROM \"%s%s\"", table, workspaceId));
-            if (!withDeleted) {
-                query.append(" WHERE deleted = false");
-            }
-            try (ResultSet rs = execQuery(query.toString())) {
-                while (rs.next()) {
-                    elasticIds.add(rs.getString(1));
-                }
-            }
-            elasticIds.remove("holding_bin");
-        } catch (SQLException e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
-        } finally {
-            close();
+        try (Stream<String> elasticIds = streamElasticIds(table, withDeleted)) {
+            return elasticIds.collect(Collectors.toSet());
         }
-        return elasticIds;
+    }
+
+    /**
+     * Elastic ids of a ref table, read through a cursor. See streamQuery.
+     *
+     * @param table nodes or artifacts
+     */
+    public Stream<String> streamElasticIds(String table, boolean withDeleted) {
+        StringBuilder query = new StringBuilder(String.format("SELECT elasticid FROM \"%s%s\"", table, workspaceId));
+        if (!withDeleted) {
+            query.append(" WHERE deleted = false");
+        }
+        return streamQuery(query.toString(), rs -> rs.getString(1)).filter(id -> !id.equals("holding_bin"));
     }
 
     public String getElasticIdFromSysmlId(String sysmlId) {
@@ -897,37 +1088,49 @@ public class PostgresHelper implements GraphInterface {
 
     public String insertCommit(String elasticId, DbCommitTypes type, String creator, Timestamp time) {
         try {
-            Map<String, Object> map = new HashMap<>();
-            // we can hard code the commit type here....but we should still store the integer value
-            // from the DB in memory
-            map.put("elasticId", elasticId);
-            map.put("commitType", type.getValue());
-            map.put("refId", workspaceId);
-            map.put("creator", creator);
-            if (time != null) {
-                map.put("timestamp", time);
-            }
-            insert("commits", map);
+            startTransaction();
+            insertCommitInTransaction(elasticId, type, creator, time);
+            commitTransaction();
         } catch (Exception e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            try {
+                rollbackTransaction();
+            } catch (SQLException se) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(se)));
+            }
         } finally {
             close();
         }
         return elasticId;
     }
 
+    /**
+     * insertCommit for the commit transaction. Does not close the connection and throws, so the commit row is
+     * only there if the graph changes of the commit are.
+     *
+     * The commit id is taken under a lock held until the transaction ends, so commits become visible in id order
+     * and readers can page on the id. Call it last, right before committing.
+     */
+    public void insertCommitInTransaction(String elasticId, DbCommitTypes type, String creator, Timestamp time)
+        throws SQLException {
+        try (PreparedStatement lock = getConn().prepareStatement("SELECT pg_advisory_xact_lock(hashtext(?))")) {
+            lock.setString(1, "commits" + project);
+            lock.execute();
+        }
+        try (PreparedStatement statement = getConn().prepareStatement(
+            "INSERT INTO commits (elasticId, commitType, refId, creator, timestamp) VALUES (?, ?, ?, ?, coalesce(?::timestamp, current_timestamp))")) {
+            statement.setString(1, elasticId);
+            statement.setInt(2, type.getValue());
+            statement.setString(3, workspaceId);
+            statement.setString(4, creator);
+            statement.setTimestamp(5, time);
+            statement.executeUpdate();
+        }
+    }
+
     public int getHeadCommit() {
         try {
-            ResultSet rs = execQuery(String
-                .format("SELECT id FROM commits WHERE refId = '%s' ORDER BY timestamp DESC LIMIT 1", workspaceId));
-            if (rs.next()) {
-                return rs.getInt(1);
-            } else {
-                rs = execQuery(String.format("SELECT parentcommit FROM refs WHERE refId = '%s'", workspaceId));
-                if (rs.next()) {
-                    return rs.getInt(1);
-                }
-            }
+            return getHeadCommit(getConn());
         } catch (SQLException e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
         } finally {
@@ -937,6 +1140,32 @@ public class PostgresHelper implements GraphInterface {
         return 0;
     }
 
+    /**
+     * Head commit of the current ref as seen by the given connection, or the commit the ref was branched from
+     * when nothing has been committed to it
+     */
+    private int getHeadCommit(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection
+            .prepareStatement("SELECT id FROM commits WHERE refId = ? ORDER BY timestamp DESC LIMIT 1")) {
+            statement.setString(1, workspaceId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+            }
+        }
+        try (PreparedStatement statement = connection
+            .prepareStatement("SELECT parentcommit FROM refs WHERE refId = ?")) {
+            statement.setString(1, workspaceId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt(1);
+                }
+            }
+        }
+        return 0;
+    }
+
     public String getHeadCommitString() {
         try (ResultSet rs = execQuery(String
             .format("SELECT elasticId FROM commits WHERE refId = '%s' ORDER BY timestamp DESC LIMIT 1", workspaceId))) {
@@ -975,7 +1204,7 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
-    public void executeBulkStatements(String query, List<List<Object>> values) {
+    public void executeBulkStatements(String query, List<List<Object>> values) throws SQLException {
         int limit = Integer.parseInt(EmsConfig.get("pg.limit.insert"));
         try (PreparedStatement statement = getConn().prepareStatement(query)) {
             int count = 0;
@@ -996,8 +1225,6 @@ public class PostgresHelper implements GraphInterface {
                     count = 0;
                 }
             }
-        } catch (SQLException e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
         }
     }
 
@@ -1033,7 +1260,7 @@ public class PostgresHelper implements GraphInterface {
 
     public int updateElasticId(String sysmlId, String elasticId) {
         try (PreparedStatement statement = getConn()
-            .prepareStatement(String.format("UPDATE \"nodes%s\" SET elasticid = ? WHERE sysmlid = ?", workspaceId))) {
+            .prepareStatement(String.format("UPDATE \"nodes%s\" SET elasticid = ?, contentHash = NULL WHERE sysmlid = ?", workspaceId))) {
             statement.setString(1, elasticId);
             statement.setString(2, sysmlId);
             return statement.executeUpdate();
@@ -1058,6 +1285,36 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
+    /**
+     * deleteNode for many nodes in one statement. Does not close the connection, so it can run in the commit
+     * transaction.
+     */
+    public void deleteNodes(Collection<String> sysmlIds) throws SQLException {
+        if (sysmlIds.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement query = getConn().prepareStatement(
+            String.format("UPDATE \"nodes%s\" SET deleted = true WHERE sysmlid = ANY(?::text[])", workspaceId))) {
+            query.setArray(1, getConn().createArrayOf("text", sysmlIds.toArray()));
+            query.execute();
+        }
+    }
+
+    /**
+     * deleteArtifact for many artifacts in one statement. Does not close the connection, so it can run in the
+     * commit transaction.
+     */
+    public void deleteArtifacts(Collection<String> sysmlIds) throws SQLException {
+        if (sysmlIds.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement query = getConn().prepareStatement(
+            String.format("UPDATE \"artifacts%s\" SET deleted = true WHERE sysmlid = ANY(?::text[])", workspaceId))) {
+            query.setArray(1, getConn().createArrayOf("text", sysmlIds.toArray()));
+            query.execute();
+        }
+    }
+
     public void deleteArtifact(String sysmlId) {
         try (PreparedStatement query = getConn()
             .prepareStatement("UPDATE \"artifacts" + workspaceId + "\" SET deleted = ? WHERE sysmlid = ?")) {
@@ -1209,27 +1466,22 @@ public class PostgresHelper implements GraphInterface {
     }
 
     public List<Map<String, String>> getAllCommits() {
-        List<Map<String, String>> commits = new ArrayList<>();
-
-        try {
-            String query = "SELECT elasticId, refId, timestamp FROM commits ORDER BY timestamp DESC";
-
-            try (ResultSet rs = execQuery(query)) {
-                while (rs.next()) {
-                    Map<String, String> commit = new HashMap<>();
-                    commit.put("commitId", rs.getString(1));
-                    commit.put("refId", rs.getString(2));
-                    commit.put("timestamp", rs.getString(3));
-                    commits.add(commit);
-                }
-            }
-        } catch (Exception e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
-        } finally {
-            close();
+        try (Stream<Map<String, String>> commits = streamAllCommits()) {
+            return commits.collect(Collectors.toList());
         }
+    }
 
-        return commits;
+    /**
+     * Commits of the project, newest first, read through a cursor. See streamQuery.
+     */
+    public Stream<Map<String, String>> streamAllCommits() {
+        return streamQuery("SELECT elasticId, refId, timestamp FROM commits ORDER BY timestamp DESC", rs -> {
+            Map<String, String> commit = new HashMap<>();
+            commit.put("commitId", rs.getString(1));
+            commit.put("refId", rs.getString(2));
+            commit.put("timestamp", rs.getString(3));
+            return commit;
+        });
     }
 
     /**
@@ -1274,10 +1526,11 @@ public class PostgresHelper implements GraphInterface {
             String parentId = null;
             for (Pair<String, String> immediateParent : immediateParents) {
                 parentId = immediateParent.first;
-                String query = String.format("SELECT nodetype FROM nodes%s WHERE sysmlid = ?", workspaceId);
+                String query = "SELECT nodetype FROM allnodes WHERE refId = ? AND sysmlid = ?";
 
                 try (PreparedStatement statement = prepareStatement(query)) {
-                    statement.setString(1, parentId);
+                    statement.setString(1, workspaceId);
+                    statement.setString(2, parentId);
 
                     try (ResultSet rs = statement.executeQuery()) {
                         while (rs.next()) {
@@ -1315,14 +1568,14 @@ public class PostgresHelper implements GraphInterface {
                 return result;
             }
 
-            String query = String.format(
-                "SELECT N.sysmlid, N.nodetype FROM \"nodes%s\" N JOIN (SELECT * FROM get_parents(?, ?, ?)) P ON N.id = P.id ORDER BY P.height",
-                workspaceId);
+            String query =
+                "SELECT N.sysmlid, N.nodetype FROM allnodes N JOIN (SELECT * FROM get_parents(?, ?, ?)) P ON N.id = P.id WHERE N.refId = ? ORDER BY P.height";
 
             try (PreparedStatement statement = prepareStatement(query)) {
                 statement.setInt(1, n.getId());
                 statement.setInt(2, dbet.getValue());
                 statement.setString(3, workspaceId);
+                statement.setString(4, workspaceId);
                 result.add(new Pair<>(n.getSysmlId(), n.getNodeType()));
 
                 try (ResultSet rs = statement.executeQuery()) {
@@ -1340,6 +1593,54 @@ public class PostgresHelper implements GraphInterface {
         return result;
     }
 
+    /**
+     * getParentsOfType over view edges and then childview edges for many elements in one query. Rows are
+     * deduplicated per element instead of tracking paths, which also stops at cycles.
+     *
+     * @return for each element, the documents above it and the views or documents of the element they come through
+     */
+    public Map<String, Map<String, Set<String>>> getRelatedDocuments(Collection<String> sysmlIds) {
+        Map<String, Map<String, Set<String>>> result = new HashMap<>();
+        if (sysmlIds.isEmpty()) {
+            return result;
+        }
+        String query = "WITH RECURSIVE views(origin, nid) AS ("
+            + "SELECT id, id FROM allnodes WHERE refId = ? AND sysmlid = ANY(?::text[]) AND deleted = false "
+            + "UNION SELECT v.origin, e.parent FROM alledges e JOIN views v ON e.child = v.nid WHERE e.refId = ? AND e.edgeType = ?), "
+            + "docs(origin, vid, nid) AS ("
+            + "SELECT v.origin, v.nid, v.nid FROM views v JOIN allnodes n ON n.id = v.nid WHERE n.refId = ? AND n.nodetype IN (?, ?) "
+            + "UNION SELECT d.origin, d.vid, e.parent FROM alledges e JOIN docs d ON e.child = d.nid WHERE e.refId = ? AND e.edgeType = ?) "
+            + "SELECT o.sysmlid, doc.sysmlid, v.sysmlid FROM docs d "
+            + "JOIN allnodes o ON o.refId = ? AND o.id = d.origin JOIN allnodes v ON v.refId = ? AND v.id = d.vid "
+            + "JOIN allnodes doc ON doc.refId = ? AND doc.id = d.nid WHERE doc.nodetype = ? ORDER BY 1, 2, 3";
+        try (PreparedStatement statement = getConn().prepareStatement(query)) {
+            statement.setString(1, workspaceId);
+            statement.setArray(2, getConn().createArrayOf("text", sysmlIds.toArray()));
+            statement.setString(3, workspaceId);
+            statement.setInt(4, DbEdgeTypes.VIEW.getValue());
+            statement.setString(5, workspaceId);
+            statement.setInt(6, DbNodeTypes.VIEW.getValue());
+            statement.setInt(7, DbNodeTypes.DOCUMENT.getValue());
+            statement.setString(8, workspaceId);
+            statement.setInt(9, DbEdgeTypes.CHILDVIEW.getValue());
+            statement.setString(10, workspaceId);
+            statement.setString(11, workspaceId);
+            statement.setString(12, workspaceId);
+            statement.setInt(13, DbNodeTypes.DOCUMENT.getValue());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.computeIfAbsent(rs.getString(1), k -> new LinkedHashMap<>())
+                        .computeIfAbsent(rs.getString(2), k -> new LinkedHashSet<>()).add(rs.getString(3));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
     /**
      * Returns the containment group for element
      *
@@ -1354,14 +1655,14 @@ public class PostgresHelper implements GraphInterface {
                 return null;
             }
 
-            String query = String.format(
-                "SELECT N.sysmlid, N.elasticid, N.nodetype FROM \"nodes%s\" N JOIN (SELECT * FROM get_parents(?, ?, ?)) P ON N.id = P.id ORDER BY P.height",
-                workspaceId);
+            String query =
+                "SELECT N.sysmlid, N.elasticid, N.nodetype FROM allnodes N JOIN (SELECT * FROM get_parents(?, ?, ?)) P ON N.id = P.id WHERE N.refId = ? ORDER BY P.height";
 
             try (PreparedStatement statement = prepareStatement(query)) {
                 statement.setInt(1, n.getId());
                 statement.setInt(2, DbEdgeTypes.CONTAINMENT.getValue());
                 statement.setString(3, workspaceId);
+                statement.setString(4, workspaceId);
                 try (ResultSet rs = statement.executeQuery()) {
                     while (rs.next()) {
                         if (rs.getInt(3) == DbNodeTypes.SITEANDPACKAGE.getValue()) {
@@ -1380,6 +1681,53 @@ public class PostgresHelper implements GraphInterface {
         return null;
     }
 
+    /**
+     * getGroup for many elements in one query. The walk up the containment of each element stops at the first
+     * site or group.
+     *
+     * @return group of each element that has one
+     */
+    public Map<String, String> getGroups(Collection<String> sysmlIds) {
+        Map<String, String> result = new HashMap<>();
+        if (sysmlIds.isEmpty()) {
+            return result;
+        }
+        String query = "WITH RECURSIVE parents(origin, nid, path, ntype) AS ("
+            + "SELECT id, id, ARRAY[id], nodetype FROM allnodes WHERE refId = ? AND sysmlid = ANY(?::text[]) AND deleted = false "
+            + "UNION ALL SELECT p.origin, e.parent, p.path || e.parent, n.nodetype FROM alledges e JOIN parents p ON e.child = p.nid "
+            + "JOIN allnodes n ON n.refId = ? AND n.id = e.parent "
+            + "WHERE e.refId = ? AND e.edgeType = ? AND p.ntype NOT IN (?, ?) AND NOT e.parent = ANY(p.path)) "
+            + "SELECT DISTINCT ON (p.origin) o.sysmlid, g.sysmlid, p.ntype FROM parents p "
+            + "JOIN allnodes o ON o.refId = ? AND o.id = p.origin JOIN allnodes g ON g.refId = ? AND g.id = p.nid "
+            + "WHERE p.ntype IN (?, ?) ORDER BY p.origin, cardinality(p.path)";
+        try (PreparedStatement statement = getConn().prepareStatement(query)) {
+            statement.setString(1, workspaceId);
+            statement.setArray(2, getConn().createArrayOf("text", sysmlIds.toArray()));
+            statement.setString(3, workspaceId);
+            statement.setString(4, workspaceId);
+            statement.setInt(5, DbEdgeTypes.CONTAINMENT.getValue());
+            statement.setInt(6, DbNodeTypes.SITE.getValue());
+            statement.setInt(7, DbNodeTypes.SITEANDPACKAGE.getValue());
+            statement.setString(8, workspaceId);
+            statement.setString(9, workspaceId);
+            statement.setInt(10, DbNodeTypes.SITE.getValue());
+            statement.setInt(11, DbNodeTypes.SITEANDPACKAGE.getValue());
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    // a site above the element before any group means it has none
+                    if (rs.getInt(3) == DbNodeTypes.SITEANDPACKAGE.getValue()) {
+                        result.put(rs.getString(1), rs.getString(2));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
     // returns list of elasticId
     public List<Pair<String, String>> getChildren(String sysmlId, DbEdgeTypes et, int depth) {
         List<Pair<String, String>> result = new ArrayList<>();
@@ -1390,15 +1738,15 @@ public class PostgresHelper implements GraphInterface {
                 return result;
             }
 
-            String query = String.format(
-                "SELECT sysmlId, elasticId FROM \"nodes%s\" WHERE id IN (SELECT id FROM get_children(?, ?, ?, ?))",
-                workspaceId);
+            String query =
+                "SELECT sysmlId, elasticId FROM allnodes WHERE refId = ? AND id IN (SELECT id FROM get_children(?, ?, ?, ?))";
 
             try (PreparedStatement statement = prepareStatement(query)) {
-                statement.setInt(1, n.getId());
-                statement.setInt(2, et.getValue());
-                statement.setString(3, workspaceId);
-                statement.setInt(4, depth);
+                statement.setString(1, workspaceId);
+                statement.setInt(2, n.getId());
+                statement.setInt(3, et.getValue());
+                statement.setString(4, workspaceId);
+                statement.setInt(5, depth);
 
                 try (ResultSet rs = statement.executeQuery()) {
                     while (rs.next()) {
@@ -1424,17 +1772,17 @@ public class PostgresHelper implements GraphInterface {
                 return result;
             }
 
-            String query = String.format(
-                "SELECT elasticId FROM \"nodes%s\" WHERE id IN (SELECT id FROM get_group_docs(?, ?, ?, ?, ?, ?))",
-                workspaceId);
+            String query =
+                "SELECT elasticId FROM allnodes WHERE refId = ? AND id IN (SELECT id FROM get_group_docs(?, ?, ?, ?, ?, ?))";
 
             try (PreparedStatement statement = prepareStatement(query)) {
-                statement.setInt(1, n.getId());
-                statement.setInt(2, et.getValue());
-                statement.setString(3, workspaceId);
-                statement.setInt(4, depth);
-                statement.setInt(5, nt.getValue());
-                statement.setInt(6, DbNodeTypes.DOCUMENT.getValue());
+                statement.setString(1, workspaceId);
+                statement.setInt(2, n.getId());
+                statement.setInt(3, et.getValue());
+                statement.setString(4, workspaceId);
+                statement.setInt(5, depth);
+                statement.setInt(6, nt.getValue());
+                statement.setInt(7, DbNodeTypes.DOCUMENT.getValue());
 
                 try (ResultSet rs = statement.executeQuery()) {
                     while (rs.next()) {
@@ -1486,6 +1834,40 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
+    /**
+     * deleteEdgesForNode for many live nodes in one statement. Does not close the connection, so it can run in
+     * the commit transaction.
+     */
+    public void deleteEdgesForNodes(Collection<String> sysmlIds) throws SQLException {
+        if (sysmlIds.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement query = getConn().prepareStatement(String.format(
+            "DELETE FROM \"edges%1$s\" e USING \"nodes%1$s\" n WHERE n.sysmlid = ANY(?::text[]) AND n.deleted = false AND (e.child = n.id OR e.parent = n.id)",
+            workspaceId))) {
+            query.setArray(1, getConn().createArrayOf("text", sysmlIds.toArray()));
+            query.execute();
+        }
+    }
+
+    /**
+     * deleteEdgesForNode for many live nodes in one statement. Does not close the connection, so it can run in
+     * the commit transaction.
+     */
+    public void deleteEdgesForNodes(Collection<String> sysmlIds, boolean child, DbEdgeTypes edgeType)
+        throws SQLException {
+        if (sysmlIds.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement query = getConn().prepareStatement(String.format(
+            "DELETE FROM \"edges%1$s\" WHERE %2$s IN (SELECT id FROM \"nodes%1$s\" WHERE sysmlid = ANY(?::text[]) AND deleted = false) AND edgeType = ?",
+            workspaceId, child ? "child" : "parent"))) {
+            query.setArray(1, getConn().createArrayOf("text", sysmlIds.toArray()));
+            query.setInt(2, edgeType.getValue());
+            query.execute();
+        }
+    }
+
     public List<String> findNullParents() {
         List<String> nullParents = new ArrayList<>();
         try (ResultSet rs = execQuery(
@@ -1520,6 +1902,567 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
+    /**
+     * cleanEdges limited to the edges of the nodes in sysmlIds, as one statement. Children without an owner are
+     * moved to the holding bin and their content hash is cleared, since their document changes outside of the
+     * commit. Does not close the connection, so it can run in the transaction that wrote the edges.
+     *
+     * @return elastic ids of the children moved to the holding bin
+     */
+    public List<String> cleanEdges(Collection<String> sysmlIds) throws SQLException {
+        List<String> moved = new ArrayList<>();
+        if (sysmlIds.isEmpty()) {
+            return moved;
+        }
+        // the delete does not see the update, edges moved to the holding bin are left out of it by id
+        try (PreparedStatement statement = getConn().prepareStatement(String.format(
+            "WITH touched AS (SELECT id FROM \"nodes%1$s\" WHERE sysmlid = ANY(?)), "
+                + "moved AS (UPDATE \"edges%1$s\" e SET parent = h.id FROM \"nodes%1$s\" h WHERE h.sysmlid = ? AND e.parent IS NULL AND e.edgeType = 1 AND e.child IN (SELECT id FROM touched) RETURNING e.id, e.child), "
+                + "removed AS (DELETE FROM \"edges%1$s\" WHERE ((parent IS NULL AND child IN (SELECT id FROM touched)) OR (child IS NULL AND parent IN (SELECT id FROM touched))) AND id NOT IN (SELECT id FROM moved)) "
+                + "UPDATE \"nodes%1$s\" n SET contentHash = NULL FROM moved WHERE n.id = moved.child RETURNING n.elasticId",
+            workspaceId))) {
+            statement.setArray(1, getConn().createArrayOf("text", sysmlIds.toArray()));
+            statement.setString(2, "holding_bin_" + project);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    moved.add(rs.getString(1));
+                }
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Creates the elasticsearch outbox for the current project. Documents are written here in the same
+     * transaction as the graph and drained into elasticsearch by OutboxIndexer. Rows elasticsearch keeps
+     * rejecting end up in outboxDead.
+     */
+    public void createOutboxTable() {
+        try {
+            execUpdate(
+                "CREATE TABLE IF NOT EXISTS outbox(id bigserial primary key, commitId text, elasticId text not null, esType text not null, op text not null default 'index', doc text not null, timestamp timestamp default current_timestamp);");
+            execUpdate("CREATE INDEX IF NOT EXISTS outboxElasticIdIndex on outbox(elasticId);");
+            execUpdate("ALTER TABLE outbox ADD COLUMN IF NOT EXISTS attempts integer not null default 0;");
+            execUpdate(
+                "CREATE TABLE IF NOT EXISTS outboxDead(id bigint primary key, commitId text, elasticId text not null, esType text not null, op text not null, doc text not null, timestamp timestamp, attempts integer, error text, failed timestamp default current_timestamp);");
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Creates the table that tracks the progress of asynchronous commits for the current project.
+     */
+    public void createCommitStatusTable() {
+        try {
+            execUpdate(
+                "CREATE TABLE IF NOT EXISTS commitStatus(commitId text primary key, refId text not null, creator text, status text not null, message text, created timestamp default current_timestamp, updated timestamp default current_timestamp);");
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Records the current stage of a commit on the current ref
+     *
+     * @param commitId commit elasticId
+     * @param creator  user that posted the commit
+     * @param status   stage name
+     * @param message  optional detail, may be null
+     */
+    public void setCommitStatus(String commitId, String creator, String status, String message) {
+        try (PreparedStatement statement = getConn().prepareStatement(
+            "INSERT INTO commitStatus (commitId, refId, creator, status, message) VALUES (?, ?, ?, ?, ?) ON CONFLICT (commitId) DO UPDATE SET status = EXCLUDED.status, message = EXCLUDED.message, updated = current_timestamp")) {
+            statement.setString(1, commitId);
+            statement.setString(2, workspaceId.isEmpty() ? "master" : workspaceId);
+            statement.setString(3, creator);
+            statement.setString(4, status);
+            statement.setString(5, message);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    public Map<String, String> getCommitStatus(String commitId) {
+        Map<String, String> result = new HashMap<>();
+        try (PreparedStatement statement = getConn().prepareStatement(
+            "SELECT commitId, refId, creator, status, message, created, updated FROM commitStatus WHERE commitId = ?")) {
+            statement.setString(1, commitId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    result.put(Sjm.COMMITID, rs.getString(1));
+                    result.put(Sjm.REFID, rs.getString(2));
+                    result.put(Sjm.CREATOR, rs.getString(3));
+                    result.put("status", rs.getString(4));
+                    result.put("message", rs.getString(5));
+                    result.put(Sjm.CREATED, rs.getTimestamp(6).toString());
+                    result.put("updated", rs.getTimestamp(7).toString());
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Creates the branch job table in the config database. Jobs are shared by every server so any of them
+     * can run or recover a branch.
+     */
+    public void createBranchJobsTable() {
+        try (Statement statement = getConn("config").createStatement()) {
+            statement.executeUpdate(
+                "CREATE TABLE IF NOT EXISTS branchJobs(id bigserial primary key, projectId text not null, refId text not null, task text not null, priority integer default 0, status text not null, owner text, attempts integer default 0, phase text, phases text, message text, created timestamp default current_timestamp, started timestamp, heartbeat timestamp, finished timestamp);");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS branchJobsStatusIndex on branchJobs(status);");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS branchJobsProjectIndex on branchJobs(projectId, refId);");
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+    }
+
+    /**
+     * @return id of the queued job, 0 if it could not be stored
+     */
+    public long insertBranchJob(String projectId, String refId, String task, int priority, String status) {
+        try (PreparedStatement statement = getConn("config").prepareStatement(
+            "INSERT INTO branchJobs (projectId, refId, task, priority, status) VALUES (?, ?, ?, ?, ?) RETURNING id")) {
+            statement.setString(1, projectId);
+            statement.setString(2, refId);
+            statement.setString(3, task);
+            statement.setInt(4, priority);
+            statement.setString(5, status);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getLong(1);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+        return 0;
+    }
+
+    /**
+     * Claims the next queued branch job for a server. Projects with the fewest running jobs go first so one
+     * project cannot hold every slot, claims are serialized across servers with an advisory lock.
+     *
+     * @param owner      server claiming the job
+     * @param perProject max running jobs of one project
+     * @return id, projectId, refId, task and attempts of the claimed job, or null if none can run
+     */
+    public Map<String, Object> claimBranchJob(String owner, int perProject, String queued, String running) {
+        Connection connection = null;
+        try {
+            connection = getConn("config");
+            connection.setAutoCommit(false);
+            try (Statement lock = connection.createStatement()) {
+                lock.execute("SELECT pg_advisory_xact_lock(hashtext('branchJobs'))");
+            }
+            Map<String, Object> job = null;
+            try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE branchJobs SET status = ?, owner = ?, attempts = attempts + 1, started = current_timestamp, heartbeat = current_timestamp WHERE id = (SELECT j.id FROM branchJobs j LEFT JOIN (SELECT projectId, count(*) AS running FROM branchJobs WHERE status = ? GROUP BY projectId) r ON r.projectId = j.projectId WHERE j.status = ? AND coalesce(r.running, 0) < ? ORDER BY j.priority DESC, coalesce(r.running, 0), j.id LIMIT 1) RETURNING id, projectId, refId, task, attempts")) {
+                statement.setString(1, running);
+                statement.setString(2, owner);
+                statement.setString(3, running);
+                statement.setString(4, queued);
+                statement.setInt(5, perProject);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next()) {
+                        job = new HashMap<>();
+                        job.put("id", rs.getLong(1));
+                        job.put("projectId", rs.getString(2));
+                        job.put("refId", rs.getString(3));
+                        job.put("task", rs.getString(4));
+                        job.put("attempts", rs.getInt(5));
+                    }
+                }
+            }
+            connection.commit();
+            return job;
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            try {
+                if (connection != null) {
+                    connection.rollback();
+                }
+            } catch (SQLException se) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(se)));
+            }
+        } finally {
+            closeConfig();
+        }
+        return null;
+    }
+
+    /**
+     * Runs a task on one server at a time. The task is skipped while another server holds the advisory lock
+     * for its name, the lock is held by a connection of its own for as long as the task runs.
+     *
+     * @param name task the lock is for
+     * @return false if the task was skipped
+     */
+    public boolean runExclusive(String name, Runnable task) {
+        Connection connection = getConn("config");
+        this.connMap.remove("config");
+        if (connection == null) {
+            return false;
+        }
+        try {
+            try (PreparedStatement statement = connection
+                .prepareStatement("SELECT pg_try_advisory_lock(hashtext(?))")) {
+                statement.setString(1, name);
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (!rs.next() || !rs.getBoolean(1)) {
+                        return false;
+                    }
+                }
+            }
+            try {
+                task.run();
+            } finally {
+                try (PreparedStatement statement = connection
+                    .prepareStatement("SELECT pg_advisory_unlock(hashtext(?))")) {
+                    statement.setString(1, name);
+                    statement.execute();
+                }
+            }
+            return true;
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            return false;
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            }
+        }
+    }
+
+    public void setBranchJobPhase(long id, String phase, String phases) {
+        try (PreparedStatement statement = getConn("config").prepareStatement(
+            "UPDATE branchJobs SET phase = ?, phases = ?, heartbeat = current_timestamp WHERE id = ?")) {
+            statement.setString(1, phase);
+            statement.setString(2, phases);
+            statement.setLong(3, id);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+    }
+
+    public void finishBranchJob(long id, String status, String message) {
+        try (PreparedStatement statement = getConn("config").prepareStatement(
+            "UPDATE branchJobs SET status = ?, message = ?, finished = current_timestamp WHERE id = ?")) {
+            statement.setString(1, status);
+            statement.setString(2, message);
+            statement.setLong(3, id);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+    }
+
+    /**
+     * Puts a job that failed back in the queue so another attempt picks it up
+     */
+    public void retryBranchJob(long id, String queued, String message) {
+        try (PreparedStatement statement = getConn("config").prepareStatement(
+            "UPDATE branchJobs SET status = ?, owner = null, message = ? WHERE id = ?")) {
+            statement.setString(1, queued);
+            statement.setString(2, message);
+            statement.setLong(3, id);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+    }
+
+    public void heartbeatBranchJobs(String owner, String running) {
+        try (PreparedStatement statement = getConn("config").prepareStatement(
+            "UPDATE branchJobs SET heartbeat = current_timestamp WHERE owner = ? AND status = ?")) {
+            statement.setString(1, owner);
+            statement.setString(2, running);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+    }
+
+    /**
+     * Puts running jobs back in the queue when their server stopped sending heartbeats, or when the owner is
+     * given, every running job of that server
+     *
+     * @return number of jobs queued again
+     */
+    public int requeueBranchJobs(String owner, int staleSeconds, String queued, String running) {
+        try (PreparedStatement statement = getConn("config").prepareStatement(
+            "UPDATE branchJobs SET status = ?, owner = null WHERE status = ? AND (owner = ? OR heartbeat < current_timestamp - ? * interval '1 second')")) {
+            statement.setString(1, queued);
+            statement.setString(2, running);
+            statement.setString(3, owner);
+            statement.setInt(4, staleSeconds);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+        return 0;
+    }
+
+    /**
+     * Branch jobs of a project, newest first
+     *
+     * @param refId only jobs creating this ref, or null for all
+     */
+    public List<Map<String, String>> getBranchJobs(String projectId, String refId, int limit) {
+        List<Map<String, String>> result = new ArrayList<>();
+        StringBuilder query = new StringBuilder(
+            "SELECT id, refId, status, owner, attempts, phase, phases, message, created, started, finished FROM branchJobs WHERE projectId = ?");
+        if (refId != null) {
+            query.append(" AND refId = ?");
+        }
+        query.append(" ORDER BY id DESC LIMIT ?");
+        try (PreparedStatement statement = getConn("config").prepareStatement(query.toString())) {
+            int index = 1;
+            statement.setString(index++, projectId);
+            if (refId != null) {
+                statement.setString(index++, refId);
+            }
+            statement.setInt(index, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, String> job = new HashMap<>();
+                    job.put("id", rs.getString(1));
+                    job.put(Sjm.REFID, rs.getString(2));
+                    job.put("status", rs.getString(3));
+                    job.put("owner", rs.getString(4));
+                    job.put("attempts", rs.getString(5));
+                    job.put("phase", rs.getString(6));
+                    job.put("phases", rs.getString(7));
+                    job.put("message", rs.getString(8));
+                    job.put(Sjm.CREATED, rs.getString(9));
+                    job.put("started", rs.getString(10));
+                    job.put("finished", rs.getString(11));
+                    result.add(job);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+        return result;
+    }
+
+    /**
+     * Oldest pending outbox rows, in the order they were written
+     *
+     * @param limit maximum number of rows to return
+     * @return list of rows with id, commitId, elasticId, esType, op and doc
+     */
+    public List<Map<String, String>> getOutboxBatch(int limit) {
+        List<Map<String, String>> result = new ArrayList<>();
+        try (PreparedStatement statement = getConn()
+            .prepareStatement("SELECT id, commitId, elasticId, esType, op, doc FROM outbox ORDER BY id LIMIT ?")) {
+            statement.setInt(1, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, String> row = new HashMap<>();
+                    row.put("id", Long.toString(rs.getLong(1)));
+                    row.put("commitId", rs.getString(2));
+                    row.put(Sjm.ELASTICID, rs.getString(3));
+                    row.put("esType", rs.getString(4));
+                    row.put("op", rs.getString(5));
+                    row.put("doc", rs.getString(6));
+                    result.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Pending outbox rows for the given elasticIds, used to serve documents that are not indexed yet
+     *
+     * @param elasticIds elasticIds to look up
+     * @return list of rows with elasticId, esType, op and doc, in the order they were written
+     */
+    public List<Map<String, String>> getOutboxDocuments(List<String> elasticIds) {
+        List<Map<String, String>> result = new ArrayList<>();
+        if (elasticIds.isEmpty()) {
+            return result;
+        }
+        try (PreparedStatement statement = getConn()
+            .prepareStatement("SELECT elasticId, esType, op, doc FROM outbox WHERE elasticId = ANY(?) ORDER BY id")) {
+            statement.setArray(1, getConn().createArrayOf("text", elasticIds.toArray()));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, String> row = new HashMap<>();
+                    row.put(Sjm.ELASTICID, rs.getString(1));
+                    row.put("esType", rs.getString(2));
+                    row.put("op", rs.getString(3));
+                    row.put("doc", rs.getString(4));
+                    result.add(row);
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Content hashes stored for the given live sysmlIds. Deleted nodes are left out, so posting a deleted
+     * element again is never skipped as unchanged. Nodes written before hashes were kept map to null.
+     *
+     * @param sysmlIds sysmlIds to look up
+     * @return map of sysmlId to content hash
+     */
+    public Map<String, String> getContentHashes(List<String> sysmlIds) {
+        Map<String, String> result = new HashMap<>();
+        if (sysmlIds.isEmpty()) {
+            return result;
+        }
+        try (PreparedStatement statement = getConn().prepareStatement(
+            String.format("SELECT sysmlId, contentHash FROM \"nodes%s\" WHERE sysmlId = ANY(?) AND deleted = false",
+                workspaceId))) {
+            statement.setArray(1, getConn().createArrayOf("text", sysmlIds.toArray()));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    result.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Forget the content hash of nodes whose document was changed outside of a commit
+     *
+     * @param elasticIds elasticIds of the changed documents
+     */
+    public void clearContentHashes(List<String> elasticIds) {
+        if (elasticIds == null || elasticIds.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = getConn().prepareStatement(
+            String.format("UPDATE \"nodes%s\" SET contentHash = NULL WHERE elasticId = ANY(?)", workspaceId))) {
+            statement.setArray(1, getConn().createArrayOf("text", elasticIds.toArray()));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Add the contentHash column to the nodes table of every ref in the project
+     */
+    public void createContentHashColumns() {
+        List<String> tables = new ArrayList<>();
+        tables.add("nodes");
+        for (Pair<String, String> ref : getRefsElastic(true)) {
+            if (!ref.first.equals("master")) {
+                tables.add("nodes" + ref.first);
+            }
+        }
+        try {
+            for (String table : tables) {
+                execUpdate(String.format("ALTER TABLE \"%s\" ADD COLUMN IF NOT EXISTS contentHash text", table));
+            }
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Removes outbox rows once they have been indexed. Rows are removed by id so rows committed
+     * out of sequence order are never dropped before they are drained.
+     *
+     * @param ids outbox row ids
+     */
+    public void deleteFromOutbox(List<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = getConn().prepareStatement("DELETE FROM outbox WHERE id = ANY(?)")) {
+            statement.setArray(1, getConn().createArrayOf("bigint", ids.toArray()));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Counts a failed attempt for outbox rows elasticsearch rejected. Rows that reached maxAttempts are moved
+     * to outboxDead with the error so they stop holding up the rest of the outbox.
+     *
+     * @param ids         outbox row ids
+     * @param errors      error of each row, in the same order as ids
+     * @param maxAttempts attempts before a row is dead lettered
+     * @return number of rows dead lettered
+     */
+    public int failOutboxRows(List<Long> ids, List<String> errors, int maxAttempts) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        String query = "WITH failed AS (SELECT * FROM unnest(?::bigint[], ?::text[]) AS f(id, error)), "
+            + "retried AS (UPDATE outbox o SET attempts = o.attempts + 1 FROM failed f WHERE o.id = f.id AND o.attempts + 1 < ? RETURNING o.id), "
+            + "dead AS (DELETE FROM outbox o USING failed f WHERE o.id = f.id AND o.attempts + 1 >= ? RETURNING o.*, f.error) "
+            + "INSERT INTO outboxDead (id, commitId, elasticId, esType, op, doc, timestamp, attempts, error) "
+            + "SELECT id, commitId, elasticId, esType, op, doc, timestamp, attempts + 1, error FROM dead";
+        try (PreparedStatement statement = getConn().prepareStatement(query)) {
+            statement.setArray(1, getConn().createArrayOf("bigint", ids.toArray()));
+            statement.setArray(2, getConn().createArrayOf("text", errors.toArray()));
+            statement.setInt(3, maxAttempts);
+            statement.setInt(4, maxAttempts);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return 0;
+    }
+
     public int createOrganization(String orgId, String orgName) throws PSQLException {
         int recordId = 0;
         try (PreparedStatement query = getConn("config")
@@ -1590,71 +2533,264 @@ public class PostgresHelper implements GraphInterface {
     }
 
     public void createProjectDatabase(String projectId, String orgId, String name, String location) {
+        if (!isSupportedServer()) {
+            return;
+        }
         int organizationId = 0;
         try (PreparedStatement query = getConn("config")
             .prepareStatement("SELECT id FROM organizations WHERE orgId = ?")) {
             query.setString(1, orgId);
             try (ResultSet rs = query.executeQuery()) {
-                if (rs.next()) {
-                    organizationId = rs.getInt(1);
+                if (rs.next()) {
+                    organizationId = rs.getInt(1);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+
+        try {
+            if (location == null) {
+                location = "";
+            }
+            if (organizationId > 0) {
+                try (PreparedStatement insertProject = getConn("config")
+                    .prepareStatement("INSERT INTO projects (projectId, name, orgId, location) VALUES (?,?,?,?)")) {
+                    insertProject.setString(1, projectId);
+                    insertProject.setString(2, name);
+                    insertProject.setInt(3, organizationId);
+                    insertProject.setString(4, location);
+                    insertProject.execute();
+                }
+            }
+        } catch (PSQLException e) {
+            // Do nothing
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+        if (schemaStorage) {
+            if (createProjectSchema(projectId)) {
+                setProjectSchema(projectId, "_" + projectId);
+            }
+            return;
+        }
+        try {
+            setProject(projectId);
+            String template = getProjectTemplate(this.projectProperties.get("location"));
+            this.projectProperties.put("dbname", "postgres");
+            connect();
+            try (Statement statement = getConn().createStatement()) {
+                statement.execute(template != null ?
+                    String.format("CREATE DATABASE \"_%s\" TEMPLATE \"%s\";", projectId, template) :
+                    String.format("CREATE DATABASE \"_%s\";", projectId));
+                statement.execute(String
+                    .format("GRANT ALL PRIVILEGES ON DATABASE \"_%s\" TO %s;", projectId, EmsConfig.get("pg.user")));
+                statement.execute(String
+                    .format("GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO %s;", EmsConfig.get("pg.user")));
+            }
+        } catch (SQLException se) {
+            // Catch Duplicate error and do nothing
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+
+        createProjectTables(projectId);
+    }
+
+    /**
+     * @return false, with an error logged, if the server is older than MIN_SERVER_VERSION
+     */
+    private boolean isSupportedServer() {
+        try (Statement statement = getConn("config").createStatement();
+            ResultSet rs = statement.executeQuery("SHOW server_version_num")) {
+            if (rs.next() && rs.getInt(1) < MIN_SERVER_VERSION) {
+                logger.error(String.format("PostgreSQL %s is not supported, projects need PostgreSQL 11 or later",
+                    rs.getString(1)));
+                return false;
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            closeConfig();
+        }
+        return true;
+    }
+
+    /**
+     * @return database with the tables of a new project to clone, built on first use, or null to create the tables
+     */
+    private String getProjectTemplate(String location) {
+        String template = templatePrefix + TEMPLATE_VERSION;
+        if (templateHosts.contains(location)) {
+            return template;
+        }
+        synchronized (templateHosts) {
+            if (templateHosts.contains(location)) {
+                return template;
+            }
+            try (Connection connection = PostgresPool.getInstance(location, "postgres").getConnection();
+                PreparedStatement query = connection.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+                query.setString(1, template);
+                boolean exists;
+                try (ResultSet rs = query.executeQuery()) {
+                    exists = rs.next();
+                }
+                if (exists || buildProjectTemplate(connection, location, template)) {
+                    templateHosts.add(location);
+                    return template;
+                }
+            } catch (SQLException e) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the template under a temporary name and renames it when complete, so a partial template is never
+     * cloned. Templates of older versions are dropped.
+     */
+    private boolean buildProjectTemplate(Connection connection, String location, String template)
+        throws SQLException {
+        String build = String.format("%s_%s", template, Long.toHexString(System.nanoTime()));
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(String.format("CREATE DATABASE \"%s\";", build));
+
+            PostgresHelper builder = new PostgresHelper();
+            builder.project = build;
+            builder.projectProperties.put("location", location);
+            builder.projectProperties.put("dbname", build);
+            builder.createProjectTables();
+            PostgresPool.closePool(location, build);
+
+            statement.execute(String.format("ALTER DATABASE \"%s\" WITH IS_TEMPLATE true;", build));
+            try {
+                statement.execute(String.format("ALTER DATABASE \"%s\" RENAME TO \"%s\";", build, template));
+            } catch (SQLException e) {
+                // another server finished first
+                statement.execute(String.format("ALTER DATABASE \"%s\" WITH IS_TEMPLATE false;", build));
+                statement.execute(String.format("DROP DATABASE \"%s\";", build));
+                return true;
+            }
+
+            List<String> old = new ArrayList<>();
+            try (PreparedStatement query = connection.prepareStatement(
+                "SELECT datname FROM pg_database WHERE datistemplate AND datname LIKE ? AND datname <> ?")) {
+                query.setString(1, templatePrefix.replace("_", "\\_") + "%");
+                query.setString(2, template);
+                try (ResultSet rs = query.executeQuery()) {
+                    while (rs.next()) {
+                        old.add(rs.getString(1));
+                    }
+                }
+            }
+            for (String name : old) {
+                statement.execute(String.format("ALTER DATABASE \"%s\" WITH IS_TEMPLATE false;", name));
+                statement.execute(String.format("DROP DATABASE IF EXISTS \"%s\";", name));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates the schema and tables of a project in the shared database without pointing the project at it
+     *
+     * @return true if the schema is ready
+     */
+    public boolean createProjectSchema(String projectId) {
+        setProject(projectId);
+        String location = this.projectProperties.get("location");
+        String schema = "_" + projectId;
+        try (Connection connection = PostgresPool.getInstance(location, "postgres").getConnection();
+            PreparedStatement query = connection.prepareStatement("SELECT 1 FROM pg_database WHERE datname = ?")) {
+            query.setString(1, sharedName);
+            try (ResultSet rs = query.executeQuery()) {
+                if (!rs.next()) {
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(String.format("CREATE DATABASE \"%s\";", sharedName));
+                        statement.execute(String.format("GRANT ALL PRIVILEGES ON DATABASE \"%s\" TO %s;", sharedName,
+                            EmsConfig.get("pg.user")));
+                    }
                 }
             }
-        } catch (Exception e) {
+        } catch (SQLException e) {
+            // another server may have created it first
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+
+        this.projectProperties.put("dbname", sharedName);
+        this.projectProperties.put("schema", schema);
+        try (Statement statement = getConn().createStatement()) {
+            statement.execute(String.format("CREATE SCHEMA IF NOT EXISTS \"%s\";", schema));
+        } catch (SQLException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            return false;
         } finally {
-            closeConfig();
+            close();
         }
+        createProjectTables();
+        return true;
+    }
 
-        try {
-            if (location == null) {
-                location = "";
-            }
-            if (organizationId > 0) {
-                try (PreparedStatement insertProject = getConn("config")
-                    .prepareStatement("INSERT INTO projects (projectId, name, orgId, location) VALUES (?,?,?,?)")) {
-                    insertProject.setString(1, projectId);
-                    insertProject.setString(2, name);
-                    insertProject.setInt(3, organizationId);
-                    insertProject.setString(4, location);
-                    insertProject.execute();
-                }
-            }
-        } catch (PSQLException e) {
-            // Do nothing
-        } catch (Exception e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+    /**
+     * Points a project at its schema in the shared database
+     */
+    public void setProjectSchema(String projectId, String schema) {
+        createSchemaNameColumn();
+        try (PreparedStatement query = getConn("config")
+            .prepareStatement("UPDATE projects SET schemaName = ? WHERE projectId = ?")) {
+            query.setString(1, schema);
+            query.setString(2, projectId);
+            query.execute();
+        } catch (SQLException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
         } finally {
             closeConfig();
         }
-        try {
-            setProject(projectId);
-            this.projectProperties.put("dbname", "postgres");
-            connect();
-            try (Statement statement = getConn().createStatement()) {
-                statement.execute(String.format("CREATE DATABASE \"_%s\";", projectId));
-                statement.execute(String
-                    .format("GRANT ALL PRIVILEGES ON DATABASE \"_%s\" TO %s;", projectId, EmsConfig.get("pg.user")));
-                statement.execute(String
-                    .format("GRANT ALL PRIVILEGES ON ALL TABLES IN SCHEMA public TO %s;", EmsConfig.get("pg.user")));
-            }
-        } catch (SQLException se) {
-            // Catch Duplicate error and do nothing
-        } catch (Exception e) {
-            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+    }
+
+    public void createSchemaNameColumn() {
+        try (Statement statement = getConn("config").createStatement()) {
+            statement.execute("ALTER TABLE projects ADD COLUMN IF NOT EXISTS schemaName text;");
+        } catch (SQLException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
         } finally {
-            close();
+            closeConfig();
         }
+    }
 
-        createProjectTables(projectId);
+    public String getProjectLocation() {
+        return this.projectProperties.get("location");
+    }
+
+    public String getProjectDatabase() {
+        return this.projectProperties.get("dbname");
+    }
+
+    /**
+     * @return schema of the project in the shared database, or null if the project has its own database
+     */
+    public String getProjectSchema() {
+        return this.projectProperties.get("schema");
     }
 
     private void createProjectTables(String projectId) {
+        setProject(projectId);
+        createProjectTables();
+    }
+
+    private void createProjectTables() {
 
         try {
-            setProject(projectId);
             // Test if tables exist already
             try (ResultSet exists = execQuery(
-                "SELECT EXISTS (SELECT 1 FROM pg_catalog.pg_class c WHERE c.relname = 'nodetypes' AND c.relkind = 'r')")) {
+                "SELECT EXISTS (SELECT 1 FROM pg_catalog.pg_class c JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace WHERE c.relname = 'nodetypes' AND c.relkind = 'r' AND n.nspname = current_schema())")) {
                 if (exists.next()) {
                     if (exists.getBoolean(1)) {
                         return;
@@ -1666,7 +2802,7 @@ public class PostgresHelper implements GraphInterface {
             execUpdate("CREATE TABLE edgeTypes (id bigserial primary key, name text not null);");
 
             execUpdate(
-                "CREATE TABLE nodes(id bigserial primary key, elasticId text not null unique, nodeType integer REFERENCES nodeTypes(id) not null, sysmlId text not null unique, lastCommit text, initialCommit text, deleted boolean default false);");
+                "CREATE TABLE nodes(id bigserial primary key, elasticId text not null unique, nodeType integer REFERENCES nodeTypes(id) not null, sysmlId text not null unique, lastCommit text, initialCommit text, deleted boolean default false, contentHash text);");
             execUpdate("CREATE INDEX nodeIndex on nodes(id);");
             execUpdate("CREATE INDEX sysmlIndex on nodes(sysmlId);");
 
@@ -1696,6 +2832,12 @@ public class PostgresHelper implements GraphInterface {
             execUpdate("CREATE INDEX artifactIndex on artifacts(id);");
             execUpdate("CREATE INDEX sysmlArtifactIndex on artifacts(sysmlId);");
 
+            attachRefPartitions("");
+            createIndexes(false);
+
+            createOutboxTable();
+            createCommitStatusTable();
+
             execUpdate(
                 "CREATE OR REPLACE FUNCTION insert_edge(text, text, text, integer)\n" + "  returns integer as $$\n"
                     + "  begin\n" + "    execute '\n"
@@ -1717,26 +2859,7 @@ public class PostgresHelper implements GraphInterface {
                 + "      select key, value from ' || (format('edgeproperties%s', $1)) || ' where edgeid = ' || edge;\n"
                 + "  end;\n" + "$$ language plpgsql;");
 
-            execUpdate("CREATE OR REPLACE FUNCTION get_children(integer, integer, text, integer)\n"
-                + "  returns table(id bigint) as $$\n" + "  begin\n" + "    return query\n" + "    execute '\n"
-                + "    with recursive children(depth, nid, path, cycle, deleted) as (\n"
-                + "      select 0 as depth, node.id, ARRAY[node.id], false, node.deleted from ' || format('nodes%s', $3) || '\n"
-                + "        node where node.id = ' || $1 || ' union\n"
-                + "      select (c.depth + 1) as depth, edge.child as nid, path || cast(edge.child as bigint) as path, edge.child = ANY(path) as cycle, node.deleted as deleted \n"
-                + "        from ' || format('edges%s', $3) || ' edge, children c, ' || format('nodes%s', $3) || ' node where edge.parent = nid and node.id = edge.child and node.deleted = false and \n"
-                + "        edge.edgeType = ' || $2 || ' and not cycle and depth < ' || $4 || ' \n" + "      )\n"
-                + "      select distinct nid from children;';\n" + "  end;\n" + "$$ language plpgsql;");
-
-            execUpdate("CREATE OR REPLACE FUNCTION get_group_docs(integer, integer, text, integer, integer, integer)\n"
-                + "  returns table(id bigint) as $$\n" + "  begin\n" + "    return query\n" + "    execute '\n"
-                + "    with recursive children(depth, nid, path, cycle, deleted, ntype) as (\n"
-                + "      select 0 as depth, node.id, ARRAY[node.id], false, node.deleted, node.nodetype from ' || format('nodes%s', $3) || '\n"
-                + "        node where node.id = ' || $1 || '  union\n"
-                + "      select (c.depth + 1) as depth, edge.child as nid, path || cast(edge.child as bigint) as path, edge.child = ANY(path) as cycle, node.deleted as deleted, node.nodetype as ntype \n"
-                + "        from ' || format('edges%s', $3) || ' edge, children c, ' || format('nodes%s', $3) || ' node where edge.parent = nid and node.id = edge.child and node.deleted = false and \n"
-                + "        edge.edgeType = ' || $2 || ' and not cycle and depth < ' || $4 || ' and (node.nodetype <> '|| $5 ||' or nid = ' || $1 || ') \n"
-                + "      )\n" + "      select distinct nid from children where ntype = ' || $6 || ';';\n" + "  end;\n"
-                + "$$ language plpgsql;");
+            createGraphFunctions();
 
             execUpdate("CREATE OR REPLACE FUNCTION get_childviews(integer, text)\n"
                 + "  returns table(sysmlid text, aggregation text) as $$\n" + "  begin\n" + "    return query\n"
@@ -1751,30 +2874,6 @@ public class PostgresHelper implements GraphInterface {
                 + "        )\n" + "      )\n" + "      select sysmlid, aggregation from childviews;';\n" + "  end;\n"
                 + "$$ language plpgsql;");
 
-            execUpdate("CREATE OR REPLACE FUNCTION get_parents(integer, integer, text)\n"
-                + "  returns table(id bigint, height integer, root boolean) as $$\n" + "  begin\n"
-                + "    return query\n" + "    execute '\n"
-                + "    with recursive parents(height, nid, path, cycle) as (\n"
-                + "    select 0, node.id, ARRAY[node.id], false from ' || format('nodes%s', $3) || ' node where node.id = ' || $1 || '\n"
-                + "    union\n" + "      select (c.height + 1), edge.parent, path || cast(edge.parent as bigint),\n"
-                + "        edge.parent = ANY(path) from ' || format('edges%s', $3) || '\n"
-                + "        edge, parents c where edge.child = nid and edge.edgeType = ' || $2 || '\n"
-                + "        and not cycle\n" + "      )\n"
-                + "      select nid,height,(not exists (select true from edges where child = nid and edgetype = ' || $2 || '))\n"
-                + "        from parents order by height desc;';\n" + "  end;\n" + "$$ language plpgsql;");
-
-            execUpdate("CREATE OR REPLACE FUNCTION get_immediate_parents(integer, integer, text)\n"
-                + "  returns table(sysmlid text, elasticid text) as $$\n" + "  begin\n" + "    return query\n"
-                + "    execute '\n" + "    select sysmlid, elasticid from nodes' || $3 || ' where id in\n"
-                + "      (select id from get_parents(' || $1 || ',' || $2 || ',''' || format('%s',$3) ||\n"
-                + "      ''') where height = 1);';\n" + "  end;\n" + "$$ language plpgsql;");
-
-            execUpdate("CREATE OR REPLACE FUNCTION get_root_parents(integer, integer, text)\n"
-                + "  returns table(sysmlid text) as $$\n" + "  begin\n" + "    return query\n" + "    execute '\n"
-                + "    select sysmlid from nodes' || $3 || ' where id in\n"
-                + "      (select id from get_parents(' || $1 || ',' || $2 || ',''' || format('%s',$3) ||\n"
-                + "      ''') where root = true);';\n" + "  end;\n" + "$$ language plpgsql;");
-
             execUpdate("CREATE OR REPLACE FUNCTION get_immediate_parent_roots(integer, integer, text)\n"
                 + "  returns table(ip text, rp text) as $$\n" + "  declare\n" + "    s text;\n" + "    l text;\n"
                 + "  begin\n" + "    FOR s in select sysmlid from get_immediate_parents($1,$2,$3) LOOP\n"
@@ -1842,80 +2941,468 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
-    public void createBranchFromWorkspace(String childWorkspaceName, String workspaceName, String elasticId,
-        String commitId, boolean isTag) {
-        if (childWorkspaceName == null || childWorkspaceName.length() == 0 || childWorkspaceName.equals("master")) {
-            return;
-        }
+    /**
+     * Graph functions over the tables partitioned by ref. The queries are static so their plans are cached, the
+     * ref prunes them to the tables of one ref.
+     */
+    public void createGraphFunctions() {
+        execUpdate("CREATE OR REPLACE FUNCTION get_children(integer, integer, text, integer)\n"
+            + "  returns table(id bigint) as $$\n" + "  #variable_conflict use_column\n" + "  begin\n"
+            + "    return query\n" + "    with recursive children(depth, nid, path, cycle, deleted) as (\n"
+            + "      select 0 as depth, node.id, ARRAY[node.id], false, node.deleted from allnodes node\n"
+            + "        where node.refId = $3 and node.id = $1 union\n"
+            + "      select (c.depth + 1) as depth, edge.child as nid, path || cast(edge.child as bigint) as path, edge.child = ANY(path) as cycle, node.deleted as deleted\n"
+            + "        from alledges edge, children c, allnodes node where edge.refId = $3 and node.refId = $3 and edge.parent = nid and node.id = edge.child and node.deleted = false and\n"
+            + "        edge.edgeType = $2 and not cycle and depth < $4\n" + "      )\n"
+            + "      select distinct nid from children;\n" + "  end;\n" + "$$ language plpgsql;");
+
+        execUpdate("CREATE OR REPLACE FUNCTION get_group_docs(integer, integer, text, integer, integer, integer)\n"
+            + "  returns table(id bigint) as $$\n" + "  #variable_conflict use_column\n" + "  begin\n"
+            + "    return query\n" + "    with recursive children(depth, nid, path, cycle, deleted, ntype) as (\n"
+            + "      select 0 as depth, node.id, ARRAY[node.id], false, node.deleted, node.nodetype from allnodes node\n"
+            + "        where node.refId = $3 and node.id = $1 union\n"
+            + "      select (c.depth + 1) as depth, edge.child as nid, path || cast(edge.child as bigint) as path, edge.child = ANY(path) as cycle, node.deleted as deleted, node.nodetype as ntype\n"
+            + "        from alledges edge, children c, allnodes node where edge.refId = $3 and node.refId = $3 and edge.parent = nid and node.id = edge.child and node.deleted = false and\n"
+            + "        edge.edgeType = $2 and not cycle and depth < $4 and (node.nodetype <> $5 or nid = $1)\n"
+            + "      )\n" + "      select distinct nid from children where ntype = $6;\n" + "  end;\n"
+            + "$$ language plpgsql;");
+
+        execUpdate("CREATE OR REPLACE FUNCTION get_parents(integer, integer, text)\n"
+            + "  returns table(id bigint, height integer, root boolean) as $$\n" + "  #variable_conflict use_column\n"
+            + "  begin\n" + "    return query\n" + "    with recursive parents(height, nid, path, cycle) as (\n"
+            + "    select 0, node.id, ARRAY[node.id], false from allnodes node where node.refId = $3 and node.id = $1\n"
+            + "    union\n" + "      select (c.height + 1), edge.parent, path || cast(edge.parent as bigint),\n"
+            + "        edge.parent = ANY(path) from alledges edge, parents c\n"
+            + "        where edge.refId = $3 and edge.child = nid and edge.edgeType = $2 and not cycle\n" + "      )\n"
+            + "      select nid, height, (not exists (select true from alledges e where e.refId = $3 and e.child = nid and e.edgetype = $2))\n"
+            + "        from parents order by height desc;\n" + "  end;\n" + "$$ language plpgsql;");
+
+        execUpdate("CREATE OR REPLACE FUNCTION get_immediate_parents(integer, integer, text)\n"
+            + "  returns table(sysmlid text, elasticid text) as $$\n" + "  #variable_conflict use_column\n"
+            + "  begin\n" + "    return query\n"
+            + "    select node.sysmlid, node.elasticid from allnodes node where node.refId = $3 and node.id in\n"
+            + "      (select p.id from get_parents($1, $2, $3) p where p.height = 1);\n" + "  end;\n"
+            + "$$ language plpgsql;");
+
+        execUpdate("CREATE OR REPLACE FUNCTION get_root_parents(integer, integer, text)\n"
+            + "  returns table(sysmlid text) as $$\n" + "  #variable_conflict use_column\n" + "  begin\n"
+            + "    return query\n"
+            + "    select node.sysmlid from allnodes node where node.refId = $3 and node.id in\n"
+            + "      (select p.id from get_parents($1, $2, $3) p where p.root = true);\n" + "  end;\n"
+            + "$$ language plpgsql;");
+    }
 
+    /**
+     * Attaches the tables of every ref as partitions of allnodes, alledges and allartifacts. Columns added after
+     * this have to be added to the partitioned tables.
+     */
+    public void createRefPartitions() {
         try {
-            // make sure that foreign key constraints match mms.sql
-            String childWorkspaceNameSanitized = sanitizeRefId(childWorkspaceName);
+            attachRefPartitions("");
+            for (Pair<String, String> ref : getRefsElastic(true)) {
+                if (!ref.first.equals("master")) {
+                    attachRefPartitions(ref.first);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        createGraphFunctions();
+    }
+
+    /**
+     * Creates the indexes of REF_INDEXES for the tables of every ref and those of PROJECT_INDEXES, then drops the
+     * ones of SUPERSEDED_REF_INDEXES. Indexes left invalid by a failed concurrent build are dropped and built again.
+     *
+     * @param concurrently build without blocking writes, for projects in use
+     */
+    public void createIndexes(boolean concurrently) {
+        List<String> refs = new ArrayList<>();
+        refs.add("");
+        for (Pair<String, String> ref : getRefsElastic(true)) {
+            if (!ref.first.equals("master")) {
+                refs.add(ref.first);
+            }
+        }
+        List<String[]> indexes = new ArrayList<>();
+        List<String> superseded = new ArrayList<>();
+        for (String ref : refs) {
+            for (String[] index : REF_INDEXES) {
+                indexes.add(new String[] {index[0] + ref, index[1], index[2]});
+            }
+            for (String[] index : SUPERSEDED_REF_INDEXES) {
+                superseded.add(String.format("%s%s_%s_idx", index[0], ref, index[1]).toLowerCase());
+            }
+        }
+        indexes.addAll(Arrays.asList(PROJECT_INDEXES));
+
+        try (Statement statement = getConn().createStatement()) {
+            for (String[] index : indexes) {
+                String table = index[0];
+                String name = String.format("%s_%s_idx", table, index[1]).toLowerCase();
+                try {
+                    if (!tableExists(table)) {
+                        continue;
+                    }
+                    Boolean valid = isValidIndex(name);
+                    if (valid != null && valid) {
+                        continue;
+                    } else if (valid != null) {
+                        statement.executeUpdate(
+                            String.format("DROP INDEX %s%s", concurrently ? "CONCURRENTLY " : "", name));
+                    }
+                    statement.executeUpdate(String.format("CREATE INDEX %s%s ON %s %s",
+                        concurrently ? "CONCURRENTLY " : "", name, table, index[2]));
+                } catch (SQLException e) {
+                    logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+                }
+            }
+            for (String name : superseded) {
+                try {
+                    statement.executeUpdate(
+                        String.format("DROP INDEX %sIF EXISTS %s", concurrently ? "CONCURRENTLY " : "", name));
+                } catch (SQLException e) {
+                    logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return null if there is no such index
+     */
+    private Boolean isValidIndex(String name) throws SQLException {
+        try (PreparedStatement statement = getConn()
+            .prepareStatement("SELECT indisvalid FROM pg_index WHERE indexrelid = to_regclass(?)")) {
+            statement.setString(1, name);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? rs.getBoolean(1) : null;
+            }
+        }
+    }
+
+    /**
+     * @param ref sanitized ref id, empty for master
+     */
+    void attachRefPartitions(String ref) throws SQLException {
+        try (Statement statement = getConn().createStatement()) {
+            for (String name : REF_TABLES) {
+                String table = name + ref;
+                if (!tableExists(table)) {
+                    continue;
+                }
+                statement.executeUpdate(
+                    String.format("ALTER TABLE %s ADD COLUMN IF NOT EXISTS refId text NOT NULL DEFAULT '%s'", table, ref));
+                statement.executeUpdate(String.format("ALTER TABLE %s ALTER COLUMN refId SET DEFAULT '%s'", table, ref));
+                statement.executeUpdate(
+                    String.format("CREATE TABLE IF NOT EXISTS all%s (LIKE %s) PARTITION BY LIST (refId)", name, table));
+                if (isPartition(table)) {
+                    continue;
+                }
+                // a validated check lets the attach skip scanning the table under its lock
+                statement.executeUpdate(String.format("ALTER TABLE %s DROP CONSTRAINT IF EXISTS %s_refid_check", table, table));
+                statement.executeUpdate(String.format(
+                    "ALTER TABLE %1$s ADD CONSTRAINT %1$s_refid_check CHECK (refId = '%2$s') NOT VALID", table, ref));
+                statement.executeUpdate(String.format("ALTER TABLE %1$s VALIDATE CONSTRAINT %1$s_refid_check", table));
+                statement.executeUpdate(
+                    String.format("ALTER TABLE all%s ATTACH PARTITION %s FOR VALUES IN ('%s')", name, table, ref));
+                statement.executeUpdate(String.format("ALTER TABLE %1$s DROP CONSTRAINT %1$s_refid_check", table));
+            }
+        }
+    }
+
+    private void detachRefPartitions(String ref) throws SQLException {
+        try (Statement statement = getConn().createStatement()) {
+            for (String name : REF_TABLES) {
+                String table = name + ref;
+                if (tableExists(table) && isPartition(table)) {
+                    statement.executeUpdate(String.format("ALTER TABLE all%s DETACH PARTITION %s", name, table));
+                }
+            }
+        }
+    }
 
-            // insert record into workspace table
+    private boolean tableExists(String table) throws SQLException {
+        try (PreparedStatement statement = getConn().prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
 
-            execUpdate(String.format(
-                "CREATE TABLE nodes%s (LIKE nodes%s INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING INDEXES)",
-                childWorkspaceNameSanitized, workspaceId));
+    private boolean isPartition(String table) throws SQLException {
+        try (PreparedStatement statement = getConn()
+            .prepareStatement("SELECT relispartition FROM pg_class WHERE oid = ?::regclass")) {
+            statement.setString(1, table);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
+        }
+    }
 
-            execUpdate(String.format(
-                "CREATE TABLE edges%s (LIKE edges%s INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING INDEXES)",
-                childWorkspaceNameSanitized, workspaceId));
+    /**
+     * Copies the tables of the source ref for a new branch. Each table is loaded unlogged on its own connection
+     * and gets its indexes after the load, foreign keys are added unvalidated and validated at the end. All
+     * tables and the head commit are read as of one exported snapshot. The ref is only added once its tables
+     * are complete, if any step before fails the tables built so far are dropped.
+     *
+     * @return time in milliseconds of each step per table, or null if the branch could not be created
+     */
+    public JsonObject createBranchFromWorkspace(String childWorkspaceName, String workspaceName, String elasticId,
+        String commitId, boolean isTag) {
+        JsonObject timings = new JsonObject();
+        if (childWorkspaceName == null || childWorkspaceName.length() == 0 || childWorkspaceName.equals("master")) {
+            return timings;
+        }
 
-            execUpdate(String.format(
-                "CREATE TABLE artifacts%s (LIKE artifacts%s INCLUDING DEFAULTS INCLUDING CONSTRAINTS INCLUDING INDEXES)",
-                childWorkspaceNameSanitized, workspaceId));
+        // make sure that foreign key constraints match mms.sql
+        String childWorkspaceNameSanitized = sanitizeRefId(childWorkspaceName);
+        Map<String, Future<JsonObject>> tables = new LinkedHashMap<>();
+        Connection snapshot = null;
+        try {
+            boolean hasCommit = commitId != null && !commitId.isEmpty();
+
+            // the snapshot stays valid while this transaction is open, the copies import it so they see the
+            // same commits as the head commit read here
+            snapshot = getConn();
+            this.connMap.remove(project);
+            snapshot.setAutoCommit(false);
+            String snapshotId;
+            try (Statement statement = snapshot.createStatement()) {
+                statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+                try (ResultSet rs = statement.executeQuery("SELECT pg_export_snapshot()")) {
+                    rs.next();
+                    snapshotId = rs.getString(1);
+                }
+            }
 
             int commit = 0;
-            if (commitId != null && !commitId.isEmpty()) {
+            if (hasCommit) {
                 Map<String, Object> commitObject = getCommit(commitId);
                 if (commitObject != null && commitObject.containsKey(Sjm.SYSMLID)) {
                     commit = (int) commitObject.get(Sjm.SYSMLID);
                 }
             } else {
-                commit = getHeadCommit();
+                commit = getHeadCommit(snapshot);
             }
 
-            insertRef(childWorkspaceNameSanitized, workspaceName, commit, elasticId, isTag);
-            copyTable("nodes", childWorkspaceNameSanitized, workspaceId);
-            copyTable("artifacts", childWorkspaceNameSanitized, workspaceId);
-
-            if (commitId != null && !commitId.isEmpty()) {
-                execUpdate(String.format("UPDATE nodes%s SET deleted = true WHERE initialcommit IS NOT NULL",
-                    childWorkspaceNameSanitized));
-            } else {
-                copyTable("edges", childWorkspaceNameSanitized, workspaceId);
+            // edges of a branch from a past commit are rebuilt from the model at that commit
+            tables.put("nodes", submitTable("nodes", childWorkspaceNameSanitized, true, hasCommit, snapshotId));
+            tables.put("artifacts", submitTable("artifacts", childWorkspaceNameSanitized, true, false, snapshotId));
+            tables.put("edges", submitTable("edges", childWorkspaceNameSanitized, !hasCommit, false, snapshotId));
+            for (Map.Entry<String, Future<JsonObject>> table : tables.entrySet()) {
+                timings.add(table.getKey(), table.getValue().get());
             }
+            rollbackAndClose(snapshot, null);
+            snapshot = null;
 
             // add constraints last otherwise they won't hold
-            execUpdate(String.format(
-                "ALTER TABLE ONLY nodes%s ADD CONSTRAINT nodes%s_nodetype_fkey FOREIGN KEY (nodetype) REFERENCES nodetypes(id)",
-                childWorkspaceNameSanitized, childWorkspaceNameSanitized));
-            execUpdate(String.format(
-                "ALTER TABLE ONLY edges%s ADD CONSTRAINT edges%s_child_fkey FOREIGN KEY (child) REFERENCES nodes%s(id)",
-                childWorkspaceNameSanitized, childWorkspaceNameSanitized, childWorkspaceNameSanitized));
-            execUpdate(String.format(
-                "ALTER TABLE ONLY edges%s ADD CONSTRAINT edges%s_parent_fkey FOREIGN KEY (parent) REFERENCES nodes%s(id)",
-                childWorkspaceNameSanitized, childWorkspaceNameSanitized, childWorkspaceNameSanitized));
-            execUpdate(String.format(
-                "ALTER TABLE ONLY edges%s ADD CONSTRAINT edges%s_edgetype_fkey FOREIGN KEY (edgetype) REFERENCES edgetypes(id)",
-                childWorkspaceNameSanitized, childWorkspaceNameSanitized));
-
-            if (isTag && (commitId == null || commitId.isEmpty())) {
+            long start = System.currentTimeMillis();
+            String[] constraints = {
+                String.format("nodes%1$s ADD CONSTRAINT nodes%1$s_nodetype_fkey FOREIGN KEY (nodetype) REFERENCES nodetypes(id)",
+                    childWorkspaceNameSanitized),
+                String.format("edges%1$s ADD CONSTRAINT edges%1$s_child_fkey FOREIGN KEY (child) REFERENCES nodes%1$s(id)",
+                    childWorkspaceNameSanitized),
+                String.format("edges%1$s ADD CONSTRAINT edges%1$s_parent_fkey FOREIGN KEY (parent) REFERENCES nodes%1$s(id)",
+                    childWorkspaceNameSanitized),
+                String.format("edges%1$s ADD CONSTRAINT edges%1$s_edgetype_fkey FOREIGN KEY (edgetype) REFERENCES edgetypes(id)",
+                    childWorkspaceNameSanitized)
+            };
+            try (Statement statement = getConn().createStatement()) {
+                // NOT VALID only takes a short lock, validating afterwards does not block writes to the referenced tables
+                for (String constraint : constraints) {
+                    statement.executeUpdate(String.format("ALTER TABLE ONLY %s NOT VALID", constraint));
+                }
+                for (String constraint : constraints) {
+                    String[] parts = constraint.split(" ");
+                    statement.executeUpdate(
+                        String.format("ALTER TABLE ONLY %s VALIDATE CONSTRAINT %s", parts[0], parts[3]));
+                }
+            }
+            timings.addProperty("constraints", System.currentTimeMillis() - start);
+
+            if (tableExists("allnodes")) {
+                start = System.currentTimeMillis();
+                attachRefPartitions(childWorkspaceNameSanitized);
+                timings.addProperty("partitions", System.currentTimeMillis() - start);
+            }
+
+            insertRef(childWorkspaceNameSanitized, workspaceName, commit, elasticId, isTag);
+
+            if (isTag && !hasCommit) {
                 setAsTag(childWorkspaceNameSanitized);
             }
 
         } catch (Exception e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            if (!tables.isEmpty()) {
+                dropBranchTables(tables.values(), childWorkspaceNameSanitized);
+            }
+            return null;
+        } finally {
+            if (snapshot != null) {
+                rollbackAndClose(snapshot, null);
+            }
+            close();
+        }
+        return timings;
+    }
+
+    private Future<JsonObject> submitTable(String name, String toRef, boolean copy, boolean markDeleted,
+        String snapshotId) {
+        String fromRef = workspaceId;
+        return branchCopyPool.submit(() -> {
+            PostgresHelper pgh = new PostgresHelper();
+            pgh.setProject(project);
+            return pgh.materializeTable(name, toRef, fromRef, copy, markDeleted, snapshotId);
+        });
+    }
+
+    /**
+     * Waits for the copies still running, then drops every table of a branch that could not be created
+     */
+    private void dropBranchTables(Collection<Future<JsonObject>> copies, String ref) {
+        for (Future<JsonObject> copy : copies) {
+            try {
+                copy.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // the copy created nothing or is dropped below
+            }
+        }
+        execUpdate(String.format("DROP TABLE IF EXISTS edges%1$s, nodes%1$s, artifacts%1$s CASCADE", ref));
+    }
+
+    /**
+     * Creates one table of a branch on this helper's connection: load it unlogged without indexes as of the
+     * exported snapshot, switch it to logged, then build the primary key, unique constraints and indexes of the
+     * source table.
+     */
+    private JsonObject materializeTable(String name, String toRef, String fromRef, boolean copy, boolean markDeleted,
+        String snapshotId) throws SQLException {
+        JsonObject timings = new JsonObject();
+        String from = name + sanitizeRefId(fromRef);
+        String to = name + sanitizeRefId(toRef);
+        Connection connection = getConn();
+        try (Statement statement = connection.createStatement()) {
+            long start = System.currentTimeMillis();
+            connection.setAutoCommit(false);
+            statement.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            statement.execute(String.format("SET TRANSACTION SNAPSHOT '%s'", snapshotId));
+            statement.executeUpdate(String.format(
+                "CREATE UNLOGGED TABLE %s (LIKE %s INCLUDING DEFAULTS INCLUDING CONSTRAINTS)", to, from));
+            boolean partitioned = isPartition(from);
+            if (partitioned) {
+                statement.executeUpdate(
+                    String.format("ALTER TABLE %s ALTER COLUMN refId SET DEFAULT '%s'", to, sanitizeRefId(toRef)));
+            }
+            if (copy) {
+                if (partitioned) {
+                    // the copied rows take the ref of the new table
+                    String columns = String.join(", ", getColumns(from, "refid"));
+                    statement.executeUpdate(
+                        String.format("INSERT INTO %1$s (%2$s) SELECT %2$s FROM %3$s", to, columns, from));
+                } else {
+                    statement.executeUpdate(String.format("INSERT INTO %s SELECT * FROM %s", to, from));
+                }
+                if (markDeleted) {
+                    statement.executeUpdate(
+                        String.format("UPDATE %s SET deleted = true WHERE initialcommit IS NOT NULL", to));
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+            timings.addProperty("copy", System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            statement.executeUpdate(String.format("ALTER TABLE %s SET LOGGED", to));
+            timings.addProperty("logged", System.currentTimeMillis() - start);
+
+            start = System.currentTimeMillis();
+            for (String index : getIndexDefinitions(from, to)) {
+                statement.executeUpdate(index);
+            }
+            statement.executeUpdate(String.format("ANALYZE %s", to));
+            timings.addProperty("indexes", System.currentTimeMillis() - start);
         } finally {
+            if (connection != null && !connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
             close();
         }
+        return timings;
+    }
+
+    private List<String> getColumns(String table, String except) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (PreparedStatement statement = getConn().prepareStatement(
+            "SELECT attname FROM pg_attribute WHERE attrelid = ?::regclass AND attnum > 0 AND NOT attisdropped AND attname <> ? ORDER BY attnum")) {
+            statement.setString(1, table);
+            statement.setString(2, except);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(rs.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * @return statements that give table to the primary key, unique constraints and indexes of table from
+     */
+    private List<String> getIndexDefinitions(String from, String to) throws SQLException {
+        List<String> definitions = new ArrayList<>();
+        try (PreparedStatement statement = getConn().prepareStatement(
+            "SELECT conname, pg_get_constraintdef(oid) FROM pg_constraint WHERE conrelid = ?::regclass AND contype IN ('p', 'u') ORDER BY contype")) {
+            statement.setString(1, from);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    String constraint = rs.getString(1);
+                    String suffix = constraint.startsWith(from.toLowerCase()) ?
+                        constraint.substring(from.length()) :
+                        "_" + constraint;
+                    definitions.add(
+                        String.format("ALTER TABLE %s ADD CONSTRAINT %s%s %s", to, to, suffix, rs.getString(2)));
+                }
+            }
+        }
+        try (PreparedStatement statement = getConn().prepareStatement(
+            "SELECT pg_get_indexdef(i.indexrelid) FROM pg_index i WHERE i.indrelid = ?::regclass AND NOT EXISTS (SELECT 1 FROM pg_constraint c WHERE c.conindid = i.indexrelid)")) {
+            statement.setString(1, from);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    definitions.add(rs.getString(1)
+                        .replaceFirst("^CREATE (UNIQUE )?INDEX \\S+ ON (ONLY )?\\S+ ", "CREATE $1INDEX ON " + to + " "));
+                }
+            }
+        }
+        return definitions;
     }
 
-    private void copyTable(String name, String toRef, String fromRef) {
+    /**
+     * Removes what a failed or interrupted branch left behind so it can be created again
+     */
+    public void dropPartialBranch(String refId) {
+        String ref = sanitizeRefId(refId);
+        if (ref.isEmpty() || ref.equals("master")) {
+            return;
+        }
         try {
-            execUpdate(String.format("INSERT INTO %1$s%2$s SELECT * FROM %1$s%3$s", name, sanitizeRefId(toRef),
-                sanitizeRefId(fromRef)));
+            execUpdate(String.format("DROP TABLE IF EXISTS edges%1$s, nodes%1$s, artifacts%1$s CASCADE", ref));
+            try (PreparedStatement statement = prepareStatement("DELETE FROM refs WHERE refId = ?")) {
+                statement.setString(1, ref);
+                statement.executeUpdate();
+            }
         } catch (Exception e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
         } finally {
@@ -1958,10 +3445,18 @@ public class PostgresHelper implements GraphInterface {
         }
     }
 
+    /**
+     * Marks the ref deleted and detaches its tables from allnodes, alledges and allartifacts so queries across
+     * refs no longer see its rows. The tables themselves are kept.
+     */
     public void deleteRef(String refId) {
+        String ref = sanitizeRefId(refId);
         try (PreparedStatement statement = prepareStatement("UPDATE refs SET deleted = true WHERE refId = ?")) {
-            statement.setString(1, sanitizeRefId(refId));
+            statement.setString(1, ref);
             statement.executeUpdate();
+            if (!ref.isEmpty()) {
+                detachRefPartitions(ref);
+            }
         } catch (Exception e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
         } finally {
@@ -2144,6 +3639,48 @@ public class PostgresHelper implements GraphInterface {
         return result;
     }
 
+    /**
+     * Commits made on a ref after a commit, oldest first. Commit ids are assigned in the order commits become
+     * visible (see insertCommitInTransaction), so a commit can not appear later with an id below the last one seen.
+     *
+     * @param refId    ref the commits were made on
+     * @param commitId numeric id of the last commit already seen
+     * @param limit    max number of commits
+     */
+    public List<Map<String, Object>> getRefsCommitsAfter(String refId, int commitId, int limit) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        String refIdString = sanitizeRefId(refId);
+        if (refId.equals("master")) {
+            refId = "";
+        }
+        if (refIdString.equals("")) {
+            refIdString = "master";
+        }
+        try (PreparedStatement statement = prepareStatement(
+            "SELECT commits.id, elasticId, creator, timestamp, commitType.name FROM commits JOIN commitType ON commitType.id = commits.commitType WHERE (refId = ? OR refId = ?) AND commits.id > ? ORDER BY commits.id ASC LIMIT ?")) {
+            statement.setString(1, refId);
+            statement.setString(2, refIdString);
+            statement.setInt(3, commitId);
+            statement.setInt(4, limit);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    Map<String, Object> commit = new HashMap<>();
+                    commit.put("id", rs.getInt(1));
+                    commit.put(Sjm.SYSMLID, rs.getString(2));
+                    commit.put(Sjm.CREATOR, rs.getString(3));
+                    commit.put(Sjm.CREATED, rs.getTimestamp(4));
+                    commit.put("commitType", rs.getString(5));
+                    result.add(commit);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        } finally {
+            close();
+        }
+        return result;
+    }
+
     public String getProjectInitialCommit() {
         try (PreparedStatement statement = prepareStatement(
             "SELECT elasticid FROM commits WHERE id = (SELECT min(id) FROM commits)")) {
@@ -2262,6 +3799,18 @@ public class PostgresHelper implements GraphInterface {
      * @param databaseName
      */
     public void dropDatabase(String databaseName) {
+        setProject(databaseName);
+        String schema = getProjectSchema();
+        if (schema != null) {
+            try (Statement statement = getConn().createStatement()) {
+                statement.execute(String.format("DROP SCHEMA IF EXISTS \"%s\" CASCADE;", schema));
+            } catch (SQLException e) {
+                logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            } finally {
+                close();
+            }
+            return;
+        }
         // SQL Injection Vulnerability avoidance tryhard
         String sanitizedDBName = StringEscapeUtils.escapeSql(databaseName);
         String query = "ALTER DATABASE  \"_" + sanitizedDBName + "\" CONNECTION LIMIT 0";
@@ -1,40 +1,124 @@
 package gov.nasa.jpl.view_repo.db;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalCause;
-import com.google.common.cache.RemovalNotification;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import org.apache.commons.dbcp.BasicDataSource;
 
 import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.LogUtil;
 import org.apache.log4j.Logger;
 
-public class PostgresPool {
+public class PostgresPool implements PostgresPoolMXBean {
     static Logger logger = Logger.getLogger(PostgresPool.class);
 
     static final int MAX_IDLE_CONN = 2;
     static final int MIN_IDLE_CONN = 0;
     static final int MAX_ACTIVE_CONN = 96;
     static final int MAX_CONN_LIMIT = 192;
+    static final int MAX_BULK_CONN = 8;
 
     static final String PG_CONN_MAX = "pg.conn.max";
     static final String PG_USER = "pg.user";
     static final String PG_PASS = "pg.pass";
     static final String PG_SEC = "pg.secured";
 
+    // seconds between demand samples, and seconds without checkouts before a pool lets go of its idle connections
+    private static final int SAMPLE_SECONDS = EmsConfig.getInt("pg.pool.sample", 10);
+    private static final int IDLE_SECONDS = EmsConfig.getInt("pg.pool.idle", 300);
+    // share of the previous demand kept at each sample, so idle connections follow a burst down slowly
+    private static final double DEMAND_DECAY = 0.8;
+    // upper bounds in ms of the checkout wait histogram, the last bucket counts longer waits
+    private static final long[] WAIT_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+    /**
+     * Kinds of traffic that get separate pools for each database, so background jobs cannot use up the
+     * connections user requests need. Settings are read from prefix.max, prefix.wait and prefix.statementTimeout.
+     */
+    public enum Workload {
+        INTERACTIVE("pg.conn", MAX_ACTIVE_CONN, 10000, true),
+        BULK("pg.bulk", MAX_BULK_CONN, 60000, false);
+
+        private final String prefix;
+        private final int maxActive;
+        private final int maxWait;
+        private final boolean removeAbandoned;
+
+        Workload(String prefix, int maxActive, int maxWait, boolean removeAbandoned) {
+            this.prefix = prefix;
+            this.maxActive = maxActive;
+            this.maxWait = maxWait;
+            this.removeAbandoned = removeAbandoned;
+        }
+
+        int getMaxActive() {
+            return EmsConfig.getInt(prefix + ".max", maxActive);
+        }
+
+        int getMaxWait() {
+            return EmsConfig.getInt(prefix + ".wait", maxWait);
+        }
+
+        int getStatementTimeout() {
+            return EmsConfig.getInt(prefix + ".statementTimeout", 0);
+        }
+    }
+
+    private static final ThreadLocal<Workload> threadWorkload = ThreadLocal.withInitial(() -> Workload.INTERACTIVE);
+
     private String host;
     private String name;
+    private Workload workload;
     private String connectString;
     private BasicDataSource bds = null;
 
-    private static Map<String, PostgresPool> dataSources = new HashMap<>();
-    private static Map<String, Cache<String, PostgresPool>> activeDataSources = new HashMap<>();
+    private final LongAdder checkouts = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder[] waitHistogram = new LongAdder[WAIT_BUCKETS.length + 1];
+    private final AtomicInteger waiters = new AtomicInteger();
+    private volatile long lastCheckout = System.currentTimeMillis();
+    private volatile boolean idle = false;
+    // only changed by the monitor thread
+    private long sampledCheckouts = 0;
+    private volatile double checkoutRate = 0;
+    private volatile double demand = 0;
+    private volatile int targetIdle = MAX_IDLE_CONN;
+
+    private static final Map<String, PostgresPool> dataSources = new ConcurrentHashMap<>();
+    private static final Object limitLock = new Object();
+
+    private static final ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "pg-pool-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        monitor.scheduleWithFixedDelay(PostgresPool::sampleAll, SAMPLE_SECONDS, SAMPLE_SECONDS, TimeUnit.SECONDS);
+    }
 
 
     interface IBasicDataSourceFactory {
@@ -44,26 +128,36 @@ public class PostgresPool {
 
     private static IBasicDataSourceFactory basicDataSourceFactory = null;
 
-    private PostgresPool(String host, String name) {
+    private PostgresPool(String host, String name, Workload workload) {
         this.host = host;
         this.name = name;
-        this.connectString = getConnectString(host, name);
+        this.workload = workload;
+        this.connectString = getConnectString(host, name, workload);
+        for (int i = 0; i < waitHistogram.length; i++) {
+            waitHistogram[i] = new LongAdder();
+        }
 
         this.bds = getBasicDataSourceFactory().getNewBasicDataSource();
         this.bds.setDriverClassName("org.postgresql.Driver");
-        this.bds.setUrl(this.connectString);
+        this.bds.setUrl(getConnectString(host, name));
         this.bds.setUsername(EmsConfig.get(PG_USER));
         this.bds.setPassword(EmsConfig.get(PG_PASS));
-        this.bds.setInitialSize(10);
+        this.bds.setInitialSize(Math.min(10, workload.getMaxActive()));
         this.bds.setMaxIdle(MAX_IDLE_CONN);
         this.bds.setMinIdle(MIN_IDLE_CONN);
-        this.bds.setMaxActive(
-            (!EmsConfig.get(PG_CONN_MAX).equals("")) ? Integer.parseInt(EmsConfig.get(PG_CONN_MAX)) : MAX_ACTIVE_CONN);
-        this.bds.setMaxWait(10000);
+        this.bds.setMaxActive(workload.getMaxActive());
+        this.bds.setMaxWait(workload.getMaxWait());
         this.bds.setDefaultAutoCommit(true);
-        this.bds.setRemoveAbandonedTimeout(1);
-        this.bds.setLogAbandoned(true);
-        this.bds.setRemoveAbandoned(true);
+        // long running batch statements must not be taken for abandoned connections
+        if (workload.removeAbandoned) {
+            this.bds.setRemoveAbandonedTimeout(1);
+            this.bds.setLogAbandoned(true);
+            this.bds.setRemoveAbandoned(true);
+        }
+        if (workload.getStatementTimeout() > 0) {
+            this.bds.setConnectionInitSqls(
+                Collections.singletonList("SET statement_timeout = " + workload.getStatementTimeout()));
+        }
         this.bds.setTimeBetweenEvictionRunsMillis(1000 * 60);
         this.bds.setMinEvictableIdleTimeMillis(1000 * 60 * 5);
 
@@ -76,33 +170,92 @@ public class PostgresPool {
         return host + name;
     }
 
-    public static synchronized PostgresPool getInstance(String host, String name) {
-        String connectString = getConnectString(host, name);
-        Cache<String, PostgresPool> cache = getActiveDatasetCache(host);
-        PostgresPool pool = cache.getIfPresent(connectString);
+    /**
+     * Unpooled connection for COPY streams, which need the driver's own connection class
+     */
+    static Connection getDirectConnection(String host, String name) throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", EmsConfig.get(PG_USER));
+        props.setProperty("password", EmsConfig.get(PG_PASS));
+        if (EmsConfig.get(PG_SEC) != null && EmsConfig.get(PG_SEC).equalsIgnoreCase("true")) {
+            props.setProperty("ssl", "true");
+        }
+        return DriverManager.getConnection(getConnectString(host, name), props);
+    }
+
+    private static String getConnectString(String host, String name, Workload workload) {
+        return workload == Workload.INTERACTIVE ? getConnectString(host, name) :
+            getConnectString(host, name) + "#" + workload.name().toLowerCase();
+    }
+
+    /**
+     * @return pool for the workload of the current thread
+     */
+    public static PostgresPool getInstance(String host, String name) {
+        return getInstance(host, name, getWorkload());
+    }
+
+    public static PostgresPool getInstance(String host, String name, Workload workload) {
+        String connectString = getConnectString(host, name, workload);
+        PostgresPool pool = dataSources.get(connectString);
         if (pool == null) {
-            pool = dataSources.get(connectString);
-            if (pool == null) {
-                pool = newInstance(host, name);
-                dataSources.put(connectString, pool);
-            }
+            pool = dataSources.computeIfAbsent(connectString, k -> newInstance(host, name, workload));
+            pool.register();
+            enforceHostLimit(host);
         }
         return pool;
     }
 
-    private static PostgresPool newInstance(String host, String name) {
-        return new PostgresPool(host, name);
+    private static PostgresPool newInstance(String host, String name, Workload workload) {
+        return new PostgresPool(host, name, workload);
+    }
+
+    /**
+     * Workload used by database connections opened on the current thread
+     */
+    public static Workload getWorkload() {
+        return threadWorkload.get();
+    }
+
+    /**
+     * Send database connections opened on the current thread to the pools of a workload until reset with null
+     */
+    public static void setWorkload(Workload workload) {
+        if (workload == null) {
+            threadWorkload.remove();
+        } else {
+            threadWorkload.set(workload);
+        }
     }
 
     public Connection getConnection() throws SQLException {
         goActive();
-        Connection connection = this.bds.getConnection();
-        updatePool();
-        return connection;
+        lastCheckout = System.currentTimeMillis();
+        waiters.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            Connection connection = this.bds.getConnection();
+            checkouts.increment();
+            return connection;
+        } catch (SQLException e) {
+            if (e.getCause() instanceof NoSuchElementException) {
+                timeouts.increment();
+            }
+            throw e;
+        } finally {
+            waiters.decrementAndGet();
+            recordWait(System.nanoTime() - start);
+        }
     }
 
-    private void updatePool() {
-        getActiveDatasetCache(host).put(this.connectString, this);
+    private void recordWait(long nanos) {
+        waitNanos.add(nanos);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < WAIT_BUCKETS.length && millis > WAIT_BUCKETS[bucket]) {
+            bucket++;
+        }
+        waitHistogram[bucket].increment();
     }
 
     private int getWeight() {
@@ -110,17 +263,220 @@ public class PostgresPool {
     }
 
     private void goActive() {
-        this.bds.setMaxIdle(MAX_IDLE_CONN);
+        if (idle) {
+            idle = false;
+            this.bds.setMaxIdle(targetIdle);
+        }
     }
 
     private void goIdle() {
+        idle = true;
         this.bds.setMaxIdle(MIN_IDLE_CONN);
         if (this.bds.getNumActive() > 0) {
-            logger.warn("Database connection pool (" + getConnectString(host, name)
+            logger.warn("Database connection pool (" + connectString
                 + ") with active connections was instructed to go idle.  Database may be overloaded");
         }
     }
 
+    /**
+     * Keeps as many idle connections as the pool recently had in use, and lets go of them once the pool has not
+     * been used for pg.pool.idle seconds
+     */
+    private void sample() {
+        long total = checkouts.sum();
+        checkoutRate = (double) (total - sampledCheckouts) / SAMPLE_SECONDS;
+        sampledCheckouts = total;
+
+        if (idle) {
+            return;
+        }
+        if (System.currentTimeMillis() - lastCheckout > TimeUnit.SECONDS.toMillis(IDLE_SECONDS)) {
+            goIdle();
+            return;
+        }
+        demand = Math.max(this.bds.getNumActive() + waiters.get(), demand * DEMAND_DECAY);
+        int target = Math.min(Math.max((int) Math.ceil(demand), MAX_IDLE_CONN), workload.getMaxActive());
+        if (target != targetIdle) {
+            targetIdle = target;
+            this.bds.setMaxIdle(target);
+        }
+    }
+
+    private static void sampleAll() {
+        try {
+            for (PostgresPool pool : dataSources.values()) {
+                pool.sample();
+            }
+            for (String host : getHosts()) {
+                enforceHostLimit(host);
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+    }
+
+    private static List<String> getHosts() {
+        List<String> hosts = new ArrayList<>();
+        for (PostgresPool pool : dataSources.values()) {
+            if (!hosts.contains(pool.host)) {
+                hosts.add(pool.host);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Idles the least recently used pools of a host while its pools hold more than MAX_CONN_LIMIT connections
+     */
+    private static void enforceHostLimit(String host) {
+        synchronized (limitLock) {
+            List<PostgresPool> pools = new ArrayList<>();
+            int weight = 0;
+            for (PostgresPool pool : dataSources.values()) {
+                if (pool.host.equals(host) && !pool.idle) {
+                    pools.add(pool);
+                    weight += pool.getWeight();
+                }
+            }
+            if (weight <= MAX_CONN_LIMIT) {
+                return;
+            }
+            pools.sort(Comparator.comparingLong(pool -> pool.lastCheckout));
+            for (PostgresPool pool : pools) {
+                if (weight <= MAX_CONN_LIMIT) {
+                    break;
+                }
+                weight -= pool.getWeight();
+                pool.goIdle();
+            }
+        }
+    }
+
+    private ObjectName getObjectName() throws JMException {
+        return new ObjectName(String.format("gov.nasa.jpl.mms:type=PostgresPool,host=%s,database=%s,workload=%s",
+            ObjectName.quote(host), ObjectName.quote(name), workload.name().toLowerCase()));
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+    }
+
+    private void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+    }
+
+    @Override public String getHost() {
+        return host;
+    }
+
+    @Override public String getDatabase() {
+        return name;
+    }
+
+    @Override public String getWorkloadName() {
+        return workload.name().toLowerCase();
+    }
+
+    @Override public int getActive() {
+        return this.bds.getNumActive();
+    }
+
+    @Override public int getIdle() {
+        return this.bds.getNumIdle();
+    }
+
+    @Override public int getMaxActive() {
+        return this.bds.getMaxActive();
+    }
+
+    @Override public int getMaxIdle() {
+        return idle ? MIN_IDLE_CONN : targetIdle;
+    }
+
+    @Override public int getWaiters() {
+        return waiters.get();
+    }
+
+    @Override public long getCheckouts() {
+        return checkouts.sum();
+    }
+
+    @Override public double getCheckoutRate() {
+        return checkoutRate;
+    }
+
+    @Override public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override public long getWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    @Override public Map<String, Long> getWaitHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < waitHistogram.length; i++) {
+            histogram.put(i < WAIT_BUCKETS.length ? String.valueOf(WAIT_BUCKETS[i]) : "inf", waitHistogram[i].sum());
+        }
+        return histogram;
+    }
+
+    @Override public boolean isIdle() {
+        return idle;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("host", host);
+        json.addProperty("database", name);
+        json.addProperty("workload", getWorkloadName());
+        json.addProperty("active", getActive());
+        json.addProperty("idle", getIdle());
+        json.addProperty("maxActive", getMaxActive());
+        json.addProperty("maxIdle", getMaxIdle());
+        json.addProperty("waiters", getWaiters());
+        json.addProperty("checkouts", getCheckouts());
+        json.addProperty("checkoutsPerSecond", getCheckoutRate());
+        json.addProperty("timeouts", getTimeouts());
+        json.addProperty("waitMillis", getWaitMillis());
+        JsonObject histogram = new JsonObject();
+        for (Map.Entry<String, Long> bucket : getWaitHistogram().entrySet()) {
+            histogram.addProperty(bucket.getKey(), bucket.getValue());
+        }
+        json.add("waitHistogramMillis", histogram);
+        json.addProperty("demand", demand);
+        json.addProperty("poolIdle", idle);
+        return json;
+    }
+
+    /**
+     * @return stats of every pool
+     */
+    public static JsonArray getStats() {
+        JsonArray stats = new JsonArray();
+        for (PostgresPool pool : dataSources.values()) {
+            stats.add(pool.toJson());
+        }
+        return stats;
+    }
+
     public static Connection getStandaloneConnection(String host, String name) throws SQLException {
         BasicDataSource bds = getBasicDataSourceFactory().getNewBasicDataSource();
         bds.setDriverClassName("org.postgresql.Driver");
@@ -146,31 +502,28 @@ public class PostgresPool {
      * @param name
      */
     static void removeConnection(String host, String name) {
-        String connectString;
         //TODO: Why is this different here??
         if (!name.startsWith("_")) {
-            connectString = host + "_" + name;
-        } else {
-            connectString = host + name;
+            name = "_" + name;
         }
-        dataSources.remove(connectString);
-        getActiveDatasetCache(host).invalidate(connectString);
+        closePool(host, name);
     }
 
-    private static Cache<String, PostgresPool> getActiveDatasetCache(String host) {
-        Cache<String, PostgresPool> cache = activeDataSources.get((host));
-
-        if (cache == null) {
-            cache = CacheBuilder.newBuilder().maximumWeight(MAX_CONN_LIMIT)
-                .weigher((String key, PostgresPool pool) -> pool.getWeight()).expireAfterAccess(5, TimeUnit.MINUTES)
-                .removalListener((RemovalNotification<String, PostgresPool> v) -> {
-                    if (v.getCause() != RemovalCause.REPLACED) {
-                        v.getValue().goIdle();
-                    }
-                }).build();
-            activeDataSources.put(host, cache);
+    /**
+     * Closes the pools of a database by its exact name, databases used as templates must have no sessions
+     */
+    static void closePool(String host, String name) {
+        for (Workload workload : Workload.values()) {
+            PostgresPool pool = dataSources.remove(getConnectString(host, name, workload));
+            if (pool != null) {
+                pool.unregister();
+                try {
+                    pool.bds.close();
+                } catch (SQLException e) {
+                    logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+                }
+            }
         }
-        return cache;
     }
 
 
@@ -186,13 +539,15 @@ public class PostgresPool {
     }
 
     static void purgeDatabasePools() {
-        activeDataSources.clear();
+        for (PostgresPool pool : dataSources.values()) {
+            pool.unregister();
+        }
         dataSources.clear();
     }
 
     static void idleDatabasePools() {
-        for (Cache<String, PostgresPool> cache : activeDataSources.values()) {
-            cache.invalidateAll();
+        for (PostgresPool pool : dataSources.values()) {
+            pool.goIdle();
         }
     }
 
@@ -0,0 +1,50 @@
+package gov.nasa.jpl.view_repo.db;
+
+import java.util.Map;
+
+/**
+ * Connection pool stats of one database and workload, registered as
+ * gov.nasa.jpl.mms:type=PostgresPool,host=...,database=...,workload=...
+ */
+public interface PostgresPoolMXBean {
+
+    String getHost();
+
+    String getDatabase();
+
+    String getWorkloadName();
+
+    int getActive();
+
+    int getIdle();
+
+    int getMaxActive();
+
+    int getMaxIdle();
+
+    /**
+     * @return threads waiting for a connection right now
+     */
+    int getWaiters();
+
+    long getCheckouts();
+
+    /**
+     * @return checkouts per second over the last sample
+     */
+    double getCheckoutRate();
+
+    long getTimeouts();
+
+    /**
+     * @return total time spent waiting for connections
+     */
+    long getWaitMillis();
+
+    /**
+     * @return checkouts by wait time, keyed by the upper bound of each bucket in ms
+     */
+    Map<String, Long> getWaitHistogram();
+
+    boolean isIdle();
+}
@@ -0,0 +1,114 @@
+package gov.nasa.jpl.view_repo.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.LogUtil;
+
+/**
+ * Sends project database reads of read-only requests to the replica of pg.host set in pg.host.replica. A request
+ * stays on the primary while the replica has not replayed the commit it asked for, or the last commit this server
+ * wrote to the project, so clients read their own writes.
+ */
+public class ReplicaRouter {
+    static Logger logger = Logger.getLogger(ReplicaRouter.class);
+
+    private static final String PRIMARY = EmsConfig.get("pg.host");
+    private static final String REPLICA = EmsConfig.get("pg.host.replica");
+
+    // projects routed so far in the current request, null outside read-only requests
+    private static final ThreadLocal<Map<String, String>> routes = new ThreadLocal<>();
+    private static final ThreadLocal<String> requestCommit = new ThreadLocal<>();
+
+    private static final Map<String, String> lastCommits = new ConcurrentHashMap<>();
+    // commits already seen on the replica, replayed commits do not go away
+    private static final Cache<String, Boolean> replayed = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    private ReplicaRouter() {
+    }
+
+    public static boolean isEnabled() {
+        return REPLICA != null && !REPLICA.isEmpty();
+    }
+
+    /**
+     * Route the project databases read by the current thread to the replica until end is called
+     *
+     * @param commitId commit the request reads at, or null for the head
+     */
+    public static void begin(String commitId) {
+        if (isEnabled()) {
+            routes.set(new HashMap<>());
+            requestCommit.set(commitId);
+        }
+    }
+
+    public static void end() {
+        routes.remove();
+        requestCommit.remove();
+    }
+
+    /**
+     * Remember the last commit written to a project on this server, reads of the project stay on the primary
+     * until the replica has it
+     */
+    public static void recordCommit(String projectId, String commitId) {
+        if (isEnabled() && projectId != null && commitId != null && !commitId.isEmpty()) {
+            lastCommits.put(projectId, commitId);
+        }
+    }
+
+    /**
+     * @param location primary host of the project database
+     * @param schema schema of the project in a shared database, or null
+     * @return host to connect to for the project database
+     */
+    static String getHost(String projectId, String location, String dbname, String schema) {
+        Map<String, String> routed = routes.get();
+        if (routed == null || !location.equals(PRIMARY)) {
+            return location;
+        }
+        return routed.computeIfAbsent(projectId, k -> {
+            String[] required = {requestCommit.get(), lastCommits.get(projectId)};
+            for (String commitId : required) {
+                if (commitId != null && !commitId.isEmpty() && !hasReplayed(dbname, schema, commitId)) {
+                    return location;
+                }
+            }
+            return REPLICA;
+        });
+    }
+
+    private static boolean hasReplayed(String dbname, String schema, String commitId) {
+        String key = dbname + "/" + schema + "/" + commitId;
+        String commits = schema == null ? "commits" : String.format("\"%s\".commits", schema);
+        if (replayed.getIfPresent(key) != null) {
+            return true;
+        }
+        try (Connection connection = PostgresPool.getInstance(REPLICA, dbname).getConnection();
+            PreparedStatement statement = connection
+                .prepareStatement(String.format("SELECT 1 FROM %s WHERE elasticId = ?", commits))) {
+            statement.setString(1, commitId);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    replayed.put(key, true);
+                    return true;
+                }
+            }
+        } catch (SQLException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+        return false;
+    }
+}
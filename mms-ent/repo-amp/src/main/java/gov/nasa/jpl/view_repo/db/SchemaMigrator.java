@@ -0,0 +1,335 @@
+package gov.nasa.jpl.view_repo.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOut;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.view_repo.util.LogUtil;
+import gov.nasa.jpl.view_repo.util.ProjectLocks;
+
+/**
+ * Moves a project from its own database into a schema of the shared database. The source database is made read-only
+ * for the copy and left in place, so it can be dropped once the project has been checked.
+ */
+public class SchemaMigrator {
+    static Logger logger = Logger.getLogger(SchemaMigrator.class);
+
+    private static final ProjectLocks storageLocks = ProjectLocks.get("storage");
+    private static final String[] BRANCH_TABLES = {"nodes", "edges", "artifacts"};
+
+    private SchemaMigrator() {
+    }
+
+    /**
+     * @return tables and rows copied, null if the project could not be moved
+     */
+    public static JsonObject migrate(String projectId) {
+        Lock lock = storageLocks.lock(projectId);
+        try {
+            return migrateLocked(projectId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static JsonObject migrateLocked(String projectId) {
+        long start = System.currentTimeMillis();
+        JsonObject result = new JsonObject();
+        result.addProperty("projectId", projectId);
+
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(projectId);
+        if (pgh.getProjectSchema() != null) {
+            result.addProperty("schema", pgh.getProjectSchema());
+            result.addProperty("status", "unchanged");
+            return result;
+        }
+        String location = pgh.getProjectLocation();
+        String source = pgh.getProjectDatabase();
+
+        if (!pgh.createProjectSchema(projectId)) {
+            return null;
+        }
+        String schema = pgh.getProjectSchema();
+        String target = pgh.getProjectDatabase();
+
+        try {
+            setReadOnly(location, source, true);
+            PostgresPool.removeConnection(location, source);
+            terminateSessions(location, source);
+
+            try (Connection from = PostgresPool.getDirectConnection(location, source);
+                Connection to = PostgresPool.getDirectConnection(location, target)) {
+                try (Statement statement = to.createStatement()) {
+                    statement.execute(String.format("SET search_path TO \"%s\", public", schema));
+                }
+                result.add("tables", copyTables(from, to, pgh));
+                copySequences(from, to);
+            }
+
+            pgh.setProjectSchema(projectId, schema);
+            PostgresPool.removeConnection(location, source);
+        } catch (SQLException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            dropSchema(location, target, schema);
+            try {
+                setReadOnly(location, source, false);
+            } catch (SQLException e2) {
+                logger.error(String.format("%s", LogUtil.getStackTrace(e2)));
+            }
+            return null;
+        }
+
+        result.addProperty("schema", schema);
+        result.addProperty("database", target);
+        result.addProperty("source", source);
+        result.addProperty("status", "migrated");
+        result.addProperty("millis", System.currentTimeMillis() - start);
+        return result;
+    }
+
+    private static JsonArray copyTables(Connection from, Connection to, PostgresHelper pgh) throws SQLException {
+        List<String> sourceTables = listTables(from, "public");
+        List<String> targetTables = listTables(to, null);
+
+        // branch tables are made like the tables of master, anything else the project tables do not have is left
+        List<String> created = new ArrayList<>();
+        try (Statement statement = to.createStatement()) {
+            for (String table : sourceTables) {
+                if (targetTables.contains(table)) {
+                    continue;
+                }
+                String base = getBranchBase(table);
+                if (base == null) {
+                    logger.warn(String.format("Skipping table %s", table));
+                    continue;
+                }
+                statement.execute(String.format("CREATE TABLE \"%s\" (LIKE %s INCLUDING ALL)", table, base));
+                if (listColumns(to, null, table).contains("refid")) {
+                    statement.execute(String.format("ALTER TABLE \"%s\" ALTER COLUMN refId SET DEFAULT '%s'", table,
+                        table.substring(base.length())));
+                }
+                created.add(table);
+                targetTables.add(table);
+            }
+        }
+
+        List<String> tables = new ArrayList<>();
+        for (String table : sourceTables) {
+            if (targetTables.contains(table)) {
+                tables.add(table);
+            }
+        }
+        // referenced tables load first, the rows seeded by createProjectTables are replaced
+        tables.sort(Comparator.comparingInt(SchemaMigrator::getLoadOrder));
+        try (Statement statement = to.createStatement()) {
+            statement.execute(String.format("TRUNCATE %s", String.join(", ", quote(tables))));
+        }
+
+        CopyManager fromCopy = from.unwrap(PGConnection.class).getCopyAPI();
+        CopyManager toCopy = to.unwrap(PGConnection.class).getCopyAPI();
+        JsonArray copied = new JsonArray();
+        for (String table : tables) {
+            long tableStart = System.currentTimeMillis();
+            String columns = String.join(", ", quote(listColumns(from, "public", table)));
+            long rows = copyTable(fromCopy, toCopy, table, columns);
+            try (Statement statement = to.createStatement()) {
+                statement.execute(String.format("ANALYZE \"%s\"", table));
+            }
+            JsonObject stats = new JsonObject();
+            stats.addProperty("table", table);
+            stats.addProperty("rows", rows);
+            stats.addProperty("millis", System.currentTimeMillis() - tableStart);
+            copied.add(stats);
+        }
+
+        // LIKE does not copy foreign keys, add the ones of the source once the rows are in
+        Set<String> refs = new LinkedHashSet<>();
+        for (String table : created) {
+            for (Map.Entry<String, String> constraint : getForeignKeys(from, table).entrySet()) {
+                try (Statement statement = to.createStatement()) {
+                    statement.execute(String.format("ALTER TABLE \"%s\" ADD CONSTRAINT \"%s\" %s", table,
+                        constraint.getKey(), constraint.getValue()));
+                }
+            }
+            refs.add(table.substring(getBranchBase(table).length()));
+        }
+        try {
+            for (String ref : refs) {
+                pgh.attachRefPartitions(ref);
+            }
+        } finally {
+            pgh.close();
+        }
+        return copied;
+    }
+
+    private static long copyTable(CopyManager fromCopy, CopyManager toCopy, String table, String columns)
+        throws SQLException {
+        CopyOut out = fromCopy.copyOut(String.format("COPY \"%s\" (%s) TO STDOUT", table, columns));
+        CopyIn in = null;
+        try {
+            in = toCopy.copyIn(String.format("COPY \"%s\" (%s) FROM STDIN", table, columns));
+            byte[] buffer;
+            while ((buffer = out.readFromCopy()) != null) {
+                in.writeToCopy(buffer, 0, buffer.length);
+            }
+            return in.endCopy();
+        } finally {
+            if (in != null && in.isActive()) {
+                in.cancelCopy();
+            }
+            if (out.isActive()) {
+                out.cancelCopy();
+            }
+        }
+    }
+
+    private static void copySequences(Connection from, Connection to) throws SQLException {
+        Map<String, String> values = new LinkedHashMap<>();
+        try (Statement statement = from.createStatement(); ResultSet rs = statement
+            .executeQuery("SELECT sequence_name FROM information_schema.sequences WHERE sequence_schema = 'public'")) {
+            while (rs.next()) {
+                values.put(rs.getString(1), null);
+            }
+        }
+        for (String sequence : values.keySet()) {
+            try (Statement statement = from.createStatement(); ResultSet rs = statement
+                .executeQuery(String.format("SELECT last_value, is_called FROM \"%s\"", sequence))) {
+                if (rs.next()) {
+                    values.put(sequence, String.format("%d, %b", rs.getLong(1), rs.getBoolean(2)));
+                }
+            }
+        }
+        try (Statement statement = to.createStatement()) {
+            for (Map.Entry<String, String> value : values.entrySet()) {
+                if (value.getValue() != null) {
+                    statement.execute(
+                        String.format("SELECT setval('\"%s\"', %s)", value.getKey(), value.getValue()));
+                }
+            }
+        }
+    }
+
+    private static List<String> listTables(Connection connection, String schema) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        // partitioned tables hold no rows of their own
+        try (PreparedStatement query = connection.prepareStatement(
+            "SELECT c.relname FROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace WHERE n.nspname = COALESCE(?, current_schema()) AND c.relkind = 'r' ORDER BY c.relname")) {
+            query.setString(1, schema);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    tables.add(rs.getString(1));
+                }
+            }
+        }
+        return tables;
+    }
+
+    private static List<String> listColumns(Connection connection, String schema, String table)
+        throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (PreparedStatement query = connection.prepareStatement(
+            "SELECT column_name FROM information_schema.columns WHERE table_schema = COALESCE(?, current_schema()) AND table_name = ? ORDER BY ordinal_position")) {
+            query.setString(1, schema);
+            query.setString(2, table);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    columns.add(rs.getString(1));
+                }
+            }
+        }
+        return columns;
+    }
+
+    private static Map<String, String> getForeignKeys(Connection connection, String table) throws SQLException {
+        Map<String, String> constraints = new LinkedHashMap<>();
+        try (PreparedStatement query = connection.prepareStatement(
+            "SELECT c.conname, pg_get_constraintdef(c.oid) FROM pg_constraint c JOIN pg_class t ON t.oid = c.conrelid JOIN pg_namespace n ON n.oid = t.relnamespace WHERE n.nspname = 'public' AND t.relname = ? AND c.contype = 'f'")) {
+            query.setString(1, table);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    constraints.put(rs.getString(1), rs.getString(2));
+                }
+            }
+        }
+        return constraints;
+    }
+
+    private static String getBranchBase(String table) {
+        for (String base : BRANCH_TABLES) {
+            if (table.startsWith(base) && !table.equals(base)) {
+                return base;
+            }
+        }
+        return null;
+    }
+
+    private static int getLoadOrder(String table) {
+        if (table.endsWith("types") || table.equals("committype")) {
+            return 0;
+        } else if (table.startsWith("edgeproperties")) {
+            return 3;
+        } else if (table.startsWith("edges")) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static List<String> quote(List<String> names) {
+        List<String> quoted = new ArrayList<>();
+        for (String name : names) {
+            quoted.add(String.format("\"%s\"", name));
+        }
+        return quoted;
+    }
+
+    /**
+     * New sessions of the source database can only read, so writes fail instead of being lost
+     */
+    private static void setReadOnly(String location, String dbname, boolean readOnly) throws SQLException {
+        try (Connection connection = PostgresPool.getDirectConnection(location, "postgres");
+            Statement statement = connection.createStatement()) {
+            statement.execute(readOnly ?
+                String.format("ALTER DATABASE \"%s\" SET default_transaction_read_only = on", dbname) :
+                String.format("ALTER DATABASE \"%s\" RESET default_transaction_read_only", dbname));
+        }
+    }
+
+    private static void terminateSessions(String location, String dbname) throws SQLException {
+        try (Connection connection = PostgresPool.getDirectConnection(location, "postgres");
+            PreparedStatement query = connection.prepareStatement(
+                "SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = ? AND pid <> pg_backend_pid()")) {
+            query.setString(1, dbname);
+            query.execute();
+        }
+    }
+
+    private static void dropSchema(String location, String dbname, String schema) {
+        try (Connection connection = PostgresPool.getDirectConnection(location, dbname);
+            Statement statement = connection.createStatement()) {
+            statement.execute(String.format("DROP SCHEMA IF EXISTS \"%s\" CASCADE", schema));
+        } catch (SQLException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wakes up change feed requests waiting on a ref when a commit is written on this server. Requests still poll
+ * the commits table so commits made on other servers are picked up.
+ */
+public class ChangeFeed {
+
+    private static final Map<String, Signal> signals = new ConcurrentHashMap<>();
+
+    private ChangeFeed() {
+    }
+
+    private static class Signal {
+        private long version = 0;
+
+        synchronized void bump() {
+            version++;
+            notifyAll();
+        }
+
+        synchronized long version() {
+            return version;
+        }
+
+        synchronized void await(long seen, long millis) throws InterruptedException {
+            if (version == seen && millis > 0) {
+                wait(millis);
+            }
+        }
+    }
+
+    private static Signal signal(String projectId, String refId) {
+        return signals.computeIfAbsent(ProjectLocks.key(projectId, refId), k -> new Signal());
+    }
+
+    public static void notifyCommit(String projectId, String refId) {
+        signal(projectId, refId).bump();
+    }
+
+    /**
+     * @return version to pass to await, read before querying for commits
+     */
+    public static long version(String projectId, String refId) {
+        return signal(projectId, refId).version();
+    }
+
+    /**
+     * Wait until a commit is written on the ref after version was read, or millis pass
+     */
+    public static void await(String projectId, String refId, long version, long millis) throws InterruptedException {
+        signal(projectId, refId).await(version, millis);
+    }
+}
@@ -0,0 +1,85 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.util.Map;
+
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+
+/**
+ * Progress of a single commit as it moves through the post pipeline. Stored in the project database so
+ * any node can answer a status request.
+ */
+public class CommitStatus {
+
+    public static final String ACCEPTED = "accepted";
+    public static final String PARSED = "parsed";
+    public static final String DIFFED = "diffed";
+    public static final String GRAPH_WRITTEN = "graph-written";
+    public static final String INDEXED = "indexed";
+    public static final String PUBLISHED = "published";
+    public static final String REJECTED = "rejected";
+    public static final String FAILED = "failed";
+
+    private final String projectId;
+    private final String refId;
+    private final String commitId;
+    private final String creator;
+
+    public CommitStatus(String projectId, String refId, String commitId, String creator) {
+        this.projectId = projectId;
+        this.refId = refId;
+        this.commitId = commitId;
+        this.creator = creator;
+    }
+
+    public String getCommitId() {
+        return commitId;
+    }
+
+    public void update(String status) {
+        update(status, null);
+    }
+
+    public void update(String status, String message) {
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(projectId);
+        pgh.setWorkspace(refId);
+        pgh.setCommitStatus(commitId, creator, status, message);
+    }
+
+    /**
+     * Current status of a commit, or null if the commit is unknown
+     *
+     * @param projectId project
+     * @param commitId  commit elasticId
+     * @return JsonObject with the commit id, ref, creator, status and timestamps
+     */
+    public static JsonObject get(String projectId, String commitId) {
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(projectId);
+        Map<String, String> row = pgh.getCommitStatus(commitId);
+
+        JsonObject status = new JsonObject();
+        if (!row.isEmpty()) {
+            for (Map.Entry<String, String> entry : row.entrySet()) {
+                if (entry.getValue() != null) {
+                    status.addProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            return status;
+        }
+
+        // synchronous commits are only recorded once they are complete
+        Map<String, String> commit = pgh.getCommitAndTimestamp("elasticId", commitId);
+        if (commit == null || commit.isEmpty()) {
+            return null;
+        }
+        status.addProperty(Sjm.COMMITID, commitId);
+        status.addProperty("status", PUBLISHED);
+        if (commit.containsKey(Sjm.TIMESTAMP)) {
+            status.addProperty(Sjm.CREATED, commit.get(Sjm.TIMESTAMP));
+        }
+        return status;
+    }
+}
@@ -13,16 +13,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.hazelcast.config.Config;
-import com.hazelcast.config.ItemListenerConfig;
-import com.hazelcast.config.QueueConfig;
-import com.hazelcast.core.Hazelcast;
-import com.hazelcast.core.HazelcastInstance;
 
+import gov.nasa.jpl.view_repo.util.tasks.BranchScheduler;
 import gov.nasa.jpl.view_repo.util.tasks.BranchTask;
 import org.alfresco.model.ContentModel;
 import org.alfresco.service.ServiceRegistry;
@@ -44,6 +40,7 @@ import gov.nasa.jpl.view_repo.connections.JmsConnection;
 import gov.nasa.jpl.view_repo.db.ElasticHelper;
 import gov.nasa.jpl.view_repo.db.ElasticResult;
 import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.db.ReplicaRouter;
 import gov.nasa.jpl.view_repo.db.GraphInterface.DbCommitTypes;
 import gov.nasa.jpl.view_repo.db.GraphInterface.DbEdgeTypes;
 import gov.nasa.jpl.view_repo.db.GraphInterface.DbNodeTypes;
@@ -60,27 +57,27 @@ public class CommitUtil {
     public static final String TYPE_DELTA = "DELTA";
     public static final String TYPE_MERGE = "MERGE";
 
-    private static final String NODES = "nodes";
-    private static final String EDGES = "edges";
-    private static final String PARENT = "parent";
-    private static final String CHILD = "child";
-    private static final String NODETYPE = "nodetype";
-    private static final String EDGETYPE = "edgetype";
-    private static final String DELETED = "deleted";
-    private static final String INITIALCOMMIT = "initialcommit";
-    private static final String LASTCOMMIT = "lastcommit";
+    static final String NODES = "nodes";
+    static final String EDGES = "edges";
+    static final String PARENT = "parent";
+    static final String CHILD = "child";
+    static final String NODETYPE = "nodetype";
+    static final String EDGETYPE = "edgetype";
+    static final String DELETED = "deleted";
+    static final String INITIALCOMMIT = "initialcommit";
+    static final String LASTCOMMIT = "lastcommit";
+    static final String CONTENTHASH = "contenthash";
     private static final String ARTIFACTS = "artifacts";
+    static final String OUTBOX = "outbox";
 
     private static final String HOLDING_BIN_PREFIX = "holding_bin_";
 
-    private static ElasticHelper eh = null;
     private static JmsConnection jmsConnection = null;
 
-    private static String user = null;
+    static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
 
-    private static SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private static SimpleDateFormat df = new SimpleDateFormat(DATE_FORMAT);
 
-    private static HazelcastInstance hzInstance = null;
 
     public static void setJmsConnection(JmsConnection jmsConnection) {
         if (logger.isInfoEnabled()) {
@@ -89,25 +86,6 @@ public class CommitUtil {
         CommitUtil.jmsConnection = jmsConnection;
     }
 
-    public static void initHazelcastClient() {
-        if (hzInstance == null) {
-            Config config = new Config();
-            config.getNetworkConfig().setPort(5901).setPortAutoIncrement(true);
-            hzInstance = Hazelcast.newHazelcastInstance(config);
-        }
-    }
-
-    private static void initHazelcastQueue(String name) {
-        Config config = hzInstance.getConfig();
-        QueueConfig queueConfig = config.getQueueConfig(name);
-        if (queueConfig.getItemListenerConfigs().isEmpty()) {
-            logger.info("Creating new queue named: " + name);
-            queueConfig
-                .addItemListenerConfig(new ItemListenerConfig("gov.nasa.jpl.view_repo.util.QueueConsumer", true));
-            config.addQueueConfig(queueConfig);
-        }
-    }
-
     public static DbNodeTypes getNodeType(JsonObject e) {
 
         String type = e.has(Sjm.TYPE) ? e.get(Sjm.TYPE).getAsString().toLowerCase() : "";
@@ -167,21 +145,36 @@ public class CommitUtil {
         return element.has(Sjm.ISGROUP) && element.get(Sjm.ISGROUP).getAsBoolean();
     }
 
-    private static boolean bulkElasticEntry(JsonArray elements, String operation, boolean refresh, String index,
-        String type) {
-        if (elements.size() > 0) {
-            try {
-                boolean bulkEntry = eh.bulkIndexElements(elements, operation, refresh, index, type);
-                if (!bulkEntry) {
-                    return false;
+    /**
+     * Outbox rows for the added and updated documents and the commit document of a delta. These are
+     * written in the same transaction as the graph changes and indexed afterwards by OutboxIndexer.
+     */
+    private static List<Map<String, Object>> outboxRows(JsonObject delta, String commitElasticId, String type) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.addAll(OutboxIndexer.indexRows(JsonUtil.getOptArray(delta, "addedElements"), commitElasticId, type));
+        rows.addAll(OutboxIndexer.indexRows(JsonUtil.getOptArray(delta, "updatedElements"), commitElasticId, type));
+        JsonArray commit = new JsonArray();
+        commit.add(delta.get("commit").getAsJsonObject());
+        rows.addAll(OutboxIndexer.indexRows(commit, commitElasticId, ElasticHelper.COMMIT));
+        return rows;
+    }
+
+    static void indexOutbox(String projectId, boolean waitForRefresh, CommitStatus progress) {
+        if (progress != null) {
+            progress.update(CommitStatus.GRAPH_WRITTEN);
+        }
+        if (waitForRefresh || progress != null) {
+            if (OutboxIndexer.drain(projectId, waitForRefresh)) {
+                if (progress != null) {
+                    progress.update(CommitStatus.INDEXED);
                 }
-            } catch (IOException e) {
-                logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
-                return false;
+            } else {
+                logger.warn(String.format("Outbox for %s not fully indexed, continuing in the background", projectId));
+                OutboxIndexer.schedule(projectId);
             }
+        } else {
+            OutboxIndexer.schedule(projectId);
         }
-
-        return true;
     }
 
     public static boolean isPartProperty(JsonObject e) {
@@ -205,7 +198,7 @@ public class CommitUtil {
     }
 
     private static boolean processArtifactDeltasForDb(JsonObject delta, String projectId, String refId,
-        JsonObject jmsPayload) {
+        JsonObject jmsPayload, boolean waitForRefresh, CommitStatus progress) {
         PostgresHelper pgh = new PostgresHelper();
         pgh.setProject(projectId);
         pgh.setWorkspace(refId);
@@ -224,84 +217,76 @@ public class CommitUtil {
         JsonArray jmsDeleted = new JsonArray();
 
         List<String> deletedSysmlIds = new ArrayList<>();
-        if (bulkElasticEntry(added, "added", true, projectId, "artifact") && bulkElasticEntry(updated, "updated", true,
-            projectId, "artifact")) {
-            try {
-                List<Map<String, Object>> artifactInserts = new ArrayList<>();
-                List<Map<String, Object>> artifactUpdates = new ArrayList<>();
-
-                for (int i = 0; i < added.size(); i++) {
-                    JsonObject e = added.get(i).getAsJsonObject();
-                    Map<String, Object> artifact = new HashMap<>();
-                    jmsAdded.add(e.get(Sjm.SYSMLID).getAsString());
-
-                    if (e.has(Sjm.ELASTICID)) {
-                        artifact.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
-                        artifact.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
-                        artifact.put(INITIALCOMMIT, e.get(Sjm.ELASTICID).getAsString());
-                        artifact.put(LASTCOMMIT, commitElasticId);
-                        artifactInserts.add(artifact);
-                    }
+        try {
+            List<Map<String, Object>> artifactInserts = new ArrayList<>();
+            List<Map<String, Object>> artifactUpdates = new ArrayList<>();
+
+            for (int i = 0; i < added.size(); i++) {
+                JsonObject e = added.get(i).getAsJsonObject();
+                Map<String, Object> artifact = new HashMap<>();
+                jmsAdded.add(e.get(Sjm.SYSMLID).getAsString());
+
+                if (e.has(Sjm.ELASTICID)) {
+                    artifact.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
+                    artifact.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
+                    artifact.put(INITIALCOMMIT, e.get(Sjm.ELASTICID).getAsString());
+                    artifact.put(LASTCOMMIT, commitElasticId);
+                    artifactInserts.add(artifact);
                 }
+            }
 
-                for (int i = 0; i < deleted.size(); i++) {
-                    JsonObject e = deleted.get(i).getAsJsonObject();
-                    jmsDeleted.add(e.get(Sjm.SYSMLID).getAsString());
-                    pgh.deleteArtifact(e.get(Sjm.SYSMLID).getAsString());
-                    deletedSysmlIds.add(e.get(Sjm.SYSMLID).getAsString());
-                }
+            for (int i = 0; i < deleted.size(); i++) {
+                JsonObject e = deleted.get(i).getAsJsonObject();
+                jmsDeleted.add(e.get(Sjm.SYSMLID).getAsString());
+                deletedSysmlIds.add(e.get(Sjm.SYSMLID).getAsString());
+            }
 
-                for (int i = 0; i < updated.size(); i++) {
-                    JsonObject e = updated.get(i).getAsJsonObject();
-                    jmsUpdated.add(e.get(Sjm.SYSMLID).getAsString());
-
-                    if (e.has(Sjm.ELASTICID)) {
-                        Map<String, Object> updatedArtifact = new HashMap<>();
-                        updatedArtifact.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
-                        updatedArtifact.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
-                        updatedArtifact.put(DELETED, false);
-                        updatedArtifact.put(LASTCOMMIT, commitElasticId);
-                        artifactUpdates.add(updatedArtifact);
-                    }
+            for (int i = 0; i < updated.size(); i++) {
+                JsonObject e = updated.get(i).getAsJsonObject();
+                jmsUpdated.add(e.get(Sjm.SYSMLID).getAsString());
+
+                if (e.has(Sjm.ELASTICID)) {
+                    Map<String, Object> updatedArtifact = new HashMap<>();
+                    updatedArtifact.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
+                    updatedArtifact.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
+                    updatedArtifact.put(DELETED, false);
+                    updatedArtifact.put(LASTCOMMIT, commitElasticId);
+                    artifactUpdates.add(updatedArtifact);
                 }
+            }
 
-                Savepoint sp = null;
-                try {//do node insert, updates, and containment edge updates
-                    //do bulk delete edges for affected sysmlids here - delete containment, view and childview
-                    sp = pgh.startTransaction();
-                    pgh.runBatchQueries(artifactInserts, ARTIFACTS);
-                    pgh.runBatchQueries(artifactUpdates, "artifactUpdates");
-                    pgh.updateLastCommitsArtifacts(commitElasticId, deletedSysmlIds);
-                    pgh.commitTransaction();
-                    pgh.insertCommit(commitElasticId, DbCommitTypes.COMMIT, creator, new Timestamp(df.parse(created).getTime()));
-                } catch (Exception e) {
-                    try {
-                        pgh.rollBackToSavepoint(sp);
-                    } catch (SQLException se) {
-                        logger.error(String.format("%s", LogUtil.getStackTrace(se)));
-                    }
-                    logger.error(String.format("%s", LogUtil.getStackTrace(e)));
-                    return false;
-                } finally {
-                    pgh.close();
-                }
+            Savepoint sp = null;
+            try {//artifact deletes, inserts, updates, the commit and its outbox rows in one transaction
+                sp = pgh.startTransaction();
+                pgh.deleteArtifacts(deletedSysmlIds);
+                pgh.runBatchQueries(artifactInserts, ARTIFACTS);
+                pgh.runBatchQueries(artifactUpdates, "artifactUpdates");
+                pgh.updateLastCommitsArtifacts(commitElasticId, deletedSysmlIds);
+                pgh.runBatchQueries(outboxRows(delta, commitElasticId, ElasticHelper.ARTIFACT), OUTBOX);
+                pgh.insertCommitInTransaction(commitElasticId, DbCommitTypes.COMMIT, creator,
+                    new Timestamp(df.parse(created).getTime()));
+                pgh.commitTransaction();
+                sp = null;
+            } catch (Exception e) {
                 try {
-                    eh.indexElement(delta.get("commit").getAsJsonObject(), projectId,
-                        ElasticHelper.COMMIT); //initial commit may fail to read back but does get indexed
-                } catch (Exception e) {
-                    logger.error(String.format("%s", LogUtil.getStackTrace(e)));
-                }
-
-            } catch (Exception e1) {
-                logger.warn("Could not complete graph storage");
-                if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("%s", LogUtil.getStackTrace(e1)));
+                    if (sp != null) {
+                        pgh.rollbackTransaction();
+                    }
+                } catch (SQLException se) {
+                    logger.error(String.format("%s", LogUtil.getStackTrace(se)));
                 }
+                logger.error(String.format("%s", LogUtil.getStackTrace(e)));
                 return false;
+            } finally {
+                pgh.close();
             }
+            indexOutbox(projectId, waitForRefresh, progress);
 
-        } else {
-            logger.error("Elasticsearch insert error occurred");
+        } catch (Exception e1) {
+            logger.warn("Could not complete graph storage");
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("%s", LogUtil.getStackTrace(e1)));
+            }
             return false;
         }
 
@@ -316,283 +301,29 @@ public class CommitUtil {
     }
 
     private static boolean processDeltasForDb(JsonObject delta, String projectId, String refId, JsonObject jmsPayload,
-        ServiceRegistry services) {
-        // :TODO write to elastic for elements, write to postgres, write to elastic for commits
-        // :TODO should return a 500 here to stop writes if one insert fails
-        PostgresHelper pgh = new PostgresHelper();
-        pgh.setProject(projectId);
-        pgh.setWorkspace(refId);
-
-        JsonArray added = JsonUtil.getOptArray(delta, "addedElements");
-        JsonArray updated = JsonUtil.getOptArray(delta, "updatedElements");
-        JsonArray deleted = JsonUtil.getOptArray(delta, "deletedElements");
-
-        String creator = delta.get("commit").getAsJsonObject().get(Sjm.CREATOR).getAsString();
-        String created = delta.get("commit").getAsJsonObject().get(Sjm.CREATED).getAsString();
-        String commitElasticId = delta.get("commit").getAsJsonObject().get(Sjm.ELASTICID).getAsString();
-
-        JsonObject jmsWorkspace = new JsonObject();
-        JsonArray jmsAdded = new JsonArray();
-        JsonArray jmsUpdated = new JsonArray();
-        JsonArray jmsDeleted = new JsonArray();
-
-        List<String> deletedSysmlIds = new ArrayList<>();
-        List<Pair<String, String>> addEdges = new ArrayList<>();
-        List<Pair<String, String>> viewEdges = new ArrayList<>();
-        List<Pair<String, String>> childViewEdges = new ArrayList<>();
-
-        if (bulkElasticEntry(added, "added", true, projectId, "element") && bulkElasticEntry(updated, "updated", true,
-            projectId, "element")) {
-
-            try {
-                List<Map<String, Object>> nodeInserts = new ArrayList<>();
-                List<Map<String, Object>> edgeInserts = new ArrayList<>();
-                List<Map<String, Object>> childEdgeInserts = new ArrayList<>();
-                List<Map<String, Object>> nodeUpdates = new ArrayList<>();
-                Set<String> uniqueEdge = new HashSet<>();
-
-                for (int i = 0; i < added.size(); i++) {
-                    JsonObject e = added.get(i).getAsJsonObject();
-                    Map<String, Object> node = new HashMap<>();
-                    jmsAdded.add(e.get(Sjm.SYSMLID).getAsString());
-                    int nodeType = getNodeType(e).getValue();
-
-                    if (e.has(Sjm.ELASTICID)) {
-                        node.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
-                        node.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
-                        node.put(NODETYPE, nodeType);
-                        node.put(INITIALCOMMIT, e.get(Sjm.ELASTICID).getAsString());
-                        node.put(LASTCOMMIT, commitElasticId);
-                        nodeInserts.add(node);
-                    }
-
-                    if (e.has(Sjm.OWNERID) && !e.get(Sjm.OWNERID).isJsonNull() && e.has(Sjm.SYSMLID) && !e
-                        .get(Sjm.SYSMLID).isJsonNull()) {
-                        Pair<String, String> p =
-                            new Pair<>(e.get(Sjm.OWNERID).getAsString(), e.get(Sjm.SYSMLID).getAsString());
-                        addEdges.add(p);
-                    }
-
-                    String doc = JsonUtil.getOptString(e, Sjm.DOCUMENTATION);
-                    processDocumentEdges(e.get(Sjm.SYSMLID).getAsString(), doc, viewEdges);
-
-                    if (nodeType == DbNodeTypes.SITEANDPACKAGE.getValue()) {
-                        createOrUpdateSiteChar(e, projectId, refId, services);
-                    }
-                    String type = JsonUtil.getOptString(e, Sjm.TYPE);
-                    if (type.equals("Slot") || type.equals("Property") || type.equals("Port")) {
-                        processValueEdges(e, viewEdges);
-                    }
-                    if (e.has(Sjm.CONTENTS)) {
-                        JsonObject contents = JsonUtil.getOptObject(e, Sjm.CONTENTS);
-                        processContentsJson(e.get(Sjm.SYSMLID).getAsString(), contents, viewEdges);
-                    } else if (e.has(Sjm.SPECIFICATION) && nodeType == DbNodeTypes.INSTANCESPECIFICATION.getValue()) {
-                        JsonObject iss = JsonUtil.getOptObject(e, Sjm.SPECIFICATION);
-                        processInstanceSpecificationSpecificationJson(e.get(Sjm.SYSMLID).getAsString(), iss, viewEdges);
-                        processContentsJson(e.get(Sjm.SYSMLID).getAsString(), iss, viewEdges);
-                    }
-                    if (nodeType == DbNodeTypes.VIEW.getValue() || nodeType == DbNodeTypes.DOCUMENT.getValue()) {
-                        JsonArray owned = JsonUtil.getOptArray(e, Sjm.OWNEDATTRIBUTEIDS);
-                        for (int j = 0; j < owned.size(); j++) {
-                            Pair<String, String> p =
-                                new Pair<>(e.get(Sjm.SYSMLID).getAsString(), owned.get(j).getAsString());
-                            childViewEdges.add(p);
-                        }
-                    }
-                    if (isPartProperty(e)) {
-                        String typeId = JsonUtil.getOptString(e, Sjm.TYPEID);
-                        if (!typeId.isEmpty()) {
-                            Pair<String, String> p = new Pair<>(e.get(Sjm.SYSMLID).getAsString(), typeId);
-                            childViewEdges.add(p);
-                        }
-                    }
-                }
-
-                for (int i = 0; i < deleted.size(); i++) {
-                    JsonObject e = deleted.get(i).getAsJsonObject();
-                    jmsDeleted.add(e.get(Sjm.SYSMLID).getAsString());
-                    pgh.deleteEdgesForNode(e.get(Sjm.SYSMLID).getAsString());
-                    pgh.deleteNode(e.get(Sjm.SYSMLID).getAsString());
-                    deletedSysmlIds.add(e.get(Sjm.SYSMLID).getAsString());
-                }
-
-                for (int i = 0; i < updated.size(); i++) {
-                    JsonObject e = updated.get(i).getAsJsonObject();
-                    jmsUpdated.add(e.get(Sjm.SYSMLID).getAsString());
-                    int nodeType = getNodeType(e).getValue();
-                    pgh.deleteEdgesForNode(e.get(Sjm.SYSMLID).getAsString(), true, DbEdgeTypes.CONTAINMENT);
-                    pgh.deleteEdgesForNode(e.get(Sjm.SYSMLID).getAsString(), false, DbEdgeTypes.VIEW);
-                    pgh.deleteEdgesForNode(e.get(Sjm.SYSMLID).getAsString(), false, DbEdgeTypes.CHILDVIEW);
-
-                    if (e.get(Sjm.SYSMLID).getAsString().equalsIgnoreCase(projectId)) {
-                        // Remove owner from project element
-                        e.remove(Sjm.OWNERID);
-                    }
-
-                    if (e.has(Sjm.OWNERID) && !e.get(Sjm.OWNERID).isJsonNull() && !e.get(Sjm.SYSMLID).isJsonNull()) {
-                        Pair<String, String> p =
-                            new Pair<>(e.get(Sjm.OWNERID).getAsString(), e.get(Sjm.SYSMLID).getAsString());
-                        addEdges.add(p);
-                    }
-                    String doc = JsonUtil.getOptString(e, Sjm.DOCUMENTATION);
-                    processDocumentEdges(e.get(Sjm.SYSMLID).getAsString(), doc, viewEdges);
-
-                    if (nodeType == DbNodeTypes.SITEANDPACKAGE.getValue()) {
-                        createOrUpdateSiteChar(e, projectId, refId, services);
-                    }
-                    String type = JsonUtil.getOptString(e, Sjm.TYPE);
-                    if (type.equals("Slot") || type.equals("Property") || type.equals("Port")) {
-                        processValueEdges(e, viewEdges);
-                    }
-                    if (e.has(Sjm.CONTENTS)) {
-                        JsonObject contents = JsonUtil.getOptObject(e, Sjm.CONTENTS);
-                        processContentsJson(e.get(Sjm.SYSMLID).getAsString(), contents, viewEdges);
-                    } else if (e.has(Sjm.SPECIFICATION) && nodeType == DbNodeTypes.INSTANCESPECIFICATION.getValue()) {
-                        JsonObject iss = JsonUtil.getOptObject(e, Sjm.SPECIFICATION);
-                        processInstanceSpecificationSpecificationJson(e.get(Sjm.SYSMLID).getAsString(), iss, viewEdges);
-                        processContentsJson(e.get(Sjm.SYSMLID).getAsString(), iss, viewEdges);
-                    }
-                    if (nodeType == DbNodeTypes.VIEW.getValue() || nodeType == DbNodeTypes.DOCUMENT.getValue()) {
-                        JsonArray owned = JsonUtil.getOptArray(e, Sjm.OWNEDATTRIBUTEIDS);
-                        for (int j = 0; j < owned.size(); j++) {
-                            Pair<String, String> p =
-                                new Pair<>(e.get(Sjm.SYSMLID).getAsString(), owned.get(j).getAsString());
-                            childViewEdges.add(p);
-                        }
-                    }
-                    if (isPartProperty(e)) {
-                        String typeId = JsonUtil.getOptString(e, Sjm.TYPEID);
-                        if (!typeId.isEmpty()) {
-                            Pair<String, String> p = new Pair<>(e.get(Sjm.SYSMLID).getAsString(), typeId);
-                            childViewEdges.add(p);
-                        }
-                    }
-                    if (e.has(Sjm.ELASTICID)) {
-                        Map<String, Object> updatedNode = new HashMap<>();
-                        updatedNode.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
-                        updatedNode.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
-                        updatedNode.put(NODETYPE, getNodeType(e).getValue());
-                        updatedNode.put(DELETED, false);
-                        updatedNode.put(LASTCOMMIT, commitElasticId);
-                        nodeUpdates.add(updatedNode);
-                    }
-                }
-
-                for (Pair<String, String> e : addEdges) {
-                    if (!pgh.edgeExists(e.first, e.second, DbEdgeTypes.CONTAINMENT)) {
-                        String edgeTest = e.first + e.second + DbEdgeTypes.CONTAINMENT.getValue();
-                        if (!uniqueEdge.contains(edgeTest)) {
-                            Map<String, Object> edge = new HashMap<>();
-                            edge.put(PARENT, e.first);
-                            edge.put(CHILD, e.second);
-                            edge.put(EDGETYPE, DbEdgeTypes.CONTAINMENT.getValue());
-                            edgeInserts.add(edge);
-                            uniqueEdge.add(edgeTest);
-                        }
-                    }
-                }
-
-                for (Pair<String, String> e : viewEdges) {
-                    if (!pgh.edgeExists(e.first, e.second, DbEdgeTypes.VIEW)) {
-                        String edgeTest = e.first + e.second + DbEdgeTypes.VIEW.getValue();
-                        if (!uniqueEdge.contains(edgeTest)) {
-                            Map<String, Object> edge = new HashMap<>();
-                            edge.put(PARENT, e.first);
-                            edge.put(CHILD, e.second);
-                            edge.put(EDGETYPE, DbEdgeTypes.VIEW.getValue());
-                            childEdgeInserts.add(edge);
-                            uniqueEdge.add(edgeTest);
-                        }
-                    }
-                }
-                for (Pair<String, String> e : childViewEdges) {
-                    if (!pgh.edgeExists(e.first, e.second, DbEdgeTypes.CHILDVIEW)) {
-                        String edgeTest = e.first + e.second + DbEdgeTypes.CHILDVIEW.getValue();
-                        if (!uniqueEdge.contains(edgeTest)) {
-                            Map<String, Object> edge = new HashMap<>();
-                            edge.put(PARENT, e.first);
-                            edge.put(CHILD, e.second);
-                            edge.put(EDGETYPE, DbEdgeTypes.CHILDVIEW.getValue());
-                            childEdgeInserts.add(edge);
-                            uniqueEdge.add(edgeTest);
-                        }
-                    }
-                }
-                List<String> nullParents;
-                Savepoint sp = null;
-                try {//do node insert, updates, and containment edge updates
-                    //do bulk delete edges for affected sysmlids here - delete containment, view and childview
-                    sp = pgh.startTransaction();
-                    pgh.runBatchQueries(nodeInserts, NODES);
-                    pgh.runBatchQueries(nodeUpdates, "updates");
-                    //pgh.updateBySysmlIds(NODES, LASTCOMMIT, commitElasticId, deletedSysmlIds);
-                    pgh.updateLastCommitsNodes(commitElasticId, deletedSysmlIds);
-                    pgh.commitTransaction();
-                    pgh.insertCommit(commitElasticId, DbCommitTypes.COMMIT, creator, new Timestamp(df.parse(created).getTime()));
-                    sp = pgh.startTransaction();
-                    pgh.runBatchQueries(edgeInserts, EDGES);
-                    pgh.commitTransaction();
-                    nullParents = pgh.findNullParents();
-                    if (nullParents != null) {
-                        updateNullEdges(nullParents, projectId);
-                    }
-                    pgh.cleanEdges();
-                } catch (Exception e) {
-                    try {
-                        pgh.rollBackToSavepoint(sp);
-                    } catch (SQLException se) {
-                        logger.error(String.format("%s", LogUtil.getStackTrace(se)));
-                    }
-                    logger.error(String.format("%s", LogUtil.getStackTrace(e)));
-                    return false;
-                } finally {
-                    pgh.close();
-                }
-                try {//view and childview edge updates
-                    sp = pgh.startTransaction();
-                    pgh.runBatchQueries(childEdgeInserts, EDGES);
-                    pgh.commitTransaction();
-                    pgh.cleanEdges();
-                } catch (Exception e) {
-                    try {
-                        pgh.rollBackToSavepoint(sp);
-                    } catch (SQLException se) {
-                        logger.error(String.format("%s", LogUtil.getStackTrace(se)));
-                    }
-                    logger.error(String.format("%s", LogUtil.getStackTrace(e))); //childedges are not critical
-                } finally {
-                    pgh.close();
-                }
-                try {
-                    eh.indexElement(delta.get("commit").getAsJsonObject(), projectId,
-                        ElasticHelper.COMMIT); //initial commit may fail to read back but does get indexed
-                } catch (Exception e) {
-                    logger.error(String.format("%s", LogUtil.getStackTrace(e)));
-                }
-
-            } catch (Exception e1) {
-                logger.warn("Could not complete graph storage");
-                if (logger.isDebugEnabled()) {
-                    logger.debug(String.format("%s", LogUtil.getStackTrace(e1)));
-                }
-                return false;
-            }
-        } else {
-            logger.error("Elasticsearch insert error occurred");
+        ServiceRegistry services, boolean waitForRefresh, CommitStatus progress) {
+        JsonObject commit = delta.get("commit").getAsJsonObject();
+        CommitWriter writer =
+            new CommitWriter(projectId, refId, commit.get(Sjm.ELASTICID).getAsString(), services);
+        try {
+            writer.stage(delta);
+        } catch (Exception e) {
+            writer.abort();
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
             return false;
         }
+        return writer.finish(commit, jmsPayload, waitForRefresh, progress);
+    }
 
-        jmsWorkspace.add("addedElements", jmsAdded);
-        jmsWorkspace.add("updatedElements", jmsUpdated);
-        jmsWorkspace.add("deletedElements", jmsDeleted);
-
-        jmsPayload.add("refs", jmsWorkspace);
-
-        if (!commitElasticId.isEmpty()) {
-            jmsPayload.addProperty(Sjm.COMMITID, commitElasticId);
-        }
-
-        return true;
+    /**
+     * Partial document that moves an element to the holding bin of the project
+     */
+    static String nullEdgePayload(String projectId) {
+        JsonObject query = new JsonObject();
+        JsonObject doc = new JsonObject();
+        doc.addProperty(Sjm.OWNERID, HOLDING_BIN_PREFIX + projectId);
+        query.add("doc", doc);
+        return query.toString();
     }
 
     /**
@@ -603,14 +334,9 @@ public class CommitUtil {
      */
     public static boolean updateNullEdges(List<String> updateParents, String projectId) {
         try {
-            eh = new ElasticHelper();
             Set<String> updateSet = new HashSet<>(updateParents);
-            String owner = HOLDING_BIN_PREFIX + projectId;
-            JsonObject query = new JsonObject();
-            JsonObject doc = new JsonObject();
-            doc.addProperty(Sjm.OWNERID, owner);
-            query.add("doc", doc);
-            eh.bulkUpdateElements(updateSet, query.toString(), projectId, "element");
+            // queued behind any pending index of the same documents
+            OutboxIndexer.enqueueUpdate(projectId, updateSet, nullEdgePayload(projectId), "element");
         } catch (Exception e) {
             logger.error(String.format("%s", LogUtil.getStackTrace(e)));
             return false;
@@ -629,20 +355,36 @@ public class CommitUtil {
      */
     public static boolean sendDeltas(JsonObject deltaJson, String projectId, String workspaceId, String source,
         ServiceRegistry services, boolean withChildViews, boolean isArtifact) {
+        return sendDeltas(deltaJson, projectId, workspaceId, source, services, withChildViews, isArtifact, false,
+            null);
+    }
+
+    /**
+     * Send off the deltas to various endpoints
+     *
+     * @param deltaJson      JsonObject of the deltas to be published
+     * @param projectId      String of the project Id to post to
+     * @param source         Source of the delta (e.g., MD, EVM, whatever, only necessary for MD so it can
+     *                       ignore)
+     * @param waitForRefresh if true, block until elasticsearch makes the writes searchable (refresh=wait_for).
+     *                       Reads by elasticId are realtime and do not need this.
+     * @param progress       optional status to record the graph-written and indexed stages on, when set the
+     *                       outbox is drained on the calling thread
+     * @return true if publish completed
+     */
+    public static boolean sendDeltas(JsonObject deltaJson, String projectId, String workspaceId, String source,
+        ServiceRegistry services, boolean withChildViews, boolean isArtifact, boolean waitForRefresh,
+        CommitStatus progress) {
 
         JsonObject jmsPayload = new JsonObject();
-        try {
-            eh = new ElasticHelper();
-        } catch (Exception e) {
-            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
-        }
 
         if (isArtifact) {
-            if (!processArtifactDeltasForDb(deltaJson, projectId, workspaceId, jmsPayload)) {
+            if (!processArtifactDeltasForDb(deltaJson, projectId, workspaceId, jmsPayload, waitForRefresh, progress)) {
                 return false;
             }
         } else {
-            if (!processDeltasForDb(deltaJson, projectId, workspaceId, jmsPayload, services)) {
+            if (!processDeltasForDb(deltaJson, projectId, workspaceId, jmsPayload, services, waitForRefresh,
+                progress)) {
                 return false;
             }
         }
@@ -651,7 +393,37 @@ public class CommitUtil {
             jmsPayload.addProperty("source", source);
         }
 
-        sendJmsMsg(jmsPayload, TYPE_DELTA, workspaceId, projectId);
+        DeltaCoalescer.publish(projectId, workspaceId, jmsPayload);
+        ChangeFeed.notifyCommit(projectId, workspaceId);
+        ReplicaRouter.recordCommit(projectId, JsonUtil.getOptString(jmsPayload, Sjm.COMMITID));
+
+        return true;
+    }
+
+    /**
+     * Send off a commit that was staged in chunks
+     *
+     * @param writer    writer the chunks of the commit were staged on
+     * @param commit    commit JsonObject from EmsNodeUtil.createCommit
+     * @param projectId String of the project Id to post to
+     * @param source    Source of the delta
+     * @return true if publish completed
+     */
+    public static boolean sendDeltas(CommitWriter writer, JsonObject commit, String projectId, String workspaceId,
+        String source, boolean waitForRefresh, CommitStatus progress) {
+
+        JsonObject jmsPayload = new JsonObject();
+        if (!writer.finish(commit, jmsPayload, waitForRefresh, progress)) {
+            return false;
+        }
+
+        if (source != null) {
+            jmsPayload.addProperty("source", source);
+        }
+
+        DeltaCoalescer.publish(projectId, workspaceId, jmsPayload);
+        ChangeFeed.notifyCommit(projectId, workspaceId);
+        ReplicaRouter.recordCommit(projectId, JsonUtil.getOptString(jmsPayload, Sjm.COMMITID));
 
         return true;
     }
@@ -709,6 +481,14 @@ public class CommitUtil {
         projectSysmlid = o.get(Sjm.SYSMLID).getAsString();
 
 
+        // the index is created while the database is
+        CompletableFuture<Void> index = CompletableFuture.runAsync(() -> {
+            try {
+                new ElasticHelper().createIndex(projectSysmlid);
+            } catch (IOException e) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            }
+        });
         pgh.createProjectDatabase(projectSysmlid, orgId, projectName, projectLocation);
 
         siteElement.addProperty(Sjm.SYSMLID, orgId);
@@ -765,7 +545,7 @@ public class CommitUtil {
 
             // only insert if the project does not exist already
             if (projectNode == null) {
-                eh.createIndex(projectSysmlid);
+                index.join();
                 eProject = eh.indexElement(project, projectSysmlid, ElasticHelper.ELEMENT);
                 eh.refreshIndex();
 
@@ -803,14 +583,13 @@ public class CommitUtil {
         }
     }
 
-    // make sure only one branch is made at a time
-    public static synchronized JsonObject sendBranch(String projectId, JsonObject src, JsonObject created,
+    public static JsonObject sendBranch(String projectId, JsonObject src, JsonObject created,
         String elasticId, Boolean isTag, String source, ServiceRegistry services) {
         return sendBranch(projectId, src, created, elasticId, isTag, source, null, services);
     }
 
-    // make sure only one branch is made at a time
-    public static synchronized JsonObject sendBranch(String projectId, JsonObject src, JsonObject created,
+    // queues the branch, BranchScheduler runs up to branch.project.concurrency branches of a project at once
+    public static JsonObject sendBranch(String projectId, JsonObject src, JsonObject created,
         String elasticId, Boolean isTag, String source, String commitId, ServiceRegistry services) {
         // FIXME: need to include branch in commit history
         JsonObject branchJson = new JsonObject();
@@ -818,9 +597,8 @@ public class CommitUtil {
         branchJson.addProperty("source", source);
         logger.info("SrcJSON in sendBranch: " + src.toString());
         String srcId = src.get(Sjm.SYSMLID).getAsString();
-        String createdId = created.get(Sjm.SYSMLID).getAsString();
-        boolean hasCommit = (commitId != null && !commitId.isEmpty());
 
+        String user = null;
         NodeRef person = services.getPersonService().getPersonOrNull(JsonUtil.getOptString(created, Sjm.CREATOR));
         if (person != null) {
             user = services.getNodeService().getProperty(person, ContentModel.PROP_EMAIL).toString();
@@ -831,19 +609,8 @@ public class CommitUtil {
 
         created.addProperty("status", "creating");
 
-        String queueId = hasCommit ? "branch_from_the_past" : String.format("%s-%s", projectId, createdId);
-
-        initHazelcastQueue(queueId);
-        BlockingQueue<BranchTask> queue = hzInstance.getQueue(queueId);
-
-        try {
-            queue.put(task);
-        } catch (InterruptedException ie) {
-            if (logger.isDebugEnabled()) {
-                logger.debug(String.format("Interrupted: %s", LogUtil.getStackTrace(ie)));
-            }
+        if (!BranchScheduler.submit(task)) {
             created.addProperty("status", "rejected");
-            Thread.currentThread().interrupt();
         }
 
         return branchJson;
@@ -0,0 +1,313 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.mbee.util.Pair;
+import gov.nasa.jpl.view_repo.db.ElasticHelper;
+import gov.nasa.jpl.view_repo.db.GraphInterface.DbCommitTypes;
+import gov.nasa.jpl.view_repo.db.GraphInterface.DbEdgeTypes;
+import gov.nasa.jpl.view_repo.db.GraphInterface.DbNodeTypes;
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+
+/**
+ * Writes an element commit to the graph in chunks.
+ *
+ * stage() takes the delta of a chunk of elements, writes their documents to the outbox inside the commit
+ * transaction and keeps only ids and edges. finish() applies the graph changes, the commit row and the edges
+ * in the same transaction and commits, so a failure part way through a post leaves nothing behind.
+ */
+public class CommitWriter {
+    static Logger logger = Logger.getLogger(CommitWriter.class);
+
+    private final String projectId;
+    private final String refId;
+    private final String commitElasticId;
+    private final ServiceRegistry services;
+
+    // holds the open commit transaction, other statements close their connection
+    private final PostgresHelper txn;
+    private Savepoint sp = null;
+
+    private final List<Map<String, Object>> nodeInserts = new ArrayList<>();
+    private final List<Map<String, Object>> nodeUpdates = new ArrayList<>();
+    private final List<String> deletedSysmlIds = new ArrayList<>();
+    private final List<String> updatedSysmlIds = new ArrayList<>();
+    private final List<JsonObject> sites = new ArrayList<>();
+
+    private final List<Pair<String, String>> addEdges = new ArrayList<>();
+    private final List<Pair<String, String>> viewEdges = new ArrayList<>();
+    private final List<Pair<String, String>> childViewEdges = new ArrayList<>();
+
+    private final JsonArray jmsAdded = new JsonArray();
+    private final JsonArray jmsUpdated = new JsonArray();
+    private final JsonArray jmsDeleted = new JsonArray();
+
+    public CommitWriter(String projectId, String refId, String commitElasticId, ServiceRegistry services) {
+        this(new PostgresHelper(), projectId, refId, commitElasticId, services);
+    }
+
+    CommitWriter(PostgresHelper txn, String projectId, String refId, String commitElasticId,
+        ServiceRegistry services) {
+        this.txn = txn;
+        this.projectId = projectId;
+        this.refId = refId;
+        this.commitElasticId = commitElasticId;
+        this.services = services;
+        txn.setProject(projectId);
+        txn.setWorkspace(refId);
+        // the transaction stays open across every chunk of a post, longer than an interactive connection may
+        txn.setWorkload(PostgresPool.Workload.BULK);
+    }
+
+    /**
+     * Stage the added, updated and deleted elements of a chunk
+     *
+     * @param delta chunk result of EmsNodeUtil.processPostChunk
+     */
+    public void stage(JsonObject delta) throws SQLException {
+        JsonArray added = JsonUtil.getOptArray(delta, "addedElements");
+        JsonArray updated = JsonUtil.getOptArray(delta, "updatedElements");
+        JsonArray deleted = JsonUtil.getOptArray(delta, "deletedElements");
+
+        for (int i = 0; i < added.size(); i++) {
+            JsonObject e = added.get(i).getAsJsonObject();
+            jmsAdded.add(e.get(Sjm.SYSMLID).getAsString());
+            int nodeType = CommitUtil.getNodeType(e).getValue();
+
+            if (e.has(Sjm.ELASTICID)) {
+                Map<String, Object> node = new HashMap<>();
+                node.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
+                node.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
+                node.put(CommitUtil.NODETYPE, nodeType);
+                node.put(CommitUtil.INITIALCOMMIT, e.get(Sjm.ELASTICID).getAsString());
+                node.put(CommitUtil.LASTCOMMIT, commitElasticId);
+                node.put(CommitUtil.CONTENTHASH, EmsNodeUtil.contentHash(e));
+                nodeInserts.add(node);
+            }
+
+            collectEdges(e, nodeType);
+        }
+
+        for (int i = 0; i < deleted.size(); i++) {
+            JsonObject e = deleted.get(i).getAsJsonObject();
+            jmsDeleted.add(e.get(Sjm.SYSMLID).getAsString());
+            deletedSysmlIds.add(e.get(Sjm.SYSMLID).getAsString());
+        }
+
+        for (int i = 0; i < updated.size(); i++) {
+            JsonObject e = updated.get(i).getAsJsonObject();
+            jmsUpdated.add(e.get(Sjm.SYSMLID).getAsString());
+            updatedSysmlIds.add(e.get(Sjm.SYSMLID).getAsString());
+            int nodeType = CommitUtil.getNodeType(e).getValue();
+
+            if (e.get(Sjm.SYSMLID).getAsString().equalsIgnoreCase(projectId)) {
+                // Remove owner from project element
+                e.remove(Sjm.OWNERID);
+            }
+
+            collectEdges(e, nodeType);
+
+            if (e.has(Sjm.ELASTICID)) {
+                Map<String, Object> updatedNode = new HashMap<>();
+                updatedNode.put(Sjm.ELASTICID, e.get(Sjm.ELASTICID).getAsString());
+                updatedNode.put(Sjm.SYSMLID, e.get(Sjm.SYSMLID).getAsString());
+                updatedNode.put(CommitUtil.NODETYPE, nodeType);
+                updatedNode.put(CommitUtil.DELETED, false);
+                updatedNode.put(CommitUtil.LASTCOMMIT, commitElasticId);
+                updatedNode.put(CommitUtil.CONTENTHASH, EmsNodeUtil.contentHash(e));
+                nodeUpdates.add(updatedNode);
+            }
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.addAll(OutboxIndexer.indexRows(added, commitElasticId, ElasticHelper.ELEMENT));
+        rows.addAll(OutboxIndexer.indexRows(updated, commitElasticId, ElasticHelper.ELEMENT));
+        if (!rows.isEmpty()) {
+            if (sp == null) {
+                sp = txn.startTransaction();
+            }
+            txn.runBatchQueries(rows, CommitUtil.OUTBOX);
+        }
+    }
+
+    /**
+     * Apply the staged graph changes, commit and index. Nodes, the commit row, edges and outbox rows are written
+     * in the one commit transaction, any failure rolls all of it back.
+     *
+     * @param commit     commit JsonObject
+     * @param jmsPayload filled with the ids of the changed elements
+     * @return false if the commit was rolled back
+     */
+    public boolean finish(JsonObject commit, JsonObject jmsPayload, boolean waitForRefresh, CommitStatus progress) {
+        String creator = commit.get(Sjm.CREATOR).getAsString();
+        String created = commit.get(Sjm.CREATED).getAsString();
+
+        try {
+            for (JsonObject site : sites) {
+                CommitUtil.createOrUpdateSiteChar(site, projectId, refId, services);
+            }
+
+            // only the edges of this commit can have lost an end, GraphSweeper looks after the rest
+            Set<String> touched = new HashSet<>(deletedSysmlIds);
+            touched.addAll(updatedSysmlIds);
+            for (int i = 0; i < jmsAdded.size(); i++) {
+                touched.add(jmsAdded.get(i).getAsString());
+            }
+
+            JsonArray commitDoc = new JsonArray();
+            commitDoc.add(commit);
+
+            Set<String> uniqueEdge = new HashSet<>();
+            List<Map<String, Object>> edgeInserts = edgeRows(addEdges, DbEdgeTypes.CONTAINMENT, uniqueEdge);
+            List<Map<String, Object>> childEdgeInserts = edgeRows(viewEdges, DbEdgeTypes.VIEW, uniqueEdge);
+            childEdgeInserts.addAll(edgeRows(childViewEdges, DbEdgeTypes.CHILDVIEW, uniqueEdge));
+
+            try {
+                if (sp == null) {
+                    sp = txn.startTransaction();
+                }
+                txn.deleteEdgesForNodes(deletedSysmlIds);
+                txn.deleteNodes(deletedSysmlIds);
+                txn.deleteEdgesForNodes(updatedSysmlIds, true, DbEdgeTypes.CONTAINMENT);
+                txn.deleteEdgesForNodes(updatedSysmlIds, false, DbEdgeTypes.VIEW);
+                txn.deleteEdgesForNodes(updatedSysmlIds, false, DbEdgeTypes.CHILDVIEW);
+                txn.runBatchQueries(nodeInserts, CommitUtil.NODES);
+                txn.runBatchQueries(nodeUpdates, "updates");
+                txn.updateLastCommitsNodes(commitElasticId, deletedSysmlIds);
+                // existing edges are skipped by the insert, the ones of updated elements were deleted above
+                txn.runBatchQueries(edgeInserts, CommitUtil.EDGES);
+                Savepoint childSp = txn.setSavepoint();
+                try {
+                    txn.runBatchQueries(childEdgeInserts, CommitUtil.EDGES);
+                } catch (SQLException e) {
+                    txn.rollBackToSavepoint(childSp);
+                    logger.error(String.format("%s", LogUtil.getStackTrace(e))); //childedges are not critical
+                }
+                // the owner of these is rewritten in elasticsearch, after the index of this commit
+                List<String> nullParents = txn.cleanEdges(touched);
+                txn.runBatchQueries(OutboxIndexer.updateRows(nullParents, CommitUtil.nullEdgePayload(projectId),
+                    ElasticHelper.ELEMENT), CommitUtil.OUTBOX);
+                txn.runBatchQueries(OutboxIndexer.indexRows(commitDoc, commitElasticId, ElasticHelper.COMMIT),
+                    CommitUtil.OUTBOX);
+                txn.insertCommitInTransaction(commitElasticId, DbCommitTypes.COMMIT, creator,
+                    new Timestamp(new SimpleDateFormat(CommitUtil.DATE_FORMAT).parse(created).getTime()));
+                txn.commitTransaction();
+                sp = null;
+            } catch (Exception e) {
+                abort();
+                logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+                return false;
+            }
+            CommitUtil.indexOutbox(projectId, waitForRefresh, progress);
+
+        } catch (Exception e1) {
+            abort();
+            logger.warn("Could not complete graph storage");
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("%s", LogUtil.getStackTrace(e1)));
+            }
+            return false;
+        }
+
+        JsonObject jmsWorkspace = new JsonObject();
+        jmsWorkspace.add("addedElements", jmsAdded);
+        jmsWorkspace.add("updatedElements", jmsUpdated);
+        jmsWorkspace.add("deletedElements", jmsDeleted);
+
+        jmsPayload.add("refs", jmsWorkspace);
+
+        if (!commitElasticId.isEmpty()) {
+            jmsPayload.addProperty(Sjm.COMMITID, commitElasticId);
+        }
+
+        return true;
+    }
+
+    /**
+     * Roll back anything staged
+     */
+    public void abort() {
+        try {
+            if (sp != null) {
+                txn.rollbackTransaction();
+            }
+        } catch (SQLException se) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(se)));
+        } finally {
+            sp = null;
+            txn.close();
+        }
+    }
+
+    private void collectEdges(JsonObject e, int nodeType) {
+        String sysmlId = e.get(Sjm.SYSMLID).getAsString();
+
+        if (e.has(Sjm.OWNERID) && !e.get(Sjm.OWNERID).isJsonNull() && !e.get(Sjm.SYSMLID).isJsonNull()) {
+            addEdges.add(new Pair<>(e.get(Sjm.OWNERID).getAsString(), sysmlId));
+        }
+
+        String doc = JsonUtil.getOptString(e, Sjm.DOCUMENTATION);
+        CommitUtil.processDocumentEdges(sysmlId, doc, viewEdges);
+
+        if (nodeType == DbNodeTypes.SITEANDPACKAGE.getValue()) {
+            sites.add(e);
+        }
+        String type = JsonUtil.getOptString(e, Sjm.TYPE);
+        if (type.equals("Slot") || type.equals("Property") || type.equals("Port")) {
+            CommitUtil.processValueEdges(e, viewEdges);
+        }
+        if (e.has(Sjm.CONTENTS)) {
+            JsonObject contents = JsonUtil.getOptObject(e, Sjm.CONTENTS);
+            CommitUtil.processContentsJson(sysmlId, contents, viewEdges);
+        } else if (e.has(Sjm.SPECIFICATION) && nodeType == DbNodeTypes.INSTANCESPECIFICATION.getValue()) {
+            JsonObject iss = JsonUtil.getOptObject(e, Sjm.SPECIFICATION);
+            CommitUtil.processInstanceSpecificationSpecificationJson(sysmlId, iss, viewEdges);
+            CommitUtil.processContentsJson(sysmlId, iss, viewEdges);
+        }
+        if (nodeType == DbNodeTypes.VIEW.getValue() || nodeType == DbNodeTypes.DOCUMENT.getValue()) {
+            JsonArray owned = JsonUtil.getOptArray(e, Sjm.OWNEDATTRIBUTEIDS);
+            for (int j = 0; j < owned.size(); j++) {
+                childViewEdges.add(new Pair<>(sysmlId, owned.get(j).getAsString()));
+            }
+        }
+        if (CommitUtil.isPartProperty(e)) {
+            String typeId = JsonUtil.getOptString(e, Sjm.TYPEID);
+            if (!typeId.isEmpty()) {
+                childViewEdges.add(new Pair<>(sysmlId, typeId));
+            }
+        }
+    }
+
+    private static List<Map<String, Object>> edgeRows(List<Pair<String, String>> edges, DbEdgeTypes edgeType,
+        Set<String> uniqueEdge) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Pair<String, String> e : edges) {
+            String edgeTest = e.first + e.second + edgeType.getValue();
+            if (!uniqueEdge.contains(edgeTest)) {
+                Map<String, Object> edge = new HashMap<>();
+                edge.put(CommitUtil.PARENT, e.first);
+                edge.put(CommitUtil.CHILD, e.second);
+                edge.put(CommitUtil.EDGETYPE, edgeType.getValue());
+                rows.add(edge);
+                uniqueEdge.add(edgeTest);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,238 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Sends delta events for commits. With jms.delta.window set, consecutive deltas of a project and ref from the
+ * same source are merged into one event that goes out when the window closes. Every event carries a summary
+ * of counts and the commit range, events with more than jms.delta.summaryIds ids only carry the summary, and
+ * the id lists can be read from the commits. Id lists larger than jms.delta.compressBytes are sent gzipped in
+ * refsGzip instead of refs.
+ */
+public class DeltaCoalescer {
+    static Logger logger = Logger.getLogger(DeltaCoalescer.class);
+
+    private static final long WINDOW = EmsConfig.getInt("jms.delta.window", 0);
+    private static final int MAX_IDS = EmsConfig.getInt("jms.delta.maxIds", 10000);
+    private static final int SUMMARY_IDS = EmsConfig.getInt("jms.delta.summaryIds", 0);
+    private static final int COMPRESS_BYTES = EmsConfig.getInt("jms.delta.compressBytes", 0);
+
+    private static final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "delta-coalescer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    interface IDeltaSender {
+        void send(JsonObject event, String refId, String projectId);
+    }
+
+    private static IDeltaSender deltaSender = null;
+
+    private DeltaCoalescer() {
+    }
+
+    /**
+     * Send or queue the delta of one commit
+     *
+     * @param payload delta with refs, commitId and source as built by sendDeltas
+     */
+    public static void publish(String projectId, String refId, JsonObject payload) {
+        publish(projectId, refId, payload, WINDOW);
+    }
+
+    static void publish(String projectId, String refId, JsonObject payload, long window) {
+        if (window <= 0) {
+            send(new Pending(projectId, refId, payload));
+            return;
+        }
+        String key = ProjectLocks.key(projectId, refId);
+        // sends happen inside compute so events of a ref go out in commit order
+        pending.compute(key, (k, current) -> {
+            if (current != null && !current.sameSource(payload)) {
+                send(current);
+                current = null;
+            }
+            if (current == null) {
+                Pending created = new Pending(projectId, refId, payload);
+                scheduler.schedule(() -> flush(k, created), window, TimeUnit.MILLISECONDS);
+                current = created;
+            } else {
+                current.merge(payload);
+            }
+            if (current.size() >= MAX_IDS) {
+                send(current);
+                return null;
+            }
+            return current;
+        });
+    }
+
+    private static void flush(String key, Pending expected) {
+        pending.computeIfPresent(key, (k, current) -> {
+            if (current != expected) {
+                return current;
+            }
+            send(current);
+            return null;
+        });
+    }
+
+    private static void send(Pending event) {
+        getDeltaSender().send(event.toJson(), event.refId, event.projectId);
+    }
+
+    static IDeltaSender getDeltaSender() {
+        if (deltaSender == null) {
+            deltaSender = (event, refId, projectId) -> CommitUtil
+                .sendJmsMsg(event, CommitUtil.TYPE_DELTA, refId, projectId);
+        }
+        return deltaSender;
+    }
+
+    static void setDeltaSender(IDeltaSender deltaSender) {
+        DeltaCoalescer.deltaSender = deltaSender;
+    }
+
+    private static class Pending {
+        private final String projectId;
+        private final String refId;
+        private final String source;
+        private final Set<String> added = new LinkedHashSet<>();
+        private final Set<String> updated = new LinkedHashSet<>();
+        private final Set<String> deleted = new LinkedHashSet<>();
+        private final List<String> commitIds = new ArrayList<>();
+
+        Pending(String projectId, String refId, JsonObject payload) {
+            this.projectId = projectId;
+            this.refId = refId;
+            this.source = JsonUtil.getOptString(payload, "source", null);
+            merge(payload);
+        }
+
+        boolean sameSource(JsonObject payload) {
+            return Objects.equals(source, JsonUtil.getOptString(payload, "source", null));
+        }
+
+        /**
+         * Applies a later delta so the result is the net change, an element added and then deleted is dropped
+         */
+        void merge(JsonObject payload) {
+            JsonObject refs = JsonUtil.getOptObject(payload, "refs");
+            for (String id : ids(refs, "addedElements")) {
+                if (deleted.remove(id)) {
+                    updated.add(id);
+                } else {
+                    added.add(id);
+                }
+            }
+            for (String id : ids(refs, "updatedElements")) {
+                if (!added.contains(id)) {
+                    updated.add(id);
+                }
+            }
+            for (String id : ids(refs, "deletedElements")) {
+                updated.remove(id);
+                if (!added.remove(id)) {
+                    deleted.add(id);
+                }
+            }
+            String commitId = JsonUtil.getOptString(payload, Sjm.COMMITID);
+            if (!commitId.isEmpty()) {
+                commitIds.add(commitId);
+            }
+        }
+
+        int size() {
+            return added.size() + updated.size() + deleted.size();
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+
+            JsonObject summary = new JsonObject();
+            summary.addProperty("added", added.size());
+            summary.addProperty("updated", updated.size());
+            summary.addProperty("deleted", deleted.size());
+            summary.addProperty("commits", commitIds.size());
+            if (!commitIds.isEmpty()) {
+                summary.addProperty("firstCommitId", commitIds.get(0));
+                summary.addProperty("lastCommitId", commitIds.get(commitIds.size() - 1));
+            }
+            json.add("summary", summary);
+
+            JsonObject refs = new JsonObject();
+            refs.add("addedElements", toArray(added));
+            refs.add("updatedElements", toArray(updated));
+            refs.add("deletedElements", toArray(deleted));
+            if (SUMMARY_IDS > 0 && size() > SUMMARY_IDS) {
+                json.addProperty("truncated", true);
+            } else {
+                byte[] ids = refs.toString().getBytes(StandardCharsets.UTF_8);
+                if (COMPRESS_BYTES > 0 && ids.length > COMPRESS_BYTES) {
+                    json.addProperty("refsGzip", gzip(ids));
+                } else {
+                    json.add("refs", refs);
+                }
+            }
+
+            if (!commitIds.isEmpty()) {
+                json.addProperty(Sjm.COMMITID, commitIds.get(commitIds.size() - 1));
+            }
+            if (commitIds.size() > 1) {
+                json.add("commitIds", toArray(commitIds));
+            }
+            if (source != null) {
+                json.addProperty("source", source);
+            }
+            return json;
+        }
+    }
+
+    private static List<String> ids(JsonObject refs, String key) {
+        List<String> ids = new ArrayList<>();
+        JsonArray array = JsonUtil.getOptArray(refs, key);
+        for (int i = 0; i < array.size(); i++) {
+            ids.add(array.get(i).getAsString());
+        }
+        return ids;
+    }
+
+    private static JsonArray toArray(Iterable<String> ids) {
+        JsonArray array = new JsonArray();
+        for (String id : ids) {
+            array.add(id);
+        }
+        return array;
+    }
+
+    private static String gzip(byte[] value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(value);
+        } catch (IOException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+}
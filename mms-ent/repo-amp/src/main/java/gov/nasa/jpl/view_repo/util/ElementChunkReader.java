@@ -0,0 +1,152 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads the elements of a post body in fixed size chunks without building the whole tree. Only one chunk
+ * of elements is held at a time; source and comment are kept wherever they appear in the body. Posts that
+ * are already parsed, such as moves, can be read the same way.
+ */
+public class ElementChunkReader implements Closeable {
+
+    public static final int CHUNK_SIZE = EmsConfig.getInt("commit.chunk.size", 1000);
+
+    private static JsonParser parser = new JsonParser();
+
+    private final JsonReader reader;
+    private final JsonArray elements;
+    private final int chunkSize;
+    private int position = 0;
+
+    private boolean started = false;
+    private boolean inElements = false;
+    private boolean finished = false;
+    private boolean hasElements = false;
+
+    private String source = "";
+    private String comment = "";
+
+    public ElementChunkReader(InputStream in) {
+        this(in, CHUNK_SIZE);
+    }
+
+    public ElementChunkReader(InputStream in, int chunkSize) {
+        this.reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        this.elements = null;
+        this.chunkSize = chunkSize;
+    }
+
+    public ElementChunkReader(JsonObject postJson) {
+        this.reader = null;
+        this.elements = JsonUtil.getOptArray(postJson, Sjm.ELEMENTS);
+        this.chunkSize = CHUNK_SIZE;
+        this.hasElements = postJson.has(Sjm.ELEMENTS) && postJson.get(Sjm.ELEMENTS).isJsonArray();
+        this.source = JsonUtil.getOptString(postJson, "source");
+        this.comment = JsonUtil.getOptString(postJson, Sjm.COMMENT);
+    }
+
+    /**
+     * Next chunk of elements
+     *
+     * @return up to chunkSize elements, or null once the body has been read
+     * @throws IOException           if the body is not valid json
+     * @throws IllegalStateException if the body is not an object or an element is not an object
+     */
+    public JsonArray next() throws IOException {
+        if (reader == null) {
+            return nextFromArray();
+        }
+        if (!started) {
+            reader.beginObject();
+            started = true;
+        }
+        while (!finished) {
+            if (inElements) {
+                JsonArray chunk = new JsonArray();
+                while (chunk.size() < chunkSize && reader.hasNext()) {
+                    JsonElement element = parser.parse(reader);
+                    if (!element.isJsonObject()) {
+                        throw new IllegalStateException("Element is not a JSON object");
+                    }
+                    chunk.add(element);
+                }
+                if (!reader.hasNext()) {
+                    reader.endArray();
+                    inElements = false;
+                }
+                if (chunk.size() > 0) {
+                    return chunk;
+                }
+            } else if (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(Sjm.ELEMENTS) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    inElements = true;
+                    hasElements = true;
+                } else if (name.equals("source") && reader.peek() == JsonToken.STRING) {
+                    source = reader.nextString();
+                } else if (name.equals(Sjm.COMMENT) && reader.peek() == JsonToken.STRING) {
+                    comment = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            } else {
+                reader.endObject();
+                finished = true;
+            }
+        }
+        return null;
+    }
+
+    private JsonArray nextFromArray() {
+        if (position >= elements.size()) {
+            return null;
+        }
+        JsonArray chunk = new JsonArray();
+        for (; position < elements.size() && chunk.size() < chunkSize; position++) {
+            if (!elements.get(position).isJsonObject()) {
+                throw new IllegalStateException("Element is not a JSON object");
+            }
+            chunk.add(elements.get(position));
+        }
+        return chunk;
+    }
+
+    /**
+     * @return true if an elements array was found, complete once next() returned null
+     */
+    public boolean hasElements() {
+        return hasElements;
+    }
+
+    /**
+     * @return source of the post, complete once next() returned null
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return commit comment, complete once next() returned null
+     */
+    public String getComment() {
+        return comment;
+    }
+
+    @Override public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Collects elements in a temporary file as an object with an elements array, so a post can keep its
+ * results without holding them in memory. The elements are read back a chunk at a time with
+ * ElementChunkReader. Closing the spool deletes the file.
+ */
+public class ElementSpool implements Closeable {
+    static Logger logger = Logger.getLogger(ElementSpool.class);
+
+    private static final Gson gson = new Gson();
+
+    private final File file;
+    private JsonWriter writer;
+    private int size = 0;
+
+    public ElementSpool() throws IOException {
+        String spoolDir = EmsConfig.get("commit.async.spool");
+        file = File.createTempFile("elements-", ".json",
+            spoolDir != null && !spoolDir.isEmpty() ? new File(spoolDir) : null);
+        file.deleteOnExit();
+        writer = new JsonWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        writer.beginObject();
+        writer.name(Sjm.ELEMENTS);
+        writer.beginArray();
+    }
+
+    public void addAll(JsonArray elements) throws IOException {
+        for (int i = 0; i < elements.size(); i++) {
+            gson.toJson(elements.get(i), writer);
+        }
+        size += elements.size();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Ends the file and reads it from the start
+     */
+    public ElementChunkReader read() throws IOException {
+        if (writer != null) {
+            writer.endArray();
+            writer.endObject();
+            writer.close();
+            writer = null;
+        }
+        return new ElementChunkReader(new FileInputStream(file));
+    }
+
+    @Override public void close() {
+        try {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+        if (file.exists() && !file.delete()) {
+            logger.warn(String.format("Unable to delete spool file %s", file));
+        }
+    }
+}
@@ -26,6 +26,18 @@ public class EmsConfig {
         return EmsConfig.properties.getProperty(key);
     }
 
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public static void setProperty(String key, String value) {
         EmsConfig.properties.setProperty(key, value);
     }
@@ -11,6 +11,9 @@ import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
 
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
@@ -45,6 +48,13 @@ public class EmsNodeUtil {
     private static final String ORG_NAME = "orgName";
 
     public static SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    // diffUpdateJson runs on the diff pool, SimpleDateFormat is not thread safe
+    private static final ThreadLocal<SimpleDateFormat> diffDateFormat =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ"));
+
+    private static final int DIFF_THRESHOLD = EmsConfig.getInt("commit.diff.threshold", 100);
+    private static final ForkJoinPool diffPool =
+        new ForkJoinPool(EmsConfig.getInt("commit.diff.threads", Runtime.getRuntime().availableProcessors()));
 
     public EmsNodeUtil() {
         try {
@@ -269,10 +279,9 @@ public class EmsNodeUtil {
             JsonObject formatted = elementsFromElastic.get(i).getAsJsonObject();
             formatted.addProperty(Sjm.PROJECTID, this.projectId);
             formatted.addProperty(Sjm.REFID, this.workspaceName);
-            elementsFromElastic.set(i, withChildViews ? addChildViews(formatted) : formatted);
         }
 
-        return elementsFromElastic;
+        return withChildViews ? addChildViews(elementsFromElastic) : elementsFromElastic;
     }
 
     public JsonArray getNodeHistory(String sysmlId) {
@@ -300,6 +309,87 @@ public class EmsNodeUtil {
         return result;
     }
 
+    /**
+     * Commits made on a ref after a commit, with the ids they added, updated and deleted
+     *
+     * @param refId        ref to read
+     * @param commitId     last commit the client has seen
+     * @param limit        max number of commits
+     * @param withElements also return the latest version of every element added or updated by the commits
+     * @return commits oldest first, lastCommitId to ask for next and more if the limit was hit
+     */
+    public JsonObject getChangeFeed(String refId, String commitId, int limit, boolean withElements) {
+        JsonObject feed = new JsonObject();
+        List<Map<String, Object>> refCommits = pgh.getRefsCommitsAfter(refId, pgh.getCommitId(commitId), limit + 1);
+        boolean more = refCommits.size() > limit;
+        if (more) {
+            refCommits = refCommits.subList(0, limit);
+        }
+
+        List<String> commitIds = new ArrayList<>();
+        for (Map<String, Object> refCommit : refCommits) {
+            commitIds.add(refCommit.get(Sjm.SYSMLID).toString());
+        }
+        Map<String, JsonObject> commitObjectMap = new HashMap<>();
+        JsonArray commitObjects = commitIds.isEmpty() ? new JsonArray() : getCommitObjects(commitIds);
+        for (int i = 0; commitObjects != null && i < commitObjects.size(); i++) {
+            JsonObject commitObject = JsonUtil.getOptObject(commitObjects, i);
+            if (commitObject.has(Sjm.ELASTICID)) {
+                commitObjectMap.put(commitObject.get(Sjm.ELASTICID).getAsString(), commitObject);
+            }
+        }
+
+        JsonArray commits = new JsonArray();
+        Map<String, String> latest = new LinkedHashMap<>();
+        for (Map<String, Object> refCommit : refCommits) {
+            String id = refCommit.get(Sjm.SYSMLID).toString();
+            JsonObject commitObject = commitObjectMap.getOrDefault(id, new JsonObject());
+            JsonObject commit = new JsonObject();
+            commit.addProperty(Sjm.SYSMLID, id);
+            commit.addProperty(Sjm.CREATOR, refCommit.get(Sjm.CREATOR).toString());
+            commit.addProperty(Sjm.CREATED, df.format(refCommit.get(Sjm.CREATED)));
+            commit.addProperty("commitType", refCommit.get("commitType").toString());
+            if (commitObject.has(Sjm.COMMENT)) {
+                commit.add(Sjm.COMMENT, commitObject.get(Sjm.COMMENT));
+            }
+            if (commitObject.has(Sjm.SOURCE)) {
+                commit.add(Sjm.SOURCE, commitObject.get(Sjm.SOURCE));
+            }
+            for (String key : new String[] {"added", "updated", "deleted"}) {
+                JsonArray entries = JsonUtil.getOptArray(commitObject, key);
+                commit.add(key, entries);
+                for (int i = 0; i < entries.size(); i++) {
+                    JsonObject entry = JsonUtil.getOptObject(entries, i);
+                    String sysmlId = JsonUtil.getOptString(entry, Sjm.SYSMLID);
+                    if (key.equals("deleted")) {
+                        latest.remove(sysmlId);
+                    } else if (entry.has(Sjm.ELASTICID)) {
+                        latest.put(sysmlId, entry.get(Sjm.ELASTICID).getAsString());
+                    }
+                }
+            }
+            commits.add(commit);
+        }
+
+        feed.add("commits", commits);
+        feed.addProperty("lastCommitId", commitIds.isEmpty() ? commitId : commitIds.get(commitIds.size() - 1));
+        feed.addProperty("more", more);
+
+        if (withElements) {
+            JsonArray elements = new JsonArray();
+            if (!latest.isEmpty()) {
+                try {
+                    elements = eh.getElementsFromElasticIds(new ArrayList<>(latest.values()), projectId);
+                } catch (IOException e) {
+                    logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+                }
+            }
+            feed.add(Sjm.ELEMENTS, elements);
+        }
+
+        return feed;
+    }
+
     private JsonArray filterCommitsByRefs(JsonArray commits) {
         JsonArray filtered = new JsonArray();
         List<Map<String, Object>> refCommits = pgh.getRefsCommits(this.workspaceName, 0, 0);
@@ -394,10 +484,9 @@ public class EmsNodeUtil {
                 JsonObject current = childs.get(i).getAsJsonObject();
                 current.addProperty(Sjm.PROJECTID, this.projectId);
                 current.addProperty(Sjm.REFID, this.workspaceName);
-                JsonObject withChildViews = addChildViews(current);
-                result.add(withChildViews);
+                result.add(current);
             }
-            return result;
+            return addChildViews(result);
         } catch (Exception e) {
             logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
         }
@@ -415,58 +504,32 @@ public class EmsNodeUtil {
     }
 
     public JsonArray addExtraDocs(JsonArray elements) {
+        Set<String> sysmlIds = new HashSet<>();
+        for (int i = 0; i < elements.size(); i++) {
+            sysmlIds.add(elements.get(i).getAsJsonObject().get(Sjm.SYSMLID).getAsString());
+        }
+        Map<String, Map<String, Set<String>>> relatedDocumentsMap = pgh.getRelatedDocuments(sysmlIds);
+
         JsonArray results = new JsonArray();
         for (int i = 0; i < elements.size(); i++) {
             JsonObject element = elements.get(i).getAsJsonObject();
-            String elementSysmlId = element.get(Sjm.SYSMLID).getAsString();
             JsonArray relatedDocuments = new JsonArray();
-            Map<String, List<JsonObject>> relatedDocumentsMap = new HashMap<>();
-
-            Map<String, Set<String>> docView = new HashMap<>();
-            Set<Pair<String, Integer>> parentViews =
-                pgh.getParentsOfType(elementSysmlId, PostgresHelper.DbEdgeTypes.VIEW);
-
-            for (Pair<String, Integer> parentView : parentViews) {
-
-                if (parentView.second != DbNodeTypes.VIEW.getValue() && parentView.second != DbNodeTypes.DOCUMENT
-                    .getValue()) {
-                    continue;
-                }
-                for (Pair<String, Integer> doc : pgh
-                    .getParentsOfType(parentView.first, PostgresHelper.DbEdgeTypes.CHILDVIEW)) {
-                    if (doc.second != DbNodeTypes.DOCUMENT.getValue()) {
-                        continue;
-                    }
-                    if (relatedDocumentsMap.containsKey(doc.first) && !docView.get(doc.first)
-                        .contains(parentView.first)) {
-                        JsonObject o = new JsonObject();
-                        o.addProperty(Sjm.SYSMLID, parentView.first);
-                        relatedDocumentsMap.get(doc.first).add(o);
-                        docView.get(doc.first).add(parentView.first);
-                    } else {
-                        docView.put(doc.first, new HashSet<String>());
-                        List<JsonObject> viewParents = new ArrayList<>();
-                        JsonObject o = new JsonObject();
-                        o.addProperty(Sjm.SYSMLID, parentView.first);
-                        viewParents.add(o);
-                        docView.get(doc.first).add(parentView.first);
-                        relatedDocumentsMap.put(doc.first, viewParents);
-                    }
-                }
-            }
-            Iterator<Map.Entry<String, List<JsonObject>>> it = relatedDocumentsMap.entrySet().iterator();
-            it.forEachRemaining(pair -> {
+            Map<String, Set<String>> docViews = relatedDocumentsMap
+                .getOrDefault(element.get(Sjm.SYSMLID).getAsString(), Collections.emptyMap());
+            for (Map.Entry<String, Set<String>> docView : docViews.entrySet()) {
                 JsonArray viewIds = new JsonArray();
-                for (JsonObject value : pair.getValue()) {
-                    viewIds.add(value);
+                for (String viewId : docView.getValue()) {
+                    JsonObject o = new JsonObject();
+                    o.addProperty(Sjm.SYSMLID, viewId);
+                    viewIds.add(o);
                 }
                 JsonObject relatedDocObject = new JsonObject();
-                relatedDocObject.addProperty(Sjm.SYSMLID, pair.getKey());
+                relatedDocObject.addProperty(Sjm.SYSMLID, docView.getKey());
                 relatedDocObject.add(Sjm.PARENTVIEWS, viewIds);
                 relatedDocObject.addProperty(Sjm.PROJECTID, this.projectId);
                 relatedDocObject.addProperty(Sjm.REFID, this.workspaceName);
                 relatedDocuments.add(relatedDocObject);
-            });
+            }
             element.add(Sjm.RELATEDDOCUMENTS, relatedDocuments);
 
             results.add(element);
@@ -507,13 +570,22 @@ public class EmsNodeUtil {
             docJson = addExtendedInformation(docJson);
         }
 
+        Map<String, String> groups = new HashMap<>();
+        if (!extended && sysmlId == null) {
+            Set<String> docSysmlIds = new HashSet<>();
+            for (int i = 0; i < docJson.size(); i++) {
+                docSysmlIds.add(docJson.get(i).getAsJsonObject().get(Sjm.SYSMLID).getAsString());
+            }
+            groups = pgh.getGroups(docSysmlIds);
+        }
+
         for (int i = 0; i < docJson.size(); i++) {
             JsonObject doc = docJson.get(i).getAsJsonObject();
             doc.addProperty(Sjm.PROJECTID, this.projectId);
             doc.addProperty(Sjm.REFID, this.workspaceName);
             if (!extended) {
                 if (sysmlId == null) {
-                    String groupId = pgh.getGroup(doc.get(Sjm.SYSMLID).getAsString());
+                    String groupId = groups.get(doc.get(Sjm.SYSMLID).getAsString());
                     if (groupId != null) {
                         doc.addProperty(Sjm.SITECHARACTERIZATIONID, groupId);
                     }
@@ -523,26 +595,82 @@ public class EmsNodeUtil {
                     }
                 }
             }
-            result.add(addChildViews(doc));
+            result.add(doc);
         }
 
-        return result;
+        return addChildViews(result);
     }
 
     public JsonObject processPostJson(JsonArray elements, String user, Set<String> oldElasticIds, boolean overwriteJson,
         String src, String comment, String type) {
+        return processPostJson(elements, user, oldElasticIds, overwriteJson, src, comment, type,
+            UUID.randomUUID().toString());
+    }
 
-        JsonObject result = new JsonObject();
+    /**
+     * Diff posted elements against the ref and build the commit delta
+     *
+     * @param commitId elasticId to use for the commit, lets async posts hand out the id before processing
+     */
+    public JsonObject processPostJson(JsonArray elements, String user, Set<String> oldElasticIds, boolean overwriteJson,
+        String src, String comment, String type, String commitId) {
 
-        String date = TimeUtils.toTimestamp(new Date().getTime());
-        final String holdingBinSysmlid = (this.projectId != null) ? ("holding_bin_" + this.projectId) : "holding_bin";
+        JsonObject commit = createCommit(commitId, user);
+        JsonObject result = processPostChunk(elements, commit, oldElasticIds, overwriteJson, type);
+        finishCommit(commit, src, comment);
+
+        result.add("commit", commit);
+
+        return result;
+    }
 
-        String commitId = UUID.randomUUID().toString();
+    /**
+     * Start a commit to be built up by processPostChunk
+     *
+     * @param commitId elasticId of the commit
+     * @param user     creator of the commit
+     * @return commit JsonObject
+     */
+    public JsonObject createCommit(String commitId, String user) {
         JsonObject commit = new JsonObject();
         commit.addProperty(Sjm.ELASTICID, commitId);
-        JsonArray commitAdded = new JsonArray();
-        JsonArray commitUpdated = new JsonArray();
-        JsonArray commitDeleted = new JsonArray();
+        commit.add("added", new JsonArray());
+        commit.add("updated", new JsonArray());
+        commit.add("deleted", new JsonArray());
+        commit.addProperty(Sjm.CREATOR, user);
+        commit.addProperty(Sjm.CREATED, TimeUtils.toTimestamp(new Date().getTime()));
+        commit.addProperty(Sjm.PROJECTID, projectId);
+        return commit;
+    }
+
+    public void finishCommit(JsonObject commit, String src, String comment) {
+        commit.addProperty(Sjm.SOURCE, src);
+        if (comment != null && !comment.isEmpty()) {
+            commit.addProperty(Sjm.COMMENT, comment);
+        }
+    }
+
+    /**
+     * Diff a chunk of posted elements against the ref. Only the elements in the chunk and their existing
+     * versions are held, the commit collects the ids of every chunk.
+     *
+     * @param elements chunk of posted elements
+     * @param commit   commit from createCommit
+     * @return the added, updated, new, deleted and rejected elements of the chunk
+     */
+    public JsonObject processPostChunk(JsonArray elements, JsonObject commit, Set<String> oldElasticIds,
+        boolean overwriteJson, String type) {
+
+        JsonObject result = new JsonObject();
+
+        String commitId = commit.get(Sjm.ELASTICID).getAsString();
+        String user = commit.get(Sjm.CREATOR).getAsString();
+        String date = commit.get(Sjm.CREATED).getAsString();
+        final String holdingBinSysmlid = (this.projectId != null) ? ("holding_bin_" + this.projectId) : "holding_bin";
+
+        JsonArray commitAdded = commit.get("added").getAsJsonArray();
+        JsonArray commitUpdated = commit.get("updated").getAsJsonArray();
+        JsonArray commitDeleted = commit.get("deleted").getAsJsonArray();
 
         JsonArray addedElements = new JsonArray();
         JsonArray updatedElements = new JsonArray();
@@ -554,98 +682,50 @@ public class EmsNodeUtil {
         Set<String> sysmlids = new HashSet<>();
         sysmlids.addAll(elementMap.keySet());
 
+        // elements matching their stored content hash are unchanged, only fetch and diff the rest
+        Set<String> unchanged = new HashSet<>();
+        if (!type.equals("Artifact") && !overwriteJson) {
+            unchanged = findUnchanged(elements, sysmlids);
+            sysmlids.removeAll(unchanged);
+        }
+
         Map<String, JsonObject> existingMap = (!type.equals("Artifact")) ?
             convertToMap(getNodesBySysmlids(sysmlids, false, true)) :
             convertToMap(getArtifactsBySysmlids(sysmlids, true));
 
+        // new ids are checked against the db, so they are given out before the parallel stage
         for (int i = 0; i < elements.size(); i++) {
             JsonObject o = elements.get(i).getAsJsonObject();
-            String sysmlid = JsonUtil.getOptString(o, Sjm.SYSMLID);
-            if (sysmlid.equals("")) {
-                sysmlid = createId();
-                o.addProperty(Sjm.SYSMLID, sysmlid);
-            }
-
-            boolean added = !existingMap.containsKey(sysmlid);
-            boolean updated = false;
-            Map<Integer, String> rejected = new HashMap<>();
-            if (!added) {
-                if (!overwriteJson) {
-                    if (isUpdated(o, existingMap.get(sysmlid), rejected)) {
-                        updated = diffUpdateJson(o, existingMap.get(sysmlid), rejected);
-                    }
-                } else {
-                    updated = true;
-                }
+            if (JsonUtil.getOptString(o, Sjm.SYSMLID).equals("")) {
+                o.addProperty(Sjm.SYSMLID, createId());
             }
+        }
 
-            o.addProperty(Sjm.PROJECTID, this.projectId);
-            o.addProperty(Sjm.REFID, this.workspaceName);
-            JsonArray arry = new JsonArray();
-            arry.add(this.workspaceName);
-            o.add(Sjm.INREFIDS, arry);
-
-            if (o.has(Sjm.QUALIFIEDID)) {
-                o.remove(Sjm.QUALIFIEDID);
-            }
-            if (o.has(Sjm.QUALIFIEDNAME)) {
-                o.remove(Sjm.QUALIFIEDNAME);
-            }
+        PreparedElement[] prepared = new PreparedElement[elements.size()];
+        diffPool.invoke(
+            new PrepareTask(elements, prepared, 0, elements.size(), existingMap, unchanged, overwriteJson, type,
+                commitId, user, date, holdingBinSysmlid));
 
-            if ((!o.has(Sjm.OWNERID) || o.get(Sjm.OWNERID).isJsonNull() || o.get(Sjm.OWNERID).getAsString()
-                .equalsIgnoreCase("null")) && !type.equals("Artifact")) {
-                o.addProperty(Sjm.OWNERID, holdingBinSysmlid);
-            }
+        // merged in post order so results match a serial run, child views read and write the db
+        for (PreparedElement p : prepared) {
+            JsonObject o = p.element;
             if (o.has(Sjm.CHILDVIEWS)) {
                 reorderChildViews(o, newElements, addedElements, updatedElements, deletedElements, commitAdded,
                     commitUpdated, commitDeleted, commitId, user, date, oldElasticIds);
             }
-            if (added) {
+            if (p.added) {
                 logger.debug("ELEMENT ADDED!");
-
-                o.addProperty(Sjm.CREATOR, user);
-                o.addProperty(Sjm.CREATED, date);
-
-                o.addProperty(Sjm.ELASTICID, UUID.randomUUID().toString());
-                o.addProperty(Sjm.COMMITID, commitId);
-                o.addProperty(Sjm.MODIFIER, user);
-                o.addProperty(Sjm.MODIFIED, date);
-
                 addedElements.add(o);
-
-                JsonObject newObj = new JsonObject();
-                newObj.add(Sjm.SYSMLID, o.get(Sjm.SYSMLID));
-                newObj.add(Sjm.ELASTICID, o.get(Sjm.ELASTICID));
-                newObj.addProperty(Sjm.TYPE, type);
-                // this for the artifact object, has extra key...
-                if (type.equals("Artifact")) {
-                    newObj.add(Sjm.CONTENTTYPE, o.get(Sjm.CONTENTTYPE));
-                }
-                commitAdded.add(newObj);
+                commitAdded.add(p.commitEntry);
                 newElements.add(o);
-            } else if (updated) {
+            } else if (p.updated) {
                 logger.debug("ELEMENT UPDATED!");
-
-                o.addProperty(Sjm.ELASTICID, UUID.randomUUID().toString());
-                o.addProperty(Sjm.COMMITID, commitId);
-                o.addProperty(Sjm.MODIFIER, user);
-                o.addProperty(Sjm.MODIFIED, date);
-
                 updatedElements.add(o);
-
-                JsonObject parent = new JsonObject();
-                parent.add("previousElasticId", existingMap.get(sysmlid).get(Sjm.ELASTICID));
-                oldElasticIds.add(existingMap.get(sysmlid).getAsJsonObject().get(Sjm.ELASTICID).getAsString());
-                parent.addProperty(Sjm.SYSMLID, sysmlid);
-                parent.add(Sjm.ELASTICID, o.get(Sjm.ELASTICID));
-                parent.addProperty(Sjm.TYPE, type);
-                if (type.equals("Artifact")) {
-                    parent.add(Sjm.CONTENTTYPE, o.get(Sjm.CONTENTTYPE));
-                }
-                commitUpdated.add(parent);
+                oldElasticIds.add(p.previousElasticId);
+                commitUpdated.add(p.commitEntry);
                 newElements.add(o);
             } else {
-                for (Map.Entry<Integer, String> message : rejected.entrySet()) {
+                for (Map.Entry<Integer, String> message : p.rejected.entrySet()) {
                     JsonObject errorPayload = new JsonObject();
                     errorPayload.addProperty("code", message.getKey());
                     errorPayload.add("element", o);
@@ -663,33 +743,234 @@ public class EmsNodeUtil {
         result.add("deletedElements", deletedElements);
         result.add("rejectedElements", rejectedElements);
 
-        commit.add("added", commitAdded);
-        commit.add("updated", commitUpdated);
-        commit.add("deleted", commitDeleted);
-        commit.addProperty(Sjm.CREATOR, user);
-        commit.addProperty(Sjm.CREATED, date);
-        commit.addProperty(Sjm.PROJECTID, projectId);
-        commit.addProperty(Sjm.SOURCE, src);
-        if (!comment.isEmpty()) {
-            commit.addProperty(Sjm.COMMENT, comment);
+        return result;
+    }
+
+    /**
+     * Diff and stamp one posted element. Only touches the element and read only maps, so it can run on any
+     * thread.
+     */
+    private PreparedElement prepareElement(JsonObject o, Map<String, JsonObject> existingMap, Set<String> unchanged,
+        boolean overwriteJson, String type, String commitId, String user, String date, String holdingBinSysmlid) {
+
+        PreparedElement p = new PreparedElement(o);
+        String sysmlid = JsonUtil.getOptString(o, Sjm.SYSMLID);
+
+        p.added = !existingMap.containsKey(sysmlid) && !unchanged.contains(sysmlid);
+        if (!p.added) {
+            if (unchanged.contains(sysmlid)) {
+                p.rejected.put(HttpServletResponse.SC_NOT_MODIFIED, "Is Equivalent");
+            } else if (!overwriteJson) {
+                if (isUpdated(o, existingMap.get(sysmlid), p.rejected)) {
+                    p.updated = diffUpdateJson(o, existingMap.get(sysmlid), p.rejected);
+                }
+            } else {
+                p.updated = true;
+            }
         }
 
-        result.add("commit", commit);
+        o.addProperty(Sjm.PROJECTID, this.projectId);
+        o.addProperty(Sjm.REFID, this.workspaceName);
+        JsonArray arry = new JsonArray();
+        arry.add(this.workspaceName);
+        o.add(Sjm.INREFIDS, arry);
 
-        return result;
+        if (o.has(Sjm.QUALIFIEDID)) {
+            o.remove(Sjm.QUALIFIEDID);
+        }
+        if (o.has(Sjm.QUALIFIEDNAME)) {
+            o.remove(Sjm.QUALIFIEDNAME);
+        }
+
+        if ((!o.has(Sjm.OWNERID) || o.get(Sjm.OWNERID).isJsonNull() || o.get(Sjm.OWNERID).getAsString()
+            .equalsIgnoreCase("null")) && !type.equals("Artifact")) {
+            o.addProperty(Sjm.OWNERID, holdingBinSysmlid);
+        }
+
+        if (p.added) {
+            o.addProperty(Sjm.CREATOR, user);
+            o.addProperty(Sjm.CREATED, date);
+
+            o.addProperty(Sjm.ELASTICID, UUID.randomUUID().toString());
+            o.addProperty(Sjm.COMMITID, commitId);
+            o.addProperty(Sjm.MODIFIER, user);
+            o.addProperty(Sjm.MODIFIED, date);
+
+            JsonObject newObj = new JsonObject();
+            newObj.add(Sjm.SYSMLID, o.get(Sjm.SYSMLID));
+            newObj.add(Sjm.ELASTICID, o.get(Sjm.ELASTICID));
+            newObj.addProperty(Sjm.TYPE, type);
+            // this for the artifact object, has extra key...
+            if (type.equals("Artifact")) {
+                newObj.add(Sjm.CONTENTTYPE, o.get(Sjm.CONTENTTYPE));
+            }
+            p.commitEntry = newObj;
+        } else if (p.updated) {
+            o.addProperty(Sjm.ELASTICID, UUID.randomUUID().toString());
+            o.addProperty(Sjm.COMMITID, commitId);
+            o.addProperty(Sjm.MODIFIER, user);
+            o.addProperty(Sjm.MODIFIED, date);
+
+            JsonObject parent = new JsonObject();
+            parent.add("previousElasticId", existingMap.get(sysmlid).get(Sjm.ELASTICID));
+            p.previousElasticId = existingMap.get(sysmlid).get(Sjm.ELASTICID).getAsString();
+            parent.addProperty(Sjm.SYSMLID, sysmlid);
+            parent.add(Sjm.ELASTICID, o.get(Sjm.ELASTICID));
+            parent.addProperty(Sjm.TYPE, type);
+            if (type.equals("Artifact")) {
+                parent.add(Sjm.CONTENTTYPE, o.get(Sjm.CONTENTTYPE));
+            }
+            p.commitEntry = parent;
+        }
+
+        return p;
+    }
+
+    private static class PreparedElement {
+        final JsonObject element;
+        final Map<Integer, String> rejected = new HashMap<>();
+        boolean added = false;
+        boolean updated = false;
+        JsonObject commitEntry = null;
+        String previousElasticId = null;
+
+        PreparedElement(JsonObject element) {
+            this.element = element;
+        }
+    }
+
+    /**
+     * Splits a chunk into ranges of DIFF_THRESHOLD elements and prepares each range on the diff pool. Small
+     * chunks run on the calling thread.
+     */
+    private class PrepareTask extends RecursiveAction {
+        private final JsonArray elements;
+        private final PreparedElement[] prepared;
+        private final int from;
+        private final int to;
+        private final Map<String, JsonObject> existingMap;
+        private final Set<String> unchanged;
+        private final boolean overwriteJson;
+        private final String type;
+        private final String commitId;
+        private final String user;
+        private final String date;
+        private final String holdingBinSysmlid;
+
+        PrepareTask(JsonArray elements, PreparedElement[] prepared, int from, int to,
+            Map<String, JsonObject> existingMap, Set<String> unchanged, boolean overwriteJson, String type,
+            String commitId, String user, String date, String holdingBinSysmlid) {
+            this.elements = elements;
+            this.prepared = prepared;
+            this.from = from;
+            this.to = to;
+            this.existingMap = existingMap;
+            this.unchanged = unchanged;
+            this.overwriteJson = overwriteJson;
+            this.type = type;
+            this.commitId = commitId;
+            this.user = user;
+            this.date = date;
+            this.holdingBinSysmlid = holdingBinSysmlid;
+        }
+
+        @Override protected void compute() {
+            if (to - from <= DIFF_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    prepared[i] =
+                        prepareElement(elements.get(i).getAsJsonObject(), existingMap, unchanged, overwriteJson,
+                            type, commitId, user, date, holdingBinSysmlid);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PrepareTask(elements, prepared, from, mid, existingMap, unchanged, overwriteJson, type,
+                    commitId, user, date, holdingBinSysmlid),
+                new PrepareTask(elements, prepared, mid, to, existingMap, unchanged, overwriteJson, type, commitId,
+                    user, date, holdingBinSysmlid));
+        }
+    }
+
+    /**
+     * Posted elements whose content hash matches the hash stored for the node. Every copy of a sysmlId in
+     * the post has to match.
+     */
+    private Set<String> findUnchanged(JsonArray elements, Set<String> sysmlids) {
+        Set<String> unchanged = new HashSet<>();
+        Set<String> changed = new HashSet<>();
+        Map<String, String> hashes = pgh.getContentHashes(new ArrayList<>(sysmlids));
+        for (int i = 0; i < elements.size(); i++) {
+            JsonObject o = elements.get(i).getAsJsonObject();
+            String sysmlid = JsonUtil.getOptString(o, Sjm.SYSMLID);
+            String hash = hashes.get(sysmlid);
+            if (hash != null && hash.equals(contentHash(o))) {
+                unchanged.add(sysmlid);
+            } else {
+                changed.add(sysmlid);
+            }
+        }
+        unchanged.removeAll(changed);
+        return unchanged;
+    }
+
+    /**
+     * Keys set by the server on write or read, left out of the content hash
+     */
+    private static final Set<String> serverKeys = new HashSet<>(Arrays
+        .asList(Sjm.ELASTICID, Sjm.COMMITID, Sjm.CREATOR, Sjm.CREATED, Sjm.MODIFIER, Sjm.MODIFIED, Sjm.PROJECTID,
+            Sjm.REFID, Sjm.INREFIDS, Sjm.QUALIFIEDID, Sjm.QUALIFIEDNAME, Sjm.EDITABLE, Sjm.SITECHARACTERIZATIONID));
+
+    /**
+     * SHA-256 of the element with keys sorted and server managed keys removed, so the same content always
+     * hashes the same regardless of key order or who wrote it
+     *
+     * @param element element json
+     * @return hex digest
+     */
+    public static String contentHash(JsonObject element) {
+        JsonObject content = new JsonObject();
+        for (String key : new TreeSet<>(keys(element))) {
+            if (!serverKeys.contains(key)) {
+                content.add(key, canonical(element.get(key)));
+            }
+        }
+        return DigestUtils.sha256Hex(content.toString());
+    }
+
+    private static JsonElement canonical(JsonElement value) {
+        if (value.isJsonObject()) {
+            JsonObject sorted = new JsonObject();
+            JsonObject object = value.getAsJsonObject();
+            for (String key : new TreeSet<>(keys(object))) {
+                sorted.add(key, canonical(object.get(key)));
+            }
+            return sorted;
+        } else if (value.isJsonArray()) {
+            JsonArray array = new JsonArray();
+            for (JsonElement item : value.getAsJsonArray()) {
+                array.add(canonical(item));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    private static Set<String> keys(JsonObject object) {
+        Set<String> keys = new HashSet<>();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            keys.add(entry.getKey());
+        }
+        return keys;
     }
 
     private static final String updateScript =
         "{\"script\": {\"inline\":\"if(ctx._source.containsKey(\\\"%1$s\\\")){ctx._source.%1$s.removeAll([params.refId])}\", \"params\":{\"refId\":\"%2$s\"}}}";
 
     public void updateElasticRemoveRefs(Set<String> elasticIds, String type) {
-        try {
-            String scriptToRun = String.format(updateScript, Sjm.INREFIDS, this.workspaceName);
-            logger.debug(String.format("elastic script: %s", scriptToRun));
-            eh.bulkUpdateElements(elasticIds, scriptToRun, projectId, type);
-        } catch (IOException ex) {
-            // This catch left intentionally blank
-        }
+        String scriptToRun = String.format(updateScript, Sjm.INREFIDS, this.workspaceName);
+        logger.debug(String.format("elastic script: %s", scriptToRun));
+        // old versions may still be waiting in the outbox, so the update has to be queued behind them
+        OutboxIndexer.enqueueUpdate(projectId, elasticIds, scriptToRun, type);
     }
 
     public void deleteRef(String refId) {
@@ -701,54 +982,79 @@ public class EmsNodeUtil {
     }
 
     public JsonObject addChildViews(JsonObject o) {
-        boolean isView = false;
-        if (o.has(Sjm.SYSMLID)) {
-            JsonArray typeArray = JsonUtil.getOptArray(o, Sjm.APPLIEDSTEREOTYPEIDS);
-            for (int i = 0; i < typeArray.size(); i++) {
-                String typeJson = JsonUtil.getOptString(typeArray, i);
-                if (Sjm.STEREOTYPEIDS.containsKey(typeJson) && (Sjm.STEREOTYPEIDS.get(typeJson)
-                    .matches("view|document"))) {
-                    isView = true;
-                }
-            }
-        }
-        if (isView) {
-            JsonArray childViews = new JsonArray();
-            JsonArray ownedAttributes = JsonUtil.getOptArray(o, Sjm.OWNEDATTRIBUTEIDS);
-            Set<String> ownedAttributeSet = new HashSet<>();
-            if (ownedAttributes.size() > 0) {
+        JsonArray single = new JsonArray();
+        single.add(o);
+        addChildViews(single);
+        return o;
+    }
+
+    /**
+     * Adds childViews to the views and documents in elements. The owned attributes of all of them are fetched
+     * in one lookup.
+     *
+     * @param elements modified in place
+     * @return elements
+     */
+    public JsonArray addChildViews(JsonArray elements) {
+        List<JsonObject> views = new ArrayList<>();
+        Set<String> ownedAttributeSet = new HashSet<>();
+        for (int i = 0; i < elements.size(); i++) {
+            if (elements.get(i).isJsonObject() && isView(elements.get(i).getAsJsonObject())) {
+                JsonObject view = elements.get(i).getAsJsonObject();
+                views.add(view);
+                JsonArray ownedAttributes = JsonUtil.getOptArray(view, Sjm.OWNEDATTRIBUTEIDS);
                 for (int j = 0; j < ownedAttributes.size(); j++) {
                     ownedAttributeSet.add(ownedAttributes.get(j).getAsString());
                 }
             }
+        }
+        if (views.isEmpty()) {
+            return elements;
+        }
 
+        Map<String, JsonObject> ownedAttributesMap = new HashMap<>();
+        if (!ownedAttributeSet.isEmpty()) {
             JsonArray ownedAttributesJSON = getNodesBySysmlids(ownedAttributeSet, false, false);
-            Map<String, JsonObject> ownedAttributesMap = new HashMap<>();
             for (int i = 0; i < ownedAttributesJSON.size(); i++) {
                 //originally had optJsonObject, but then it wouldn't have the SYSMLID key in the next line
                 // if the optional empty object is returned
                 JsonObject ownedAttribute = ownedAttributesJSON.get(i).getAsJsonObject();
                 ownedAttributesMap.put(ownedAttribute.get(Sjm.SYSMLID).getAsString(), ownedAttribute);
             }
-            if (ownedAttributes.size() > 0) {
-                for (int j = 0; j < ownedAttributes.size(); j++) {
-                    if (ownedAttributesMap.containsKey(ownedAttributes.get(j).getAsString())) {
-                        JsonObject ownedAttribute = ownedAttributesMap.get(ownedAttributes.get(j).getAsString());
-                        if (ownedAttribute != null && ownedAttribute.get(Sjm.TYPE).getAsString().equals("Property")) {
-                            if (!JsonUtil.getOptString(ownedAttribute, Sjm.TYPEID).equals("")) {
-                                JsonObject childView = new JsonObject();
-                                childView.add(Sjm.SYSMLID, ownedAttribute.get(Sjm.TYPEID));
-                                childView.add(Sjm.AGGREGATION, ownedAttribute.get(Sjm.AGGREGATION));
-                                childView.add(Sjm.PROPERTYID, ownedAttribute.get(Sjm.SYSMLID));
-                                childViews.add(childView);
-                            }
-                        }
+        }
+
+        for (JsonObject o : views) {
+            JsonArray childViews = new JsonArray();
+            JsonArray ownedAttributes = JsonUtil.getOptArray(o, Sjm.OWNEDATTRIBUTEIDS);
+            for (int j = 0; j < ownedAttributes.size(); j++) {
+                JsonObject ownedAttribute = ownedAttributesMap.get(ownedAttributes.get(j).getAsString());
+                if (ownedAttribute != null && ownedAttribute.get(Sjm.TYPE).getAsString().equals("Property")) {
+                    if (!JsonUtil.getOptString(ownedAttribute, Sjm.TYPEID).equals("")) {
+                        JsonObject childView = new JsonObject();
+                        childView.add(Sjm.SYSMLID, ownedAttribute.get(Sjm.TYPEID));
+                        childView.add(Sjm.AGGREGATION, ownedAttribute.get(Sjm.AGGREGATION));
+                        childView.add(Sjm.PROPERTYID, ownedAttribute.get(Sjm.SYSMLID));
+                        childViews.add(childView);
                     }
                 }
             }
             o.add(Sjm.CHILDVIEWS, childViews);
         }
-        return o;
+        return elements;
+    }
+
+    private static boolean isView(JsonObject o) {
+        if (o.has(Sjm.SYSMLID)) {
+            JsonArray typeArray = JsonUtil.getOptArray(o, Sjm.APPLIEDSTEREOTYPEIDS);
+            for (int i = 0; i < typeArray.size(); i++) {
+                String typeJson = JsonUtil.getOptString(typeArray, i);
+                if (Sjm.STEREOTYPEIDS.containsKey(typeJson) && (Sjm.STEREOTYPEIDS.get(typeJson)
+                    .matches("view|document"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     private void reorderChildViews(JsonObject element, JsonArray newElements, JsonArray addedElements,
@@ -1345,8 +1651,8 @@ public class EmsNodeUtil {
             String existingModified = JsonUtil.getOptString(existing, Sjm.MODIFIED);
             if (!jsonModified.isEmpty()) {
                 try {
-                    Date jsonModDate = df.parse(jsonModified);
-                    Date existingModDate = df.parse(existingModified);
+                    Date jsonModDate = diffDateFormat.get().parse(jsonModified);
+                    Date existingModDate = diffDateFormat.get().parse(existingModified);
                     if (jsonModDate.before(existingModDate)) {
                         if (logger.isDebugEnabled()) {
                             logger.debug("Conflict Detected");
@@ -1772,14 +2078,14 @@ public class EmsNodeUtil {
             Map<String, String> deletedElementIds = eh.getDeletedElementsFromCommits(refsCommitsIds, projectId);
             List<String> elasticIds = new ArrayList<>();
             List<String> artifactElasticIds = new ArrayList<>();
-            for (Map<String, Object> n : pgh.getAllNodesWithLastCommitTimestamp()) {
-                processElementForModelAtCommit(n, deletedElementIds, commit, commitId, refsCommitsIds, elements,
-                    elasticIds);
+            try (Stream<Map<String, Object>> nodes = pgh.streamAllNodesWithLastCommitTimestamp()) {
+                nodes.forEach(n -> processElementForModelAtCommit(n, deletedElementIds, commit, commitId,
+                    refsCommitsIds, elements, elasticIds));
             }
 
-            for (Map<String, Object> a : pgh.getAllArtifactsWithLastCommitTimestamp()) {
-                processElementForModelAtCommit(a, deletedElementIds, commit, commitId, refsCommitsIds, artifacts,
-                    artifactElasticIds);
+            try (Stream<Map<String, Object>> nodes = pgh.streamAllArtifactsWithLastCommitTimestamp()) {
+                nodes.forEach(a -> processElementForModelAtCommit(a, deletedElementIds, commit, commitId,
+                    refsCommitsIds, artifacts, artifactElasticIds));
             }
 
             try {
@@ -0,0 +1,322 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.view_repo.db.ElasticHelper;
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+
+/**
+ * Drains the per project postgres outbox into elasticsearch.
+ *
+ * Commits write element, artifact and commit documents to the outbox in the same transaction as the graph
+ * changes. This class indexes them in the background in large bulk requests and removes each row once
+ * elasticsearch accepted it. Documents are indexed by elasticId, so replaying a batch after a failure is
+ * harmless. Rows elasticsearch keeps rejecting are moved to the outboxDead table.
+ */
+public class OutboxIndexer {
+    static Logger logger = Logger.getLogger(OutboxIndexer.class);
+
+    public static final String OP_INDEX = "index";
+    public static final String OP_UPDATE = "update";
+
+    private static final int THREADS = EmsConfig.getInt("elastic.outbox.threads", 4);
+    static final int BATCH = EmsConfig.getInt("elastic.outbox.batch", 5000);
+    private static final int RETRY_SECONDS = EmsConfig.getInt("elastic.outbox.retry", 30);
+    static final int ATTEMPTS = EmsConfig.getInt("elastic.outbox.attempts", 5);
+
+    private static final ProjectLocks drainLocks = ProjectLocks.get("outbox");
+
+    // count of drain requests per project, a drain task exists while the count is above 0
+    private static final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+    private static final Set<String> failed = ConcurrentHashMap.newKeySet();
+
+    private static final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            daemonThreads("outbox-indexer"));
+    private static final ScheduledExecutorService retry =
+        Executors.newSingleThreadScheduledExecutor(daemonThreads("outbox-retry"));
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+        retry.scheduleWithFixedDelay(OutboxIndexer::retryFailed, RETRY_SECONDS, RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private OutboxIndexer() {
+    }
+
+    /**
+     * Builds outbox rows for documents to be indexed
+     *
+     * @param docs     documents, each must have an elasticId
+     * @param commitId commit the documents belong to
+     * @param type     elasticsearch type
+     * @return rows for PostgresHelper.runBatchQueries(rows, "outbox")
+     */
+    public static List<Map<String, Object>> indexRows(JsonArray docs, String commitId, String type) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < docs.size(); i++) {
+            JsonObject doc = docs.get(i).getAsJsonObject();
+            if (!doc.has(Sjm.ELASTICID)) {
+                continue;
+            }
+            Map<String, Object> row = new HashMap<>();
+            row.put("commitid", commitId);
+            row.put(Sjm.ELASTICID, doc.get(Sjm.ELASTICID).getAsString());
+            row.put("estype", type);
+            row.put("op", OP_INDEX);
+            row.put("doc", doc.toString());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Builds outbox rows for an update of documents, to be written in a transaction of the caller
+     *
+     * @param elasticIds documents to update
+     * @param payload    update body, as passed to ElasticHelper.bulkUpdateElements
+     * @param type       elasticsearch type
+     * @return rows for PostgresHelper.runBatchQueries(rows, "outbox")
+     */
+    public static List<Map<String, Object>> updateRows(Collection<String> elasticIds, String payload, String type) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (String elasticId : elasticIds) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("commitid", null);
+            row.put(Sjm.ELASTICID, elasticId);
+            row.put("estype", type);
+            row.put("op", OP_UPDATE);
+            row.put("doc", payload);
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Queues a bulk update (partial doc or script) for documents that may not be indexed yet, so it is
+     * applied after any pending index of the same documents.
+     *
+     * @param projectId  project
+     * @param elasticIds documents to update
+     * @param payload    update body, as passed to ElasticHelper.bulkUpdateElements
+     * @param type       elasticsearch type
+     */
+    public static void enqueueUpdate(String projectId, Set<String> elasticIds, String payload, String type) {
+        if (elasticIds.isEmpty()) {
+            return;
+        }
+        List<Map<String, Object>> rows = updateRows(elasticIds, payload, type);
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(projectId);
+        try {
+            pgh.runBatchQueries(rows, "outbox");
+        } catch (SQLException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            return;
+        } finally {
+            pgh.close();
+        }
+        schedule(projectId);
+    }
+
+    /**
+     * Request a background drain of the project outbox
+     *
+     * @param projectId project
+     */
+    public static void schedule(String projectId) {
+        AtomicInteger count = requests.computeIfAbsent(projectId, k -> new AtomicInteger());
+        if (count.getAndIncrement() == 0) {
+            executor.execute(() -> {
+                int seen;
+                do {
+                    seen = count.get();
+                    if (!drain(projectId, false)) {
+                        failed.add(projectId);
+                    }
+                } while (!count.compareAndSet(seen, 0));
+            });
+        }
+    }
+
+    /**
+     * Drain the project outbox on the calling thread. Only one thread drains a project at a time, rows
+     * elasticsearch rejects are retried up to elastic.outbox.attempts times and then dead lettered.
+     *
+     * @param projectId project
+     * @param refresh   wait for the indexed documents to become searchable
+     * @return true if the outbox was emptied
+     */
+    public static boolean drain(String projectId, boolean refresh) {
+        Lock lock = drainLocks.lock(projectId);
+        try {
+            return drainLocked(projectId, refresh);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean drainLocked(String projectId, boolean refresh) {
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(projectId);
+        try {
+            return drainLocked(pgh, new ElasticHelper(), projectId, refresh);
+        } catch (Exception e) {
+            logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            return false;
+        } finally {
+            pgh.close();
+        }
+    }
+
+    /**
+     * Drain the outbox with the given helpers, the caller holds the drain lock and closes pgh
+     */
+    static boolean drainLocked(PostgresHelper pgh, ElasticHelper eh, String projectId, boolean refresh)
+        throws IOException {
+        boolean indexed = false;
+        while (true) {
+            List<Map<String, String>> rows = pgh.getOutboxBatch(BATCH);
+            if (rows.isEmpty()) {
+                if (refresh && !indexed) {
+                    // another thread drained our rows while we waited for the lock, possibly without refresh
+                    eh.refreshIndex(projectId);
+                }
+                return true;
+            }
+            indexed = true;
+            Map<Integer, String> rejected = new HashMap<>();
+            Set<Integer> retry = new HashSet<>();
+            indexBatch(eh, rows, projectId, refresh, rejected, retry);
+
+            // later rows of a document that failed wait for it, so they are applied in order
+            Set<String> held = new HashSet<>();
+            List<Long> done = new ArrayList<>();
+            List<Long> failedIds = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            for (int i = 0; i < rows.size(); i++) {
+                Map<String, String> row = rows.get(i);
+                String elasticId = row.get(Sjm.ELASTICID);
+                if (rejected.containsKey(i)) {
+                    failedIds.add(Long.parseLong(row.get("id")));
+                    errors.add(rejected.get(i));
+                    held.add(elasticId);
+                } else if (retry.contains(i)) {
+                    held.add(elasticId);
+                } else if (!held.contains(elasticId)) {
+                    done.add(Long.parseLong(row.get("id")));
+                }
+            }
+            pgh.deleteFromOutbox(done);
+            if (!held.isEmpty()) {
+                int dead = pgh.failOutboxRows(failedIds, errors, ATTEMPTS);
+                logger.warn(String.format("Outbox for %s: %d rows rejected, %d to retry, %d dead lettered",
+                    projectId, rejected.size(), retry.size(), dead));
+                return false;
+            }
+            if (rows.size() < BATCH) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Applies pending outbox rows for documents elasticsearch does not have yet. Only partial doc updates
+     * are applied, script updates only matter to searches.
+     *
+     * @param rows rows from PostgresHelper.getOutboxDocuments, in write order
+     * @return documents by elasticId
+     */
+    public static Map<String, JsonObject> pendingDocuments(List<Map<String, String>> rows) {
+        Map<String, JsonObject> docs = new LinkedHashMap<>();
+        for (Map<String, String> row : rows) {
+            String elasticId = row.get(Sjm.ELASTICID);
+            if (OP_INDEX.equals(row.get("op"))) {
+                JsonObject doc = JsonUtil.buildFromString(row.get("doc"));
+                doc.addProperty(Sjm.ELASTICID, elasticId);
+                docs.put(elasticId, doc);
+            } else if (docs.containsKey(elasticId)) {
+                JsonObject update = JsonUtil.buildFromString(row.get("doc"));
+                if (update.has("doc") && update.get("doc").isJsonObject()) {
+                    JsonObject doc = docs.get(elasticId);
+                    for (Map.Entry<String, JsonElement> entry : update.getAsJsonObject("doc").entrySet()) {
+                        doc.add(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+        return docs;
+    }
+
+    /**
+     * Indexes rows in write order, grouping consecutive rows with the same type into one bulk request
+     *
+     * @param rejected filled with the error of each row elasticsearch rejected, by position in rows
+     * @param retry    filled with the positions of rows to try again later
+     */
+    private static void indexBatch(ElasticHelper eh, List<Map<String, String>> rows, String projectId,
+        boolean refresh, Map<Integer, String> rejected, Set<Integer> retry) throws IOException {
+        int start = 0;
+        while (start < rows.size()) {
+            String type = rows.get(start).get("esType");
+            int end = start;
+            while (end < rows.size() && type.equals(rows.get(end).get("esType"))) {
+                end++;
+            }
+            Map<Integer, String> runRejected = new HashMap<>();
+            Set<Integer> runRetry = new HashSet<>();
+            eh.bulkOutbox(rows.subList(start, end), refresh, projectId, type, runRejected, runRetry);
+            for (Map.Entry<Integer, String> entry : runRejected.entrySet()) {
+                rejected.put(start + entry.getKey(), entry.getValue());
+            }
+            for (Integer i : runRetry) {
+                retry.add(start + i);
+            }
+            start = end;
+        }
+    }
+
+    private static void retryFailed() {
+        for (String projectId : new ArrayList<>(failed)) {
+            failed.remove(projectId);
+            schedule(projectId);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger number = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(() -> {
+                PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+                r.run();
+            }, name + "-" + number.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package gov.nasa.jpl.view_repo.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.gson.JsonObject;
+
+/**
+ * Striped locks keyed by project or ref. Writes to one project only wait on writes to the same stripe instead
+ * of the whole server. Counts how often and how long callers had to wait.
+ */
+public class ProjectLocks {
+
+    private static final int STRIPES = EmsConfig.getInt("locks.stripes", 64);
+
+    private static final Map<String, ProjectLocks> registry = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final Striped<Lock> stripes = Striped.lock(STRIPES);
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private ProjectLocks(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Shared lock set for a write path, created on first use
+     *
+     * @param name write path, reported with the contention stats
+     */
+    public static ProjectLocks get(String name) {
+        return registry.computeIfAbsent(name, ProjectLocks::new);
+    }
+
+    /**
+     * Lock the stripe for a key, the caller has to unlock the returned lock
+     *
+     * @param key project id, or project and ref id
+     * @return the held lock
+     */
+    public Lock lock(String key) {
+        Lock lock = stripes.get(key != null ? key : "");
+        if (!lock.tryLock()) {
+            contended.increment();
+            long start = System.nanoTime();
+            lock.lock();
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+        acquired.increment();
+        return lock;
+    }
+
+    public static String key(String projectId, String refId) {
+        return String.format("%s/%s", projectId, refId != null ? refId : "master");
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("name", name);
+        json.addProperty("stripes", STRIPES);
+        json.addProperty("acquired", acquired.sum());
+        json.addProperty("contended", contended.sum());
+        json.addProperty("waitMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()));
+        json.addProperty("maxWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+        return json;
+    }
+
+    /**
+     * @return contention stats of every lock set, keyed by name
+     */
+    public static JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        for (ProjectLocks locks : registry.values()) {
+            stats.add(locks.name, locks.toJson());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,185 @@
+package gov.nasa.jpl.view_repo.util.tasks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
+import gov.nasa.jpl.view_repo.util.JsonUtil;
+import gov.nasa.jpl.view_repo.util.LogUtil;
+
+/**
+ * Runs branch and tag creation from a job table in the config database shared by every server. Each server
+ * runs at most branch.threads jobs and a project at most branch.project.concurrency jobs across all servers.
+ * Servers keep a heartbeat on their running jobs, jobs of a server that stopped are queued again and restart
+ * from scratch.
+ */
+public class BranchScheduler {
+    static Logger logger = Logger.getLogger(BranchScheduler.class);
+
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static final int THREADS = EmsConfig.getInt("branch.threads", 2);
+    private static final int PER_PROJECT = EmsConfig.getInt("branch.project.concurrency", 2);
+    private static final int POLL_SECONDS = EmsConfig.getInt("branch.poll", 5);
+    private static final int STALE_SECONDS = EmsConfig.getInt("branch.stale", 300);
+    private static final int MAX_ATTEMPTS = EmsConfig.getInt("branch.attempts", 3);
+
+    private static final String owner = EmsNodeUtil.getHostname();
+    private static final AtomicInteger running = new AtomicInteger();
+
+    private static final ExecutorService workers = Executors.newFixedThreadPool(THREADS, r -> {
+        // branch jobs use the bulk connection pools so they cannot starve user requests
+        Thread t = new Thread(() -> {
+            PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+            r.run();
+        }, "branch-job");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "branch-dispatcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private BranchScheduler() {
+    }
+
+    /**
+     * Starts dispatching on this server. Jobs this server was running before a restart are queued again.
+     */
+    public static void start() {
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.createBranchJobsTable();
+        int recovered = pgh.requeueBranchJobs(owner, STALE_SECONDS, QUEUED, RUNNING);
+        if (recovered > 0) {
+            logger.info(String.format("Queued %d interrupted branch jobs again", recovered));
+        }
+        dispatcher.scheduleWithFixedDelay(BranchScheduler::dispatch, POLL_SECONDS, POLL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Queue a branch. Branches from the head of a ref only copy tables and go ahead of branches from a
+     * past commit.
+     *
+     * @return false if the job could not be stored
+     */
+    public static boolean submit(BranchTask task) {
+        int priority = task.hasCommit() ? 0 : 1;
+        long id = new PostgresHelper()
+            .insertBranchJob(task.getProjectId(), task.getRefId(), task.toJson().toString(), priority, QUEUED);
+        if (id == 0) {
+            return false;
+        }
+        dispatcher.execute(BranchScheduler::dispatch);
+        return true;
+    }
+
+    private static void dispatch() {
+        try {
+            PostgresHelper pgh = new PostgresHelper();
+            if (running.get() > 0) {
+                pgh.heartbeatBranchJobs(owner, RUNNING);
+            }
+            pgh.requeueBranchJobs(null, STALE_SECONDS, QUEUED, RUNNING);
+            while (running.get() < THREADS) {
+                Map<String, Object> job = pgh.claimBranchJob(owner, PER_PROJECT, QUEUED, RUNNING);
+                if (job == null) {
+                    break;
+                }
+                running.incrementAndGet();
+                workers.execute(() -> run(job));
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+    }
+
+    private static void run(Map<String, Object> job) {
+        long id = (long) job.get("id");
+        int attempts = (int) job.get("attempts");
+        PostgresHelper pgh = new PostgresHelper();
+        try {
+            if (attempts > MAX_ATTEMPTS) {
+                pgh.finishBranchJob(id, FAILED, String.format("Gave up after %d attempts", MAX_ATTEMPTS));
+                return;
+            }
+            BranchTask task = BranchTask.fromJson(JsonUtil.buildFromString(job.get("task").toString()));
+            task.setJob(id, attempts);
+            JsonObject result = task.call();
+            String status = JsonUtil.getOptString(JsonUtil.getOptObject(result, "createdRef"), "status");
+            if (status.equals("created")) {
+                pgh.finishBranchJob(id, DONE, null);
+            } else {
+                fail(pgh, id, attempts, null);
+            }
+        } catch (Exception e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            fail(pgh, id, attempts, e.getMessage());
+        } finally {
+            running.decrementAndGet();
+            dispatcher.execute(BranchScheduler::dispatch);
+        }
+    }
+
+    /**
+     * A failed attempt goes back in the queue until the job is out of attempts
+     */
+    private static void fail(PostgresHelper pgh, long id, int attempts, String message) {
+        if (attempts < MAX_ATTEMPTS) {
+            pgh.retryBranchJob(id, QUEUED, message);
+        } else {
+            pgh.finishBranchJob(id, FAILED, message);
+        }
+    }
+
+    /**
+     * Records the phase a job is in and how long finished phases took
+     */
+    static void phase(long id, String phase, JsonObject phases) {
+        if (id > 0) {
+            new PostgresHelper().setBranchJobPhase(id, phase, phases.toString());
+        }
+    }
+
+    /**
+     * @param refId only jobs for this ref, or null for every job of the project
+     * @return jobs newest first
+     */
+    public static JsonArray getJobs(String projectId, String refId, int limit) {
+        JsonArray jobs = new JsonArray();
+        List<Map<String, String>> rows = new PostgresHelper().getBranchJobs(projectId, refId, limit);
+        for (Map<String, String> row : rows) {
+            JsonObject job = new JsonObject();
+            for (Map.Entry<String, String> entry : row.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                if (entry.getKey().equals("phases")) {
+                    job.add("phases", JsonUtil.buildFromString(entry.getValue()));
+                } else {
+                    job.addProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            jobs.add(job);
+        }
+        return jobs;
+    }
+}
@@ -10,6 +10,7 @@ import gov.nasa.jpl.view_repo.util.EmsConfig;
 import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
 import gov.nasa.jpl.view_repo.util.JsonUtil;
 import gov.nasa.jpl.view_repo.util.LogUtil;
+import gov.nasa.jpl.view_repo.util.OutboxIndexer;
 import gov.nasa.jpl.view_repo.util.Sjm;
 import org.alfresco.service.ServiceRegistry;
 import org.apache.log4j.Logger;
@@ -34,8 +35,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.stream.Stream;
 
 public class BranchTask implements Callable<JsonObject>, Serializable {
 
@@ -72,6 +73,12 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
     private transient ElasticHelper eh;
     private transient PostgresHelper pgh;
 
+    private transient long jobId = 0;
+    private transient int attempts = 1;
+    private transient JsonObject phases = new JsonObject();
+    private transient String currentPhase = null;
+    private transient long phaseStart = 0;
+
     public BranchTask(String projectId, String srcId, String createdString, String elasticId, Boolean isTag,
         String source, String commitId, String author) {
         this.projectId = projectId;
@@ -88,14 +95,68 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
         return createBranch();
     }
 
+    public String getProjectId() {
+        return projectId;
+    }
+
+    /**
+     * @return id of the ref being created
+     */
+    public String getRefId() {
+        return JsonUtil.getOptString(JsonUtil.buildFromString(createdString), Sjm.SYSMLID);
+    }
+
+    public boolean hasCommit() {
+        return commitId != null && !commitId.isEmpty();
+    }
+
+    /**
+     * Job this task runs for, a later attempt first removes what the earlier one left behind
+     */
+    void setJob(long jobId, int attempts) {
+        this.jobId = jobId;
+        this.attempts = attempts;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("projectId", projectId);
+        json.addProperty("srcId", srcId);
+        json.addProperty("created", createdString);
+        json.addProperty(Sjm.ELASTICID, elasticId);
+        json.addProperty("isTag", isTag);
+        json.addProperty("source", source);
+        json.addProperty(Sjm.COMMITID, commitId);
+        json.addProperty("author", author);
+        return json;
+    }
+
+    public static BranchTask fromJson(JsonObject json) {
+        return new BranchTask(JsonUtil.getOptString(json, "projectId", null), JsonUtil.getOptString(json, "srcId", null),
+            JsonUtil.getOptString(json, "created", null), JsonUtil.getOptString(json, Sjm.ELASTICID, null),
+            json.has("isTag") && !json.get("isTag").isJsonNull() && json.get("isTag").getAsBoolean(), JsonUtil.getOptString(json, "source", null),
+            JsonUtil.getOptString(json, Sjm.COMMITID, null), JsonUtil.getOptString(json, "author", null));
+    }
+
+    /**
+     * Ends the current phase and records its time on the job
+     */
+    private void phase(String name) {
+        long now = System.currentTimeMillis();
+        if (currentPhase != null) {
+            phases.addProperty(currentPhase, now - phaseStart);
+        }
+        currentPhase = name;
+        phaseStart = now;
+        BranchScheduler.phase(jobId, name, phases);
+    }
+
     // used in createBranch
     private static final String refScript =
         "{\"script\": {\"inline\": \"if(ctx._source.containsKey(\\\"%1$s\\\")){ctx._source.%1$s.add(params.refId)} else {ctx._source.%1$s = [params.refId]}\", \"params\":{\"refId\":\"%2$s\"}}}";
 
     private JsonObject createBranch() {
 
-        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-
         timer = new Timer();
         JsonObject created = JsonUtil.buildFromString(createdString);
 
@@ -116,13 +177,24 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
 
         try {
             eh = new ElasticHelper();
-            pgh.createBranchFromWorkspace(created.get(Sjm.SYSMLID).getAsString(), created.get(Sjm.NAME).getAsString(),
-                elasticId, commitId, isTag);
+            phase("tableCopy");
+            if (attempts > 1) {
+                pgh.dropPartialBranch(created.get(Sjm.SYSMLID).getAsString());
+            }
+            // everything committed to the source ref has to be searchable before it is copied
+            OutboxIndexer.drain(projectId, true);
+            JsonObject tables = pgh.createBranchFromWorkspace(created.get(Sjm.SYSMLID).getAsString(),
+                created.get(Sjm.NAME).getAsString(), elasticId, commitId, isTag);
+            if (tables == null) {
+                throw new SQLException("Could not copy tables from " + srcId);
+            }
+            phases.add("tables", tables);
 
             logger.info(String.format("Finished copying db tables for branch %s started by %s at %s",
                 created.get(Sjm.SYSMLID).getAsString(), JsonUtil.getOptString(created, Sjm.CREATOR), timer));
 
             if (hasCommit) {
+                phase("modelAtCommit");
                 pgh.setWorkspace(created.get(Sjm.SYSMLID).getAsString());
                 EmsNodeUtil emsNodeUtil = new EmsNodeUtil(projectId, srcId);
                 JsonObject modelFromCommit = emsNodeUtil.getModelAtCommit(commitId);
@@ -142,6 +214,7 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
                 logger.info(String.format("Finished processing nodes and edges for branch %s started by %s at %s",
                     created.get(Sjm.SYSMLID).getAsString(), JsonUtil.getOptString(created, Sjm.CREATOR), timer));
 
+                phase("edgeInsert");
                 if (!nodeInserts.isEmpty()) {
                     insertForBranchInPast(pgh, nodeInserts, "updates", projectId);
                 }
@@ -178,18 +251,21 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
                 pgh.setWorkspace(created.get(Sjm.SYSMLID).getAsString());
             }
 
-            Set<String> nodesToUpdate = pgh.getElasticIdsNodes();
+            phase("elasticRefUpdate");
             String scriptToRun = String.format(refScript, Sjm.INREFIDS, created.get(Sjm.SYSMLID).getAsString());
             created.addProperty("status", "created");
 
-            Set<String> artifactsToUpdate = pgh.getElasticIdsArtifacts();
-
             if (logger.isDebugEnabled()) {
                 logger.debug("inRefId update: " + scriptToRun);
             }
 
-            eh.bulkUpdateElements(nodesToUpdate, scriptToRun, projectId, "element");
-            eh.bulkUpdateElements(artifactsToUpdate, scriptToRun, projectId, "artifact");
+            // ids are streamed from a cursor straight into the bulk requests
+            try (Stream<String> nodesToUpdate = pgh.streamElasticIds("nodes", false)) {
+                eh.bulkUpdateElements(nodesToUpdate.iterator(), scriptToRun, projectId, "element");
+            }
+            try (Stream<String> artifactsToUpdate = pgh.streamElasticIds("artifacts", false)) {
+                eh.bulkUpdateElements(artifactsToUpdate.iterator(), scriptToRun, projectId, "artifact");
+            }
 
             created.addProperty("status", "created");
 
@@ -199,6 +275,8 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
             logger.info("Branch creation failed");
             logger.info(String.format("%s", LogUtil.getStackTrace(e)));
             created.addProperty("status", "failed");
+            // the ref must not point at tables that are incomplete, a retry builds the branch again
+            pgh.dropPartialBranch(created.get(Sjm.SYSMLID).getAsString());
         }
 
         try {
@@ -206,6 +284,7 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
         } catch (Exception e) {
             //Do nothing
         }
+        phase(created.get("status").getAsString());
 
         branchJson = bJson;
         done();
@@ -426,6 +505,7 @@ public class BranchTask implements Callable<JsonObject>, Serializable {
             pgh.commitTransaction();
             nullParents = pgh.findNullParents();
             if (nullParents != null) {
+                pgh.clearContentHashes(nullParents);
                 CommitUtil.updateNullEdges(nullParents, projectId);
             }
             pgh.cleanEdges();
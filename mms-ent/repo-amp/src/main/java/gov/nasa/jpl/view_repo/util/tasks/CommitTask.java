@@ -0,0 +1,184 @@
+package gov.nasa.jpl.view_repo.util.tasks;
+
+import gov.nasa.jpl.mbee.util.Timer;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+import gov.nasa.jpl.view_repo.util.CommitStatus;
+import gov.nasa.jpl.view_repo.util.CommitUtil;
+import gov.nasa.jpl.view_repo.util.CommitWriter;
+import gov.nasa.jpl.view_repo.util.ElementChunkReader;
+import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
+import gov.nasa.jpl.view_repo.util.JsonUtil;
+import gov.nasa.jpl.view_repo.util.LogUtil;
+import gov.nasa.jpl.view_repo.util.Sjm;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Processes a spooled element post in the background. Used by ModelPost when async=true so large commits do
+ * not hold the request open. Progress is recorded through CommitStatus.
+ */
+public class CommitTask implements Callable<JsonObject> {
+
+    static Logger logger = Logger.getLogger(CommitTask.class);
+
+    private static final int THREADS = EmsConfig.getInt("commit.async.threads", 2);
+    private static final int QUEUE = EmsConfig.getInt("commit.async.queue", 20);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(THREADS, THREADS, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE), r -> {
+            // commits run from a spool, they use the bulk connection pools so they cannot starve user requests
+            Thread t = new Thread(() -> {
+                PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+                r.run();
+            }, "async-commit-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+    private final String projectId;
+    private final String refId;
+    private final String user;
+    private final String commitId;
+    private final File spool;
+    private final boolean overwriteJson;
+    private final ServiceRegistry services;
+    private final CommitStatus status;
+
+    public CommitTask(String projectId, String refId, String user, String commitId, File spool,
+        boolean overwriteJson, ServiceRegistry services) {
+        this.projectId = projectId;
+        this.refId = refId;
+        this.user = user;
+        this.commitId = commitId;
+        this.spool = spool;
+        this.overwriteJson = overwriteJson;
+        this.services = services;
+        this.status = new CommitStatus(projectId, refId, commitId, user);
+    }
+
+    /**
+     * Queue the task on the bounded commit executor
+     *
+     * @return false if the executor is full
+     */
+    public boolean submit() {
+        status.update(CommitStatus.ACCEPTED);
+        try {
+            executor.submit(this);
+            return true;
+        } catch (RejectedExecutionException e) {
+            status.update(CommitStatus.FAILED, "Too many commits are being processed, try again later");
+            cleanup();
+            return false;
+        }
+    }
+
+    @Override public JsonObject call() {
+        try {
+            return AuthenticationUtil.runAs(() -> {
+                RetryingTransactionHelper helper = services.getTransactionService().getRetryingTransactionHelper();
+                // a retry would post the same commit twice
+                helper.setMaxRetries(0);
+                return helper.doInTransaction(this::process, false, true);
+            }, user);
+        } catch (Exception e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            status.update(CommitStatus.FAILED, "Commit failed, please check server logs for failed items");
+            return null;
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * Streams the spooled post through the diff and the commit writer a chunk at a time, so only one chunk
+     * of elements is in memory
+     */
+    private JsonObject process() throws IOException, SQLException {
+        Timer timer = new Timer();
+
+        EmsNodeUtil emsNodeUtil = new EmsNodeUtil(projectId, refId);
+        JsonObject commit = emsNodeUtil.createCommit(commitId, user);
+        CommitWriter writer = new CommitWriter(projectId, refId, commitId, services);
+        Set<String> oldElasticIds = new HashSet<>();
+
+        int added = 0;
+        int updated = 0;
+        int deleted = 0;
+        int rejected = 0;
+        boolean parsed = false;
+        String source;
+
+        try (InputStream in = new FileInputStream(spool); ElementChunkReader reader = new ElementChunkReader(in)) {
+            JsonArray chunk;
+            while ((chunk = reader.next()) != null) {
+                if (!parsed) {
+                    status.update(CommitStatus.PARSED);
+                    parsed = true;
+                }
+                JsonObject results =
+                    emsNodeUtil.processPostChunk(chunk, commit, oldElasticIds, overwriteJson, Sjm.ELEMENT);
+                added += JsonUtil.getOptArray(results, "addedElements").size();
+                updated += JsonUtil.getOptArray(results, "updatedElements").size();
+                deleted += JsonUtil.getOptArray(results, "deletedElements").size();
+                rejected += JsonUtil.getOptArray(results, "rejectedElements").size();
+                writer.stage(results);
+            }
+            source = reader.getSource();
+            emsNodeUtil.finishCommit(commit, source, reader.getComment());
+        } catch (IOException | SQLException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        String counts =
+            String.format("added: %d, updated: %d, deleted: %d, rejected: %d", added, updated, deleted, rejected);
+        status.update(CommitStatus.DIFFED, counts);
+
+        if (added + updated + deleted == 0) {
+            writer.abort();
+            status.update(CommitStatus.REJECTED, String.format("No changes, rejected: %d", rejected));
+            return commit;
+        }
+
+        if (!CommitUtil.sendDeltas(writer, commit, projectId, refId, source, false, status)) {
+            status.update(CommitStatus.FAILED, "Commit failed, please check server logs for failed items");
+            return commit;
+        }
+        if (!oldElasticIds.isEmpty()) {
+            emsNodeUtil.updateElasticRemoveRefs(oldElasticIds, "element");
+        }
+
+        status.update(CommitStatus.PUBLISHED, counts);
+        logger.info(String.format("Async commit %s finished at %s", commitId, timer));
+
+        return commit;
+    }
+
+    private void cleanup() {
+        if (spool.exists() && !spool.delete()) {
+            logger.warn(String.format("Unable to delete spool file %s", spool));
+        }
+    }
+}
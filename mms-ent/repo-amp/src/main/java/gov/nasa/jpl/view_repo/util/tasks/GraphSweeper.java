@@ -0,0 +1,92 @@
+package gov.nasa.jpl.view_repo.util.tasks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import gov.nasa.jpl.mbee.util.Pair;
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+import gov.nasa.jpl.view_repo.util.CommitUtil;
+import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.LogUtil;
+import gov.nasa.jpl.view_repo.util.Sjm;
+
+/**
+ * Commits only clean up the edges of the elements they change. Every graph.sweep.interval seconds this moves
+ * any other containment edges without an owner to the holding bin and drops edges missing an end, on every ref
+ * of every project. Only one server sweeps at a time. An interval of 0 turns the sweep off.
+ */
+public class GraphSweeper {
+    static Logger logger = Logger.getLogger(GraphSweeper.class);
+
+    private static final int INTERVAL_SECONDS = EmsConfig.getInt("graph.sweep.interval", 3600);
+
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(() -> {
+            PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+            r.run();
+        }, "graph-sweeper");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    private GraphSweeper() {
+    }
+
+    public static void start() {
+        if (INTERVAL_SECONDS > 0) {
+            sweeper.scheduleWithFixedDelay(GraphSweeper::sweep, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void sweep() {
+        try {
+            // every server schedules the sweep, the one holding the lock runs it
+            if (!new PostgresHelper().runExclusive("graphSweep", GraphSweeper::sweepAll)) {
+                logger.info("Graph sweep skipped, another server is sweeping");
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+        }
+    }
+
+    private static void sweepAll() {
+        long start = System.currentTimeMillis();
+        int moved = 0;
+        PostgresHelper pgh = new PostgresHelper();
+        for (Map<String, String> org : pgh.getOrganizations(null)) {
+            for (Map<String, Object> project : pgh.getProjects(org.get("orgId"))) {
+                moved += sweep(project.get(Sjm.SYSMLID).toString());
+            }
+        }
+        logger.info(String.format("Graph sweep moved %d elements to the holding bin in %d ms", moved,
+            System.currentTimeMillis() - start));
+    }
+
+    private static int sweep(String projectId) {
+        int moved = 0;
+        PostgresHelper pgh = new PostgresHelper();
+        pgh.setProject(projectId);
+        for (Pair<String, String> ref : pgh.getRefsElastic()) {
+            try {
+                pgh.setWorkspace(ref.first);
+                List<String> nullParents = pgh.findNullParents();
+                if (!nullParents.isEmpty()) {
+                    pgh.clearContentHashes(nullParents);
+                    CommitUtil.updateNullEdges(nullParents, projectId);
+                    moved += nullParents.size();
+                }
+                pgh.cleanEdges();
+            } catch (RuntimeException e) {
+                logger.warn(String.format("%s", LogUtil.getStackTrace(e)));
+            }
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,78 @@
+package gov.nasa.jpl.view_repo.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.mbee.util.Timer;
+import gov.nasa.jpl.view_repo.util.Sjm;
+import gov.nasa.jpl.view_repo.util.tasks.BranchScheduler;
+
+/**
+ * Reports the branch and tag jobs of a project, with the time spent in each phase
+ */
+public class BranchJobsGet extends AbstractJavaWebScript {
+
+    static Logger logger = Logger.getLogger(BranchJobsGet.class);
+
+    public BranchJobsGet() {
+        super();
+    }
+
+    public BranchJobsGet(Repository repositoryHelper, ServiceRegistry registry) {
+        super(repositoryHelper, registry);
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        BranchJobsGet instance = new BranchJobsGet(repository, getServices());
+        return instance.executeImplImpl(req, status, cache);
+    }
+
+    @Override
+    protected Map<String, Object> executeImplImpl(WebScriptRequest req, Status status, Cache cache) {
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        printHeader(user, logger, req);
+        Timer timer = new Timer();
+
+        Map<String, Object> model = new HashMap<>();
+
+        String projectId = getProjectId(req);
+        String refId = req.getServiceMatch().getTemplateVars().get(REF_ID);
+        String limit = req.getParameter("limit");
+
+        try {
+            int limitVal = limit == null || limit.isEmpty() ? 100 : Integer.parseInt(limit);
+            JsonObject json = new JsonObject();
+            json.add("jobs", BranchScheduler.getJobs(projectId, refId, limitVal));
+            model.put(Sjm.RES, json);
+        } catch (NumberFormatException e) {
+            log(Level.ERROR, HttpServletResponse.SC_BAD_REQUEST, "Invalid limit");
+            model.put(Sjm.RES, createResponseJson());
+        } catch (Exception e) {
+            log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error", e);
+            model.put(Sjm.RES, createResponseJson());
+        }
+
+        status.setCode(responseStatus.getCode());
+
+        printFooter(user, logger, timer);
+        return model;
+    }
+
+    @Override protected boolean validateRequest(WebScriptRequest req, Status status) {
+        return true;
+    }
+}
@@ -0,0 +1,119 @@
+package gov.nasa.jpl.view_repo.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.mbee.util.Timer;
+import gov.nasa.jpl.view_repo.util.ChangeFeed;
+import gov.nasa.jpl.view_repo.util.EmsConfig;
+import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
+import gov.nasa.jpl.view_repo.util.Sjm;
+
+/**
+ * Commits made on a ref after the commit a client last saw, so clients can sync by changes instead of
+ * downloading the model again. With timeout set the request waits for the next commit when there is none yet.
+ */
+public class ChangeFeedGet extends AbstractJavaWebScript {
+
+    static Logger logger = Logger.getLogger(ChangeFeedGet.class);
+
+    private static final int MAX_TIMEOUT = EmsConfig.getInt("feed.timeout.max", 60);
+    private static final int POLL_MILLIS = EmsConfig.getInt("feed.poll", 5000);
+    private static final int MAX_LIMIT = EmsConfig.getInt("feed.limit.max", 1000);
+
+    public ChangeFeedGet() {
+        super();
+    }
+
+    public ChangeFeedGet(Repository repositoryHelper, ServiceRegistry registry) {
+        super(repositoryHelper, registry);
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        ChangeFeedGet instance = new ChangeFeedGet(repository, getServices());
+        return instance.executeImplImpl(req, status, cache);
+    }
+
+    @Override
+    protected Map<String, Object> executeImplImpl(WebScriptRequest req, Status status, Cache cache) {
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        printHeader(user, logger, req);
+        Timer timer = new Timer();
+
+        Map<String, Object> model = new HashMap<>();
+
+        String projectId = getProjectId(req);
+        String refId = getRefId(req);
+        String since = req.getParameter("since");
+        boolean withElements = Boolean.parseBoolean(req.getParameter("elements"));
+        int limit = Math.min(parseInt(req.getParameter("limit"), 100), MAX_LIMIT);
+        long timeout = Math.min(parseInt(req.getParameter("timeout"), 0), MAX_TIMEOUT) * 1000L;
+
+        try {
+            EmsNodeUtil emsNodeUtil = new EmsNodeUtil(projectId, refId);
+            if (since == null || since.isEmpty()) {
+                // a new client starts at the head of the ref
+                JsonObject feed = new JsonObject();
+                feed.add("commits", new JsonArray());
+                feed.addProperty("lastCommitId", emsNodeUtil.getHeadCommit());
+                feed.addProperty("more", false);
+                model.put(Sjm.RES, feed);
+            } else if (emsNodeUtil.getCommitObject(since) == null) {
+                log(Level.ERROR, HttpServletResponse.SC_NOT_FOUND, "Commit not found");
+                model.put(Sjm.RES, createResponseJson());
+            } else {
+                long deadline = System.currentTimeMillis() + timeout;
+                JsonObject feed;
+                while (true) {
+                    long version = ChangeFeed.version(projectId, refId);
+                    feed = emsNodeUtil.getChangeFeed(refId, since, limit, withElements);
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (feed.get("commits").getAsJsonArray().size() > 0 || remaining <= 0) {
+                        break;
+                    }
+                    ChangeFeed.await(projectId, refId, version, Math.min(remaining, POLL_MILLIS));
+                }
+                model.put(Sjm.RES, feed);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log(Level.ERROR, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Interrupted while waiting for commits");
+            model.put(Sjm.RES, createResponseJson());
+        } catch (Exception e) {
+            log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error", e);
+            model.put(Sjm.RES, createResponseJson());
+        }
+
+        status.setCode(responseStatus.getCode());
+
+        printFooter(user, logger, timer);
+        return model;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return value == null || value.isEmpty() ? defaultValue : Math.max(Integer.parseInt(value), 0);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override protected boolean validateRequest(WebScriptRequest req, Status status) {
+        return true;
+    }
+}
@@ -0,0 +1,77 @@
+package gov.nasa.jpl.view_repo.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.mbee.util.Timer;
+import gov.nasa.jpl.view_repo.util.CommitStatus;
+import gov.nasa.jpl.view_repo.util.Sjm;
+
+/**
+ * Reports the progress of a commit posted to the elements webscript
+ */
+public class CommitStatusGet extends AbstractJavaWebScript {
+
+    static Logger logger = Logger.getLogger(CommitStatusGet.class);
+
+    public CommitStatusGet() {
+        super();
+    }
+
+    public CommitStatusGet(Repository repositoryHelper, ServiceRegistry registry) {
+        super(repositoryHelper, registry);
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        CommitStatusGet instance = new CommitStatusGet(repository, getServices());
+        return instance.executeImplImpl(req, status, cache);
+    }
+
+    @Override
+    protected Map<String, Object> executeImplImpl(WebScriptRequest req, Status status, Cache cache) {
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        printHeader(user, logger, req);
+        Timer timer = new Timer();
+
+        Map<String, Object> model = new HashMap<>();
+
+        String projectId = getProjectId(req);
+        String commitId = req.getServiceMatch().getTemplateVars().get(COMMIT_ID);
+
+        try {
+            JsonObject commitStatus = CommitStatus.get(projectId, commitId);
+            if (commitStatus == null) {
+                log(Level.ERROR, HttpServletResponse.SC_NOT_FOUND, "Commit not found");
+                model.put(Sjm.RES, createResponseJson());
+            } else {
+                model.put(Sjm.RES, commitStatus);
+            }
+        } catch (Exception e) {
+            log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error", e);
+            model.put(Sjm.RES, createResponseJson());
+        }
+
+        status.setCode(responseStatus.getCode());
+
+        printFooter(user, logger, timer);
+        return model;
+    }
+
+    @Override protected boolean validateRequest(WebScriptRequest req, Status status) {
+        return true;
+    }
+}
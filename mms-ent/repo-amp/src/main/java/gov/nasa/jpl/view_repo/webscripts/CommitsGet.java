@@ -45,6 +45,10 @@ public class CommitsGet extends AbstractJavaWebScript {
         super(repositoryHelper, registry);
     }
 
+    @Override protected boolean isReadOnly() {
+        return true;
+    }
+
     @Override
     protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
         CommitsGet instance = new CommitsGet(repository, getServices());
@@ -1,6 +1,7 @@
 package gov.nasa.jpl.view_repo.webscripts;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -8,6 +9,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import gov.nasa.jpl.view_repo.db.ReplicaRouter;
 import gov.nasa.jpl.view_repo.util.*;
 
 import org.apache.commons.logging.Log;
@@ -69,6 +71,13 @@ public class DeclarativeJavaWebScript extends AbstractWebScript {
     public static final String NO_PROJECT_ID = "no_project";
     public static final String NO_SITE_ID = "no_site";
 
+    /**
+     * A response too large to build in memory, put in the model under Sjm.RES and written once the status is set
+     */
+    public interface StreamedResponse {
+        void write(Writer writer) throws IOException;
+    }
+
     /* (non-Javadoc)
      * @see org.alfresco.web.scripts.WebScript#execute(org.alfresco.web.scripts.WebScriptRequest, org.alfresco.web.scripts.WebScriptResponse)
      */
@@ -95,7 +104,18 @@ public class DeclarativeJavaWebScript extends AbstractWebScript {
             res.setHeader("Access-Control-Allow-Origin", "*");
             res.setHeader("Access-Control-Allow-Methods", "GET, POST, DELETE, PUT, HEAD, OPTIONS");
             if (projectId == null || (perm != null && perm)) {
-                model = executeImpl(req, status, cache);
+                if (isReadOnly()) {
+                    String commitId = req.getParameter(COMMIT_ID);
+                    if (commitId == null) {
+                        commitId = req.getServiceMatch().getTemplateVars().get(COMMIT_ID);
+                    }
+                    ReplicaRouter.begin(commitId);
+                }
+                try {
+                    model = executeImpl(req, status, cache);
+                } finally {
+                    ReplicaRouter.end();
+                }
             } else {
                 if (perm == null) {
                     status.setMessage("Not Found!");
@@ -137,6 +157,8 @@ public class DeclarativeJavaWebScript extends AbstractWebScript {
                         // assuming the repository is capable of streaming in chunks, this should allow large files
                         // to be streamed directly to the browser response stream.
                         reader.getStreamContent(res.getOutputStream());
+                    } else if (model.get(Sjm.RES) instanceof StreamedResponse) {
+                        ((StreamedResponse) model.get(Sjm.RES)).write(res.getWriter());
                     } else {
                         res.getWriter().write(model.get(Sjm.RES).toString());
                     }
@@ -164,6 +186,13 @@ public class DeclarativeJavaWebScript extends AbstractWebScript {
         return null;
     }
 
+    /**
+     * @return true if the web script never writes to the project databases, so its reads can go to a replica
+     */
+    protected boolean isReadOnly() {
+        return false;
+    }
+
     /**
      * Execute custom Java logic to clean up any resources
      *
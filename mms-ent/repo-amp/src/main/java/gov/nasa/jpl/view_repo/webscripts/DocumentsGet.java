@@ -39,6 +39,10 @@ public class DocumentsGet extends AbstractJavaWebScript {
         return false;
     }
 
+    @Override protected boolean isReadOnly() {
+        return true;
+    }
+
     @Override protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
         DocumentsGet instance = new DocumentsGet(repository, getServices());
         return instance.executeImplImpl(req, status, cache);
@@ -62,6 +62,13 @@ public class MigrateGet extends ModelGet {
         super(repositoryHelper, registry);
     }
 
+    /**
+     * Migrations write to every project database
+     */
+    @Override protected boolean isReadOnly() {
+        return false;
+    }
+
     /**
      * Webscript entry point
      */
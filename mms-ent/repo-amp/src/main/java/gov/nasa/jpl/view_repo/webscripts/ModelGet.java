@@ -99,6 +99,10 @@ public class ModelGet extends AbstractJavaWebScript {
         return true;
     }
 
+    @Override protected boolean isReadOnly() {
+        return true;
+    }
+
     /**
      * Entry point
      */
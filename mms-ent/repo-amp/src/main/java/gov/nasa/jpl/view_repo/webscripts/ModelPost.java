@@ -25,18 +25,34 @@
 
 package gov.nasa.jpl.view_repo.webscripts;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.UUID;
 import javax.servlet.http.HttpServletResponse;
 
+import gov.nasa.jpl.view_repo.db.ElasticHelper;
+import gov.nasa.jpl.view_repo.util.CommitStatus;
 import gov.nasa.jpl.view_repo.util.CommitUtil;
+import gov.nasa.jpl.view_repo.util.CommitWriter;
+import gov.nasa.jpl.view_repo.util.ElementChunkReader;
+import gov.nasa.jpl.view_repo.util.ElementSpool;
+import gov.nasa.jpl.view_repo.util.EmsConfig;
 import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
 import gov.nasa.jpl.view_repo.util.LogUtil;
 import gov.nasa.jpl.view_repo.util.Sjm;
 import gov.nasa.jpl.view_repo.util.EmsScriptNode;
 import gov.nasa.jpl.view_repo.util.JsonUtil;
+import gov.nasa.jpl.view_repo.util.tasks.CommitTask;
 
 import org.alfresco.repo.model.Repository;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
@@ -48,9 +64,13 @@ import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import gov.nasa.jpl.mbee.util.Timer;
 
@@ -105,17 +125,17 @@ public class ModelPost extends AbstractJavaWebScript {
         Timer timer = new Timer();
 
         Map<String, Object> result = new HashMap<String, Object>();
-        JsonObject postJson = new JsonObject();
 
-        try {
-            postJson = JsonUtil.buildFromStream(req.getContent().getInputStream()).getAsJsonObject();
-        } catch (IllegalStateException e) {
-            log(Level.ERROR, HttpServletResponse.SC_BAD_REQUEST, "Unable to parse JSON request");
-            result.put(Sjm.RES, createResponseJson());
+        if (Boolean.parseBoolean(req.getParameter("async"))) {
+            result = handleAsyncElementPost(req, status, user);
+            printFooter(user, logger, timer);
+            return result;
         }
 
-        if (!postJson.has(Sjm.RES)){
-            result = handleElementPost(req, postJson, status, user);
+        try (ElementChunkReader reader = new ElementChunkReader(req.getContent().getInputStream())) {
+            result = handleElementPost(req, reader, status, user);
+        } catch (IOException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
         }
 
         printFooter(user, logger, timer);
@@ -125,9 +145,18 @@ public class ModelPost extends AbstractJavaWebScript {
 
     protected Map<String, Object> handleElementPost(final WebScriptRequest req, JsonObject postJson,
         final Status status, String user) {
-        JsonObject newElementsObject = new JsonObject();
-        JsonObject results;
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Post Data: '%s'", postJson));
+        }
+        return handleElementPost(req, new ElementChunkReader(postJson), status, user);
+    }
 
+    /**
+     * Diffs and stages the posted elements a chunk at a time, the existing versions of only one chunk are
+     * held at once. The resulting elements are spooled to disk and streamed into the response.
+     */
+    protected Map<String, Object> handleElementPost(final WebScriptRequest req, ElementChunkReader reader,
+        final Status status, String user) {
         Map<String, Object> model = new HashMap<>();
 
         String refId = getRefId(req);
@@ -135,67 +164,73 @@ public class ModelPost extends AbstractJavaWebScript {
         boolean extended = Boolean.parseBoolean(req.getParameter("extended"));
         boolean withChildViews = Boolean.parseBoolean(req.getParameter("childviews"));
         boolean overwriteJson = Boolean.parseBoolean(req.getParameter("overwrite"));
+        boolean waitForRefresh = ElasticHelper.REFRESH_WAIT_FOR.equals(req.getParameter("refresh"));
 
-        EmsNodeUtil emsNodeUtil = new EmsNodeUtil(projectId, refId);
-
+        ElementSpool newElements = null;
+        ElementSpool rejectedElements = null;
         try {
-            if (logger.isDebugEnabled()) {
-                logger.debug(String.format("Post Data: '%s'", postJson));
+            newElements = new ElementSpool();
+            rejectedElements = new ElementSpool();
+        } catch (IOException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            if (newElements != null) {
+                newElements.close();
             }
+            log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to spool response");
+            model.put(Sjm.RES, createResponseJson());
+            status.setCode(responseStatus.getCode());
+            return model;
+        }
 
-            this.populateSourceApplicationFromJson(postJson);
-            Set<String> oldElasticIds = new HashSet<>();
-
-            String comment = JsonUtil.getOptString(postJson, Sjm.COMMENT);
-
-            results = emsNodeUtil
-                .processPostJson(postJson.get(Sjm.ELEMENTS).getAsJsonArray(), user, oldElasticIds, overwriteJson,
-                    this.requestSourceApplication, comment, Sjm.ELEMENT);
+        EmsNodeUtil emsNodeUtil = new EmsNodeUtil(projectId, refId);
+        JsonObject commit = emsNodeUtil.createCommit(UUID.randomUUID().toString(), user);
+        String commitId = commit.get(Sjm.ELASTICID).getAsString();
+        CommitWriter writer = new CommitWriter(projectId, refId, commitId, services);
 
-            String commitId = results.get("commit").getAsJsonObject().get(Sjm.ELASTICID).getAsString();
+        boolean streamed = false;
+        try {
+            Set<String> oldElasticIds = new HashSet<>();
+            int changed = 0;
+
+            JsonArray chunk;
+            while ((chunk = reader.next()) != null) {
+                JsonObject results =
+                    emsNodeUtil.processPostChunk(chunk, commit, oldElasticIds, overwriteJson, Sjm.ELEMENT);
+                changed += JsonUtil.getOptArray(results, "addedElements").size() + JsonUtil
+                    .getOptArray(results, "updatedElements").size() + JsonUtil
+                    .getOptArray(results, "deletedElements").size();
+                newElements.addAll(JsonUtil.getOptArray(results, NEWELEMENTS));
+                rejectedElements.addAll(JsonUtil.getOptArray(results, "rejectedElements"));
+                writer.stage(results);
+            }
+            if (!reader.hasElements()) {
+                throw new IllegalStateException("No elements in request");
+            }
 
-            int added = JsonUtil.getOptArray(results, "addedElements").size();
-            int updated = JsonUtil.getOptArray(results, "updatedElements").size();
-            int deleted = JsonUtil.getOptArray(results, "deletedElements").size();
+            this.requestSourceApplication = reader.getSource();
+            emsNodeUtil.finishCommit(commit, this.requestSourceApplication, reader.getComment());
 
-            if (added + updated + deleted == 0) {
+            if (changed == 0) {
+                writer.abort();
+                newElements.close();
                 JsonObject rejected = new JsonObject();
                 rejected.addProperty(Sjm.CREATOR, user);
-                rejected.add(Sjm.ELEMENTS, new JsonArray());
-                JsonArray rejectedElements = JsonUtil.getOptArray(results, "rejectedElements");
-                rejected.add(Sjm.REJECTED, rejectedElements);
-                model.put(Sjm.RES, rejected);
+                model.put(Sjm.RES, streamResponse(req, emsNodeUtil, null, rejectedElements, rejected, false, false));
+                streamed = true;
             } else if (CommitUtil
-                .sendDeltas(results, projectId, refId, requestSourceApplication, services, withChildViews, false)) {
+                .sendDeltas(writer, commit, projectId, refId, requestSourceApplication, waitForRefresh, null)) {
                 if (!oldElasticIds.isEmpty()) {
                     emsNodeUtil.updateElasticRemoveRefs(oldElasticIds, "element");
                 }
                 Map<String, String> commitObject = emsNodeUtil.getGuidAndTimestampFromElasticId(commitId);
 
-                if (withChildViews) {
-                    JsonArray array = results.get(NEWELEMENTS).getAsJsonArray();
-                    for (int i = 0; i < array.size(); i++) {
-                        array.set(i, emsNodeUtil.addChildViews(array.get(i).getAsJsonObject()));
-                    }
-                }
-
-                newElementsObject.add(Sjm.ELEMENTS, extended ?
-                    emsNodeUtil
-                        .addExtendedInformation(filterByPermission(results.get(NEWELEMENTS).getAsJsonArray(), req)) :
-                    filterByPermission(results.get(NEWELEMENTS).getAsJsonArray(), req));
-                if (results.has("rejectedElements")) {
-                    newElementsObject.add(Sjm.REJECTED, results.get("rejectedElements"));
-                }
+                JsonObject newElementsObject = new JsonObject();
                 newElementsObject.addProperty(Sjm.COMMITID, commitId);
                 newElementsObject.addProperty(Sjm.TIMESTAMP, commitObject.get(Sjm.TIMESTAMP));
                 newElementsObject.addProperty(Sjm.CREATOR, user);
-
-                if (prettyPrint) {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    model.put(Sjm.RES, gson.toJson(newElementsObject));
-                } else {
-                    model.put(Sjm.RES, newElementsObject);
-                }
+                model.put(Sjm.RES, streamResponse(req, emsNodeUtil, newElements, rejectedElements, newElementsObject,
+                    extended, withChildViews));
+                streamed = true;
 
                 status.setCode(responseStatus.getCode());
             } else {
@@ -204,12 +239,19 @@ public class ModelPost extends AbstractJavaWebScript {
                 model.put(Sjm.RES, createResponseJson());
             }
 
-        } catch (IllegalStateException e) {
+        } catch (IllegalStateException | JsonParseException | IOException e) {
+            writer.abort();
             log(Level.ERROR, HttpServletResponse.SC_BAD_REQUEST, "Unable to parse JSON request");
             model.put(Sjm.RES, createResponseJson());
         } catch (Exception e) {
+            writer.abort();
             logger.error(String.format("%s", LogUtil.getStackTrace(e)));
             model.put(Sjm.RES, createResponseJson());
+        } finally {
+            if (!streamed) {
+                newElements.close();
+                rejectedElements.close();
+            }
         }
 
         status.setCode(responseStatus.getCode());
@@ -217,6 +259,151 @@ public class ModelPost extends AbstractJavaWebScript {
         return model;
     }
 
+    /**
+     * Writes the elements and rejected elements back from their spools a chunk at a time, followed by the
+     * properties of the response. The spools are closed once written.
+     *
+     * @param elements spool of the posted elements, or null for none
+     */
+    private StreamedResponse streamResponse(WebScriptRequest req, EmsNodeUtil emsNodeUtil, ElementSpool elements,
+        ElementSpool rejected, JsonObject properties, boolean extended, boolean withChildViews) {
+        return out -> {
+            Gson gson = new Gson();
+            JsonWriter json = new JsonWriter(out);
+            if (prettyPrint) {
+                json.setIndent("  ");
+            }
+            try {
+                json.beginObject();
+                json.name(Sjm.ELEMENTS);
+                json.beginArray();
+                if (elements != null) {
+                    try (ElementChunkReader reader = elements.read()) {
+                        JsonArray chunk;
+                        while ((chunk = reader.next()) != null) {
+                            if (withChildViews) {
+                                emsNodeUtil.addChildViews(chunk);
+                            }
+                            chunk = filterByPermission(chunk, req);
+                            if (extended) {
+                                chunk = emsNodeUtil.addExtendedInformation(chunk);
+                            }
+                            for (int i = 0; i < chunk.size(); i++) {
+                                gson.toJson(chunk.get(i), json);
+                            }
+                        }
+                    }
+                }
+                json.endArray();
+                json.name(Sjm.REJECTED);
+                json.beginArray();
+                try (ElementChunkReader reader = rejected.read()) {
+                    JsonArray chunk;
+                    while ((chunk = reader.next()) != null) {
+                        for (int i = 0; i < chunk.size(); i++) {
+                            gson.toJson(chunk.get(i), json);
+                        }
+                    }
+                }
+                json.endArray();
+                for (Map.Entry<String, JsonElement> property : properties.entrySet()) {
+                    json.name(property.getKey());
+                    gson.toJson(property.getValue(), json);
+                }
+                json.endObject();
+                json.flush();
+            } finally {
+                if (elements != null) {
+                    elements.close();
+                }
+                rejected.close();
+            }
+        };
+    }
+
+    /**
+     * Spool the request to disk and process it on the background commit executor. Responds with 202 and the
+     * commit id, progress can be followed on the commit status webscript.
+     */
+    protected Map<String, Object> handleAsyncElementPost(final WebScriptRequest req, final Status status,
+        String user) {
+        Map<String, Object> model = new HashMap<>();
+
+        String refId = getRefId(req);
+        String projectId = getProjectId(req);
+        boolean overwriteJson = Boolean.parseBoolean(req.getParameter("overwrite"));
+
+        File spool = null;
+        try {
+            String spoolDir = EmsConfig.get("commit.async.spool");
+            spool = File.createTempFile("commit-", ".json",
+                spoolDir != null && !spoolDir.isEmpty() ? new File(spoolDir) : null);
+            try (InputStream in = req.getContent().getInputStream()) {
+                Files.copy(in, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            if (!isElementPost(spool)) {
+                log(Level.ERROR, HttpServletResponse.SC_BAD_REQUEST, "Unable to parse JSON request");
+                model.put(Sjm.RES, createResponseJson());
+                if (!spool.delete()) {
+                    logger.warn(String.format("Unable to delete spool file %s", spool));
+                }
+            } else {
+                String commitId = UUID.randomUUID().toString();
+                CommitTask task = new CommitTask(projectId, refId, user, commitId, spool, overwriteJson, services);
+                if (task.submit()) {
+                    JsonObject accepted = new JsonObject();
+                    accepted.addProperty(Sjm.COMMITID, commitId);
+                    accepted.addProperty("status", CommitStatus.ACCEPTED);
+                    accepted.addProperty(Sjm.CREATOR, user);
+                    model.put(Sjm.RES, accepted);
+                    responseStatus.setCode(HttpServletResponse.SC_ACCEPTED);
+                } else {
+                    log(Level.ERROR, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "Too many commits are being processed, try again later");
+                    model.put(Sjm.RES, createResponseJson());
+                }
+            }
+        } catch (IOException e) {
+            logger.error(String.format("%s", LogUtil.getStackTrace(e)));
+            log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Unable to spool request");
+            model.put(Sjm.RES, createResponseJson());
+            if (spool != null && spool.exists() && !spool.delete()) {
+                logger.warn(String.format("Unable to delete spool file %s", spool));
+            }
+        }
+
+        status.setCode(responseStatus.getCode());
+
+        return model;
+    }
+
+    /**
+     * Streams through the spooled request checking that it is an object with an elements array, without
+     * building the tree
+     */
+    private boolean isElementPost(File spool) {
+        try (JsonReader reader = new JsonReader(
+            new InputStreamReader(new FileInputStream(spool), StandardCharsets.UTF_8))) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                return false;
+            }
+            boolean hasElements = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(Sjm.ELEMENTS) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    hasElements = true;
+                }
+                reader.skipValue();
+            }
+            reader.endObject();
+            return hasElements;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
     @Override protected boolean validateRequest(WebScriptRequest req, Status status) {
         String elementId = req.getServiceMatch().getTemplateVars().get("elementid");
         if (elementId != null && !checkRequestVariable(elementId, "elementid")) {
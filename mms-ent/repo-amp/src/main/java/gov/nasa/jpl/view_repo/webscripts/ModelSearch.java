@@ -78,6 +78,10 @@ public class ModelSearch extends ModelPost {
         super(repositoryHelper, registry);
     }
 
+    @Override protected boolean isReadOnly() {
+        return true;
+    }
+
     @Override protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
         ModelSearch instance = new ModelSearch(repository, getServices());
         return instance.executeImplImpl(req, status, cache);
@@ -0,0 +1,61 @@
+package gov.nasa.jpl.view_repo.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Logger;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.mbee.util.Timer;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+import gov.nasa.jpl.view_repo.util.Sjm;
+
+/**
+ * Reports usage and wait times of the Postgres connection pools
+ */
+public class PoolsGet extends AbstractJavaWebScript {
+
+    static Logger logger = Logger.getLogger(PoolsGet.class);
+
+    public PoolsGet() {
+        super();
+    }
+
+    public PoolsGet(Repository repositoryHelper, ServiceRegistry registry) {
+        super(repositoryHelper, registry);
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        PoolsGet instance = new PoolsGet(repository, getServices());
+        return instance.executeImplImpl(req, status, cache);
+    }
+
+    @Override
+    protected Map<String, Object> executeImplImpl(WebScriptRequest req, Status status, Cache cache) {
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        printHeader(user, logger, req);
+        Timer timer = new Timer();
+
+        Map<String, Object> model = new HashMap<>();
+        JsonObject json = new JsonObject();
+        json.add("pools", PostgresPool.getStats());
+        model.put(Sjm.RES, json);
+
+        status.setCode(responseStatus.getCode());
+
+        printFooter(user, logger, timer);
+        return model;
+    }
+
+    @Override protected boolean validateRequest(WebScriptRequest req, Status status) {
+        return true;
+    }
+}
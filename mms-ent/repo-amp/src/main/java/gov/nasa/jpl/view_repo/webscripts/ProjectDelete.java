@@ -8,10 +8,12 @@ import java.util.List;
 import java.util.Map;
 
 import java.util.Set;
+import java.util.stream.Stream;
 import javax.servlet.http.HttpServletResponse;
 
 import gov.nasa.jpl.view_repo.db.ElasticHelper;
 import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
 import gov.nasa.jpl.view_repo.util.EmsNodeUtil;
 import gov.nasa.jpl.view_repo.util.EmsScriptNode;
 import org.alfresco.repo.model.Repository;
@@ -66,6 +68,8 @@ public class ProjectDelete extends AbstractJavaWebScript {
         Map<String, Object> model = new HashMap<>();
 
         try {
+            // dropping a project can take long, keep it off the connections of user requests
+            PostgresPool.setWorkload(PostgresPool.Workload.BULK);
             if (validateRequest(req, status)) {
 
                 String projectId = getProjectId(req);
@@ -92,6 +96,8 @@ public class ProjectDelete extends AbstractJavaWebScript {
             log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Could not create JSON response");
         } catch (Exception e) {
             log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error", e);
+        } finally {
+            PostgresPool.setWorkload(null);
         }
 
         if(projects.size() == 0){
@@ -135,9 +141,8 @@ public class ProjectDelete extends AbstractJavaWebScript {
         pgh.setProject(projectId);
 
         // Get all the commit ids from postgres
-        List<Map<String, String>> commits = pgh.getAllCommits();
-        for (Map<String, String> commit : commits) {
-            commitIds.add(commit.get("commitId"));
+        try (Stream<Map<String, String>> commits = pgh.streamAllCommits()) {
+            commits.forEach(commit -> commitIds.add(commit.get("commitId")));
         }
         pgh.close();
         return commitIds;
@@ -0,0 +1,80 @@
+package gov.nasa.jpl.view_repo.webscripts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.alfresco.repo.model.Repository;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.ServiceRegistry;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import com.google.gson.JsonObject;
+
+import gov.nasa.jpl.mbee.util.Timer;
+import gov.nasa.jpl.view_repo.db.PostgresPool;
+import gov.nasa.jpl.view_repo.db.SchemaMigrator;
+import gov.nasa.jpl.view_repo.util.Sjm;
+
+/**
+ * Moves a project from its own Postgres database into a schema of the shared database
+ */
+public class ProjectStoragePost extends AbstractJavaWebScript {
+
+    static Logger logger = Logger.getLogger(ProjectStoragePost.class);
+
+    public ProjectStoragePost() {
+        super();
+    }
+
+    public ProjectStoragePost(Repository repositoryHelper, ServiceRegistry registry) {
+        super(repositoryHelper, registry);
+    }
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        ProjectStoragePost instance = new ProjectStoragePost(repository, getServices());
+        return instance.executeImplImpl(req, status, cache);
+    }
+
+    @Override
+    protected Map<String, Object> executeImplImpl(WebScriptRequest req, Status status, Cache cache) {
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        printHeader(user, logger, req);
+        Timer timer = new Timer();
+
+        Map<String, Object> model = new HashMap<>();
+        String projectId = getProjectId(req);
+
+        try {
+            PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+            JsonObject json = SchemaMigrator.migrate(projectId);
+            if (json == null) {
+                log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Could not move project %s",
+                    projectId);
+                model.put(Sjm.RES, createResponseJson());
+            } else {
+                model.put(Sjm.RES, json);
+            }
+        } catch (Exception e) {
+            log(Level.ERROR, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Internal error", e);
+            model.put(Sjm.RES, createResponseJson());
+        } finally {
+            PostgresPool.setWorkload(null);
+        }
+
+        status.setCode(responseStatus.getCode());
+
+        printFooter(user, logger, timer);
+        return model;
+    }
+
+    @Override protected boolean validateRequest(WebScriptRequest req, Status status) {
+        return true;
+    }
+}
@@ -15,6 +15,28 @@ create table projects
   orgId integer references organizations(id),
   name text not null,
   location text not null,
+  schemaName text,
   constraint unique_projects unique(orgId, projectId)
 );
 create index projectIdIndex on projects(projectid);
+
+create table branchJobs
+(
+  id bigserial primary key,
+  projectId text not null,
+  refId text not null,
+  task text not null,
+  priority integer default 0,
+  status text not null,
+  owner text,
+  attempts integer default 0,
+  phase text,
+  phases text,
+  message text,
+  created timestamp default current_timestamp,
+  started timestamp,
+  heartbeat timestamp,
+  finished timestamp
+);
+create index branchJobsStatusIndex on branchJobs(status);
+create index branchJobsProjectIndex on branchJobs(projectId, refId);
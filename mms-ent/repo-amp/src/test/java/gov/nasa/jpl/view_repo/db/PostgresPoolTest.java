@@ -9,9 +9,14 @@ import org.junit.Test;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.NoSuchElementException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 import static org.mockito.internal.verification.VerificationModeFactory.atLeast;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
@@ -154,4 +159,105 @@ public class PostgresPoolTest {
         verify(mockBasicDataSource, atLeast(1)).setMaxIdle(PostgresPool.MAX_IDLE_CONN);
     }
 
+    @Test
+    public void testBulkPoolSeparateFromInteractive() throws SQLException {
+        PostgresPool.IBasicDataSourceFactory mockFactory = mock(PostgresPool.IBasicDataSourceFactory.class);
+        PostgresPool.setBasicDataSourceFactory(mockFactory);
+
+        BasicDataSource interactiveDataSource = mock(BasicDataSource.class);
+        BasicDataSource bulkDataSource = mock(BasicDataSource.class);
+
+        when(mockFactory.getNewBasicDataSource()).thenReturn(interactiveDataSource, bulkDataSource);
+
+        PostgresPool interactive = PostgresPool.getInstance("host", "name");
+        PostgresPool.setWorkload(PostgresPool.Workload.BULK);
+        PostgresPool bulk;
+        try {
+            bulk = PostgresPool.getInstance("host", "name");
+        } finally {
+            PostgresPool.setWorkload(null);
+        }
+
+        assertNotSame(interactive, bulk);
+        assertSame(bulk, PostgresPool.getInstance("host", "name", PostgresPool.Workload.BULK));
+        assertSame(interactive, PostgresPool.getInstance("host", "name"));
+
+        verify(interactiveDataSource).setUrl("hostname");
+        verify(bulkDataSource).setUrl("hostname");
+        verify(interactiveDataSource).setMaxActive(96);
+        verify(bulkDataSource).setMaxActive(PostgresPool.MAX_BULK_CONN);
+        verify(interactiveDataSource).setRemoveAbandoned(true);
+        verify(bulkDataSource, never()).setRemoveAbandoned(true);
+    }
+
+    @Test
+    public void testBulkPoolStatementTimeout() throws SQLException {
+        EmsConfig.setProperty("pg.bulk.statementTimeout", "600000");
+        try {
+            PostgresPool.IBasicDataSourceFactory mockFactory = mock(PostgresPool.IBasicDataSourceFactory.class);
+            PostgresPool.setBasicDataSourceFactory(mockFactory);
+
+            BasicDataSource interactiveDataSource = mock(BasicDataSource.class);
+            BasicDataSource bulkDataSource = mock(BasicDataSource.class);
+
+            when(mockFactory.getNewBasicDataSource()).thenReturn(interactiveDataSource, bulkDataSource);
+
+            PostgresPool.getInstance("host", "name", PostgresPool.Workload.INTERACTIVE);
+            PostgresPool.getInstance("host", "name", PostgresPool.Workload.BULK);
+
+            verify(interactiveDataSource, never()).setConnectionInitSqls(any());
+            verify(bulkDataSource).setConnectionInitSqls(Collections.singletonList("SET statement_timeout = 600000"));
+        } finally {
+            EmsConfig.setProperty("pg.bulk.statementTimeout", "");
+        }
+    }
+
+    @Test
+    public void testRemoveConnectionRemovesEveryWorkload() throws SQLException {
+        PostgresPool.IBasicDataSourceFactory mockFactory = mock(PostgresPool.IBasicDataSourceFactory.class);
+        PostgresPool.setBasicDataSourceFactory(mockFactory);
+
+        when(mockFactory.getNewBasicDataSource()).thenAnswer(invocation -> mock(BasicDataSource.class));
+
+        PostgresPool interactive = PostgresPool.getInstance("host", "_name", PostgresPool.Workload.INTERACTIVE);
+        PostgresPool bulk = PostgresPool.getInstance("host", "_name", PostgresPool.Workload.BULK);
+
+        PostgresPool.removeConnection("host", "name");
+
+        assertNotSame(interactive, PostgresPool.getInstance("host", "_name", PostgresPool.Workload.INTERACTIVE));
+        assertNotSame(bulk, PostgresPool.getInstance("host", "_name", PostgresPool.Workload.BULK));
+    }
+
+    @Test
+    public void testCheckoutStats() throws SQLException {
+        PostgresPool.IBasicDataSourceFactory mockFactory = mock(PostgresPool.IBasicDataSourceFactory.class);
+        PostgresPool.setBasicDataSourceFactory(mockFactory);
+
+        BasicDataSource mockBasicDataSource = mock(BasicDataSource.class);
+        Connection mockConnection = mock(Connection.class);
+
+        when(mockFactory.getNewBasicDataSource()).thenReturn(mockBasicDataSource);
+        when(mockBasicDataSource.getConnection()).thenReturn(mockConnection)
+            .thenThrow(new SQLException("Timeout waiting for idle object", new NoSuchElementException()));
+
+        PostgresPool pool = PostgresPool.getInstance("host", "name");
+        pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("Expected a timeout");
+        } catch (SQLException e) {
+            // expected
+        }
+
+        assertEquals(1, pool.getCheckouts());
+        assertEquals(1, pool.getTimeouts());
+        assertEquals(0, pool.getWaiters());
+        long waits = 0;
+        for (long count : pool.getWaitHistogram().values()) {
+            waits += count;
+        }
+        assertEquals(2, waits);
+        assertEquals(1, PostgresPool.getStats().size());
+    }
+
 }
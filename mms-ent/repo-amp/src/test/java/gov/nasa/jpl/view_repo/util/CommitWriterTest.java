@@ -0,0 +1,109 @@
+package gov.nasa.jpl.view_repo.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import gov.nasa.jpl.view_repo.db.GraphInterface.DbCommitTypes;
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.*;
+
+public class CommitWriterTest {
+
+    private PostgresHelper txn;
+    private CommitWriter writer;
+
+    @Before
+    public void setup() throws SQLException {
+        txn = mock(PostgresHelper.class);
+        when(txn.startTransaction()).thenReturn(mock(Savepoint.class));
+        writer = new CommitWriter(txn, "PA", "master", "commit1", null);
+    }
+
+    @Test
+    public void testNodeFailureRollsBackCommit() throws SQLException {
+        doThrow(new SQLException("nodes")).when(txn).runBatchQueries(anyList(), eq(CommitUtil.NODES));
+
+        writer.stage(delta(element("e1", "PA_pm")));
+        JsonObject jmsPayload = new JsonObject();
+
+        assertFalse(writer.finish(commit(), jmsPayload, false, null));
+
+        verify(txn).rollbackTransaction();
+        verify(txn, never()).commitTransaction();
+        verify(txn, never()).insertCommitInTransaction(anyString(), any(DbCommitTypes.class), anyString(),
+            any(Timestamp.class));
+        assertFalse(jmsPayload.has("refs"));
+    }
+
+    @Test
+    public void testCommitRowFailureRollsBackOutbox() throws SQLException {
+        doThrow(new SQLException("commits")).when(txn)
+            .insertCommitInTransaction(anyString(), any(DbCommitTypes.class), anyString(), any(Timestamp.class));
+
+        writer.stage(delta(element("e1", "PA_pm")));
+
+        assertFalse(writer.finish(commit(), new JsonObject(), false, null));
+
+        // the outbox rows of the staged chunk were written in the transaction that is rolled back
+        verify(txn, times(1)).startTransaction();
+        verify(txn, atLeastOnce()).runBatchQueries(anyList(), eq(CommitUtil.OUTBOX));
+        verify(txn).rollbackTransaction();
+        verify(txn, never()).commitTransaction();
+    }
+
+    @Test
+    public void testStageFailureRollsBackOnAbort() throws SQLException {
+        doThrow(new SQLException("outbox")).when(txn).runBatchQueries(anyList(), eq(CommitUtil.OUTBOX));
+
+        try {
+            writer.stage(delta(element("e1", "PA_pm")));
+        } catch (SQLException e) {
+            writer.abort();
+        }
+
+        verify(txn).rollbackTransaction();
+        verify(txn).close();
+        verify(txn, never()).commitTransaction();
+    }
+
+    @Test
+    public void testAbortWithoutTransaction() throws SQLException {
+        writer.abort();
+
+        verify(txn, never()).rollbackTransaction();
+        verify(txn).close();
+    }
+
+    private static JsonObject element(String sysmlId, String ownerId) {
+        JsonObject e = new JsonObject();
+        e.addProperty(Sjm.SYSMLID, sysmlId);
+        e.addProperty(Sjm.ELASTICID, sysmlId + "-elastic");
+        e.addProperty(Sjm.OWNERID, ownerId);
+        e.addProperty(Sjm.TYPE, "Class");
+        return e;
+    }
+
+    private static JsonObject delta(JsonObject... added) {
+        JsonArray elements = new JsonArray();
+        for (JsonObject e : added) {
+            elements.add(e);
+        }
+        JsonObject delta = new JsonObject();
+        delta.add("addedElements", elements);
+        return delta;
+    }
+
+    private static JsonObject commit() {
+        JsonObject commit = new JsonObject();
+        commit.addProperty(Sjm.CREATOR, "admin");
+        commit.addProperty(Sjm.CREATED, "2018-04-19T12:00:00.000-0700");
+        return commit;
+    }
+}
@@ -0,0 +1,135 @@
+package gov.nasa.jpl.view_repo.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Mockito.*;
+
+public class DeltaCoalescerTest {
+
+    private static final long WINDOW = 500;
+    private static final long WAIT = 5000;
+
+    private DeltaCoalescer.IDeltaSender sender;
+
+    @Before
+    public void setup() {
+        sender = mock(DeltaCoalescer.IDeltaSender.class);
+        DeltaCoalescer.setDeltaSender(sender);
+    }
+
+    @After
+    public void teardown() {
+        DeltaCoalescer.setDeltaSender(null);
+    }
+
+    @Test
+    public void testNoWindowSendsEachDelta() {
+        DeltaCoalescer.publish("PA", "master", delta("c1", "ui", ids("a"), ids(), ids()), 0);
+        DeltaCoalescer.publish("PA", "master", delta("c2", "ui", ids(), ids("a"), ids()), 0);
+
+        ArgumentCaptor<JsonObject> events = ArgumentCaptor.forClass(JsonObject.class);
+        verify(sender, times(2)).send(events.capture(), eq("master"), eq("PA"));
+
+        JsonObject first = events.getAllValues().get(0);
+        assertEquals(ids("a"), refs(first, "addedElements"));
+        assertEquals("c1", first.get(Sjm.COMMITID).getAsString());
+        assertFalse(first.has("commitIds"));
+
+        JsonObject second = events.getAllValues().get(1);
+        assertEquals(ids("a"), refs(second, "updatedElements"));
+        assertEquals("c2", second.get(Sjm.COMMITID).getAsString());
+    }
+
+    @Test
+    public void testMergeNetsOutIds() {
+        // a: added then deleted, dropped; b: added then updated, stays added; c: deleted then added, updated;
+        // d: updated then deleted, deleted
+        DeltaCoalescer.publish("PB", "master", delta("c1", "ui", ids("a", "b"), ids("d"), ids("c")), WINDOW);
+        DeltaCoalescer.publish("PB", "master", delta("c2", "ui", ids("c"), ids("b"), ids("a", "d")), WINDOW);
+        verify(sender, never()).send(any(JsonObject.class), anyString(), anyString());
+
+        // a delta from another source sends what was merged so far
+        DeltaCoalescer.publish("PB", "master", delta("c3", "other", ids(), ids("e"), ids()), WINDOW);
+
+        ArgumentCaptor<JsonObject> events = ArgumentCaptor.forClass(JsonObject.class);
+        verify(sender).send(events.capture(), eq("master"), eq("PB"));
+        JsonObject merged = events.getValue();
+
+        assertEquals(ids("b"), refs(merged, "addedElements"));
+        assertEquals(ids("c"), refs(merged, "updatedElements"));
+        assertEquals(ids("d"), refs(merged, "deletedElements"));
+        assertEquals("c2", merged.get(Sjm.COMMITID).getAsString());
+        assertEquals(2, merged.getAsJsonArray("commitIds").size());
+        assertEquals("ui", merged.get("source").getAsString());
+
+        JsonObject summary = merged.getAsJsonObject("summary");
+        assertEquals(1, summary.get("added").getAsInt());
+        assertEquals(1, summary.get("updated").getAsInt());
+        assertEquals(1, summary.get("deleted").getAsInt());
+        assertEquals("c1", summary.get("firstCommitId").getAsString());
+        assertEquals("c2", summary.get("lastCommitId").getAsString());
+
+        // the last delta goes out when its window closes
+        verify(sender, timeout(WAIT).times(2)).send(events.capture(), eq("master"), eq("PB"));
+        assertEquals(ids("e"), refs(events.getValue(), "updatedElements"));
+    }
+
+    @Test
+    public void testMergeKeepsRefsApart() {
+        DeltaCoalescer.publish("PC", "master", delta("c1", "ui", ids("a"), ids(), ids()), WINDOW);
+        DeltaCoalescer.publish("PC", "branch", delta("c2", "ui", ids(), ids(), ids("a")), WINDOW);
+
+        ArgumentCaptor<JsonObject> master = ArgumentCaptor.forClass(JsonObject.class);
+        verify(sender, timeout(WAIT)).send(master.capture(), eq("master"), eq("PC"));
+        assertEquals(ids("a"), refs(master.getValue(), "addedElements"));
+        assertEquals(ids(), refs(master.getValue(), "deletedElements"));
+
+        ArgumentCaptor<JsonObject> branch = ArgumentCaptor.forClass(JsonObject.class);
+        verify(sender, timeout(WAIT)).send(branch.capture(), eq("branch"), eq("PC"));
+        assertEquals(ids("a"), refs(branch.getValue(), "deletedElements"));
+    }
+
+    private static List<String> ids(String... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static JsonObject delta(String commitId, String source, List<String> added, List<String> updated,
+        List<String> deleted) {
+        JsonObject refs = new JsonObject();
+        refs.add("addedElements", toArray(added));
+        refs.add("updatedElements", toArray(updated));
+        refs.add("deletedElements", toArray(deleted));
+        JsonObject payload = new JsonObject();
+        payload.add("refs", refs);
+        payload.addProperty(Sjm.COMMITID, commitId);
+        payload.addProperty("source", source);
+        return payload;
+    }
+
+    private static JsonArray toArray(List<String> ids) {
+        JsonArray array = new JsonArray();
+        for (String id : ids) {
+            array.add(id);
+        }
+        return array;
+    }
+
+    private static List<String> refs(JsonObject event, String key) {
+        JsonArray array = event.getAsJsonObject("refs").getAsJsonArray(key);
+        String[] ids = new String[array.size()];
+        for (int i = 0; i < array.size(); i++) {
+            ids[i] = array.get(i).getAsString();
+        }
+        return Arrays.asList(ids);
+    }
+}
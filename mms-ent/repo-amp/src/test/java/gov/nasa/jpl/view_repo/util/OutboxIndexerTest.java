@@ -0,0 +1,126 @@
+package gov.nasa.jpl.view_repo.util;
+
+import gov.nasa.jpl.view_repo.db.ElasticHelper;
+import gov.nasa.jpl.view_repo.db.PostgresHelper;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class OutboxIndexerTest {
+
+    private PostgresHelper pgh;
+    private ElasticHelper eh;
+
+    @Before
+    public void setup() {
+        EmsConfig.setProperty("elastic.limit.result", "10000");
+        EmsConfig.setProperty("elastic.limit.term", "1000");
+        pgh = mock(PostgresHelper.class);
+        eh = mock(ElasticHelper.class);
+    }
+
+    @Test
+    public void testFailedDocumentHoldsLaterRows() throws IOException {
+        when(pgh.getOutboxBatch(anyInt())).thenReturn(Arrays
+            .asList(row(1, "e1", ElasticHelper.ELEMENT), row(2, "c1", ElasticHelper.COMMIT),
+                row(3, "e2", ElasticHelper.ELEMENT), row(4, "e1", ElasticHelper.ELEMENT),
+                row(5, "e2", ElasticHelper.ELEMENT)));
+        doAnswer(bulk(Collections.singletonList("3"), Collections.emptyList())).when(eh)
+            .bulkOutbox(anyList(), anyBoolean(), anyString(), anyString(), anyMap(), anySet());
+
+        assertFalse(OutboxIndexer.drainLocked(pgh, eh, "PA", false));
+
+        // the update of e2 waits for its rejected index, e1 is not held up
+        verify(pgh).deleteFromOutbox(Arrays.asList(1L, 2L, 4L));
+        verify(pgh).failOutboxRows(Collections.singletonList(3L), Collections.singletonList("rejected 3"),
+            OutboxIndexer.ATTEMPTS);
+    }
+
+    @Test
+    public void testRetriedDocumentHoldsLaterRows() throws IOException {
+        when(pgh.getOutboxBatch(anyInt())).thenReturn(Arrays
+            .asList(row(1, "e1", ElasticHelper.ELEMENT), row(2, "e2", ElasticHelper.ELEMENT),
+                row(3, "e2", ElasticHelper.ELEMENT)));
+        doAnswer(bulk(Collections.emptyList(), Collections.singletonList("2"))).when(eh)
+            .bulkOutbox(anyList(), anyBoolean(), anyString(), anyString(), anyMap(), anySet());
+
+        assertFalse(OutboxIndexer.drainLocked(pgh, eh, "PA", false));
+
+        // rows to retry do not count as an attempt
+        verify(pgh).deleteFromOutbox(Collections.singletonList(1L));
+        verify(pgh).failOutboxRows(Collections.emptyList(), Collections.emptyList(), OutboxIndexer.ATTEMPTS);
+    }
+
+    @Test
+    public void testDeadLetteredRowReleasesLaterRows() throws IOException {
+        when(pgh.getOutboxBatch(anyInt()))
+            .thenReturn(Arrays.asList(row(1, "e1", ElasticHelper.ELEMENT), row(2, "e1", ElasticHelper.ELEMENT)))
+            .thenReturn(Collections.singletonList(row(2, "e1", ElasticHelper.ELEMENT)));
+        doAnswer(bulk(Collections.singletonList("1"), Collections.emptyList())).when(eh)
+            .bulkOutbox(anyList(), anyBoolean(), anyString(), anyString(), anyMap(), anySet());
+        // row 1 reached the configured attempts and is moved to outboxDead
+        when(pgh.failOutboxRows(Collections.singletonList(1L), Collections.singletonList("rejected 1"),
+            OutboxIndexer.ATTEMPTS)).thenReturn(1);
+
+        assertFalse(OutboxIndexer.drainLocked(pgh, eh, "PA", false));
+        verify(pgh).deleteFromOutbox(Collections.emptyList());
+
+        assertTrue(OutboxIndexer.drainLocked(pgh, eh, "PA", false));
+        verify(pgh).deleteFromOutbox(Collections.singletonList(2L));
+        verify(pgh, times(1)).failOutboxRows(anyList(), anyList(), anyInt());
+    }
+
+    @Test
+    public void testEmptyOutboxRefreshes() throws IOException {
+        when(pgh.getOutboxBatch(anyInt())).thenReturn(Collections.emptyList());
+
+        assertTrue(OutboxIndexer.drainLocked(pgh, eh, "PA", true));
+
+        verify(eh).refreshIndex("PA");
+        verify(pgh, never()).deleteFromOutbox(anyList());
+    }
+
+    private static Map<String, String> row(long id, String elasticId, String type) {
+        Map<String, String> row = new HashMap<>();
+        row.put("id", String.valueOf(id));
+        row.put(Sjm.ELASTICID, elasticId);
+        row.put("esType", type);
+        row.put("op", OutboxIndexer.OP_INDEX);
+        row.put("doc", "{}");
+        return row;
+    }
+
+    /**
+     * Rejects or asks to retry the rows with the given ids, by position in the rows of each bulk request
+     */
+    @SuppressWarnings("unchecked")
+    private static Answer<Void> bulk(List<String> rejectIds, List<String> retryIds) {
+        return invocation -> {
+            Object[] args = invocation.getArguments();
+            List<Map<String, String>> rows = (List<Map<String, String>>) args[0];
+            Map<Integer, String> rejected = (Map<Integer, String>) args[4];
+            Set<Integer> retry = (Set<Integer>) args[5];
+            for (int i = 0; i < rows.size(); i++) {
+                String id = rows.get(i).get("id");
+                if (rejectIds.contains(id)) {
+                    rejected.put(i, "rejected " + id);
+                } else if (retryIds.contains(id)) {
+                    retry.add(i);
+                }
+            }
+            return null;
+        };
+    }
+}
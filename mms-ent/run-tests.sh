@@ -15,11 +15,11 @@ ELASTIC_INSTANCE=$( nc -z -v 127.0.0.1 9200 2>&1 | grep open | wc -l )
 ELASTIC_MAPPING=$DIR/repo-amp/src/main/resources/mapping_template.json
 
 if [ $POSTGRES_INSTANCE -eq 0 ];then
-    docker run -d --name postgres-docker --publish=5432:5432 -e POSTGRES_USER=${POSTGRES_USER} -e POSTGRES_PASSWORD=${POSTGRES_PASS} postgres:9.4-alpine
+    docker run -d --name postgres-docker --publish=5432:5432 -e POSTGRES_USER=${POSTGRES_USER} -e POSTGRES_PASSWORD=${POSTGRES_PASS} postgres:11-alpine
 else
     echo 'Existing database found.'
     docker rm -f postgres-docker
-    docker run -d --name postgres-docker --publish=5432:5432 -e POSTGRES_USER=${POSTGRES_USER} -e POSTGRES_PASSWORD=${POSTGRES_PASS} postgres:9.4-alpine
+    docker run -d --name postgres-docker --publish=5432:5432 -e POSTGRES_USER=${POSTGRES_USER} -e POSTGRES_PASSWORD=${POSTGRES_PASS} postgres:11-alpine
 fi
 
 if [ $ELASTIC_INSTANCE -eq 0 ];then